@@ -19,6 +19,8 @@
  */
 package org.xwiki.contrib.ratings;
 
+import java.util.Map;
+
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.api.Api;
 
@@ -84,4 +86,51 @@ public class AverageRatingApi
             return averageRating.getMethod();
         }
     }
+
+    /**
+     * @return the number of votes for each vote value, in increasing order of vote, or null if the method of this
+     *         average rating does not keep them
+     * @see VoteDistribution#getVoteCounts()
+     */
+    public Map<Integer, Integer> getVoteCounts()
+    {
+        if (averageRating instanceof VoteDistribution) {
+            return ((VoteDistribution) averageRating).getVoteCounts();
+        }
+        return null;
+    }
+
+    /**
+     * @return the median vote, the mean of the two middle votes for an even number of votes, 0 if there is no vote or
+     *         if the method of this average rating does not keep the number of votes for each vote value
+     */
+    public float getMedianVote()
+    {
+        Map<Integer, Integer> counts = getVoteCounts();
+        if (counts == null) {
+            return 0;
+        }
+        int nbVotes = 0;
+        for (int count : counts.values()) {
+            nbVotes += count;
+        }
+        if (nbVotes == 0) {
+            return 0;
+        }
+        // 0-based positions of the middle votes, equal for an odd number of votes
+        int lowPosition = (nbVotes - 1) / 2;
+        int highPosition = nbVotes / 2;
+        Integer low = null;
+        int position = 0;
+        for (Map.Entry<Integer, Integer> count : counts.entrySet()) {
+            position += count.getValue();
+            if (low == null && position > lowPosition) {
+                low = count.getKey();
+            }
+            if (position > highPosition) {
+                return (low + count.getKey()) / 2f;
+            }
+        }
+        return 0;
+    }
 }
@@ -1,5 +1,8 @@
 package org.xwiki.contrib.ratings;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
@@ -12,8 +15,6 @@ import org.xwiki.context.Execution;
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.doc.XWikiDocument;
-import com.xpn.xwiki.objects.BaseProperty;
 
 @Component
 @Singleton
@@ -29,6 +30,14 @@ public class ConfiguredRatingsManagerProvider implements Provider<RatingsManager
     @Inject
     ComponentManager componentManager;
 
+    @Inject
+    RatingsConfiguration configuration;
+
+    /**
+     * Ratings managers already looked up, by configured hint. The hint of each wiki is cached by the configuration.
+     */
+    private final Map<String, RatingsManager> ratingsManagers = new ConcurrentHashMap<String, RatingsManager>();
+
     /**
      * <p>
      * Retrieve the XWiki context from the current execution context
@@ -59,24 +68,22 @@ public class ConfiguredRatingsManagerProvider implements Provider<RatingsManager
     @Override
     public RatingsManager get() 
     {
-        // TODO implement
-        String ratingsHint = getXWiki().Param(RatingsManager.RATINGS_CONFIG_PARAM_PREFIX + RatingsManager.RATINGS_CONFIG_FIELDNAME_MANAGER_HINT, "default");
-        
-        try {
-            XWikiDocument configDoc = getXWiki().getDocument(RatingsManager.RATINGS_CONFIG_PAGE, getXWikiContext());
-            if (!configDoc.isNew() && configDoc.getObject(RatingsManager.RATINGS_CONFIG_CLASSNAME)!=null) {
-                BaseProperty prop = (BaseProperty) configDoc.getObject(RatingsManager.RATINGS_CONFIG_CLASSNAME).get(RatingsManager.RATINGS_CONFIG_FIELDNAME_MANAGER_HINT);
-                String hint = (prop==null) ? null : (String) prop.getValue();
-                ratingsHint = (hint==null) ? ratingsHint : hint;
+        String ratingsHint = configuration.getRatingsManagerHint();
+        RatingsManager ratingsManager = ratingsManagers.get(ratingsHint);
+        if (ratingsManager == null) {
+            ratingsManager = lookupRatingsManager(ratingsHint);
+            if (ratingsManager != null) {
+                ratingsManagers.put(ratingsHint, ratingsManager);
             }
-        } catch(Exception e) {
-            logger.error("Cannot read ratings config", e);
         }
+        return ratingsManager;
+    }
 
+    private RatingsManager lookupRatingsManager(String ratingsHint)
+    {
         try {
             return componentManager.getInstance(RatingsManager.class, ratingsHint);
         } catch (ComponentLookupException e) {
-            // TODO Auto-generated catch block
             logger.error("Error loading ratings manager component for hint " + ratingsHint, e);
             try {
                 return componentManager.getInstance(RatingsManager.class, "default");
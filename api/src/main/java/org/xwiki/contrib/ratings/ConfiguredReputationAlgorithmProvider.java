@@ -1,5 +1,8 @@
 package org.xwiki.contrib.ratings;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
@@ -12,12 +15,10 @@ import org.xwiki.context.Execution;
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.doc.XWikiDocument;
-import com.xpn.xwiki.objects.BaseProperty;
 
 @Component
 @Singleton
-public class ConfiguredReputationAlgorithmProvider implements Provider<ReputationAlgorithm> 
+public class ConfiguredReputationAlgorithmProvider implements Provider<ReputationAlgorithm>
 {
     
     @Inject 
@@ -28,6 +29,19 @@ public class ConfiguredReputationAlgorithmProvider implements Provider<Reputatio
 
     @Inject
     ComponentManager componentManager;
+
+    @Inject
+    RatingsConfiguration configuration;
+
+    /**
+     * Compiled Groovy reputation algorithms, by wiki and page. Dropped when the page is modified.
+     */
+    private final Map<String, Class< ? >> groovyAlgorithms = new ConcurrentHashMap<String, Class< ? >>();
+
+    /**
+     * Reputation algorithm components already looked up, by hint.
+     */
+    private final Map<String, ReputationAlgorithm> algorithms = new ConcurrentHashMap<String, ReputationAlgorithm>();
     
     @Inject
     Provider<RatingsManager> ratingsManagerProvider;
@@ -59,44 +73,74 @@ public class ConfiguredReputationAlgorithmProvider implements Provider<Reputatio
 
 
 
+    /**
+     * Drops the compiled Groovy reputation algorithm of a page, so that it is compiled again the next time it is used.
+     *
+     * @param page the page which was modified, prefixed by its wiki
+     */
+    public void invalidateGroovyAlgorithm(String page)
+    {
+        groovyAlgorithms.remove(page);
+    }
+
     @Override
     public ReputationAlgorithm get() 
     {
-        // TODO implement
-        String reputationAlgorithmHint = getXWiki().Param(RatingsManager.RATINGS_CONFIG_PARAM_PREFIX + RatingsManager.RATINGS_CONFIG_FIELDNAME_REPUTATIONALGORITHM_HINT, "default");
-        
-        try {
-            XWikiDocument configDoc = getXWiki().getDocument(RatingsManager.RATINGS_CONFIG_PAGE, getXWikiContext());
-            if (configDoc!=null && !configDoc.isNew() && configDoc.getObject(RatingsManager.RATINGS_CONFIG_CLASSNAME)!=null) {
-                BaseProperty prop = (BaseProperty) configDoc.getObject(RatingsManager.RATINGS_CONFIG_CLASSNAME).get(RatingsManager.RATINGS_CONFIG_FIELDNAME_REPUTATIONALGORITHM_HINT);
-                String hint = (prop==null) ? null : (String) prop.getValue();
-                reputationAlgorithmHint = (hint==null) ? reputationAlgorithmHint : hint;
-            }
-        } catch(Exception e) {
-            logger.error("Cannot read reputation algorithm config", e);
-        }
-        
+        String reputationAlgorithmHint = configuration.getReputationAlgorithmHint();
+
         // if the reputation algorithm hint is a page let's try to get the instance from groovy
         if (reputationAlgorithmHint.contains(".")) { 
             try {
-             ReputationAlgorithmGroovy reputationInstance = (ReputationAlgorithmGroovy) getXWiki().parseGroovyFromPage(reputationAlgorithmHint, getXWikiContext());
-             
-             if (reputationInstance!=null) {            
-                 reputationInstance.setComponentManager(componentManager);
-                 reputationInstance.setExecution(execution);
-                 reputationInstance.setXWikiContext(getXWikiContext());
-                 reputationInstance.setRatingsManager(ratingsManagerProvider.get());
-                 return reputationInstance;
-             }
+                ReputationAlgorithmGroovy reputationInstance = getGroovyAlgorithm(reputationAlgorithmHint);
+                if (reputationInstance != null) {
+                    reputationInstance.setComponentManager(componentManager);
+                    reputationInstance.setExecution(execution);
+                    reputationInstance.setXWikiContext(getXWikiContext());
+                    reputationInstance.setRatingsManager(ratingsManagerProvider.get());
+                    return reputationInstance;
+                }
             } catch (Throwable e) {
-                logger.error("Cannot instanciate Reputation algorithm from page " + reputationAlgorithmHint, e);                
+                logger.error("Cannot instanciate Reputation algorithm from page " + reputationAlgorithmHint, e);
+            }
+        }
+
+        ReputationAlgorithm reputationAlgorithm = algorithms.get(reputationAlgorithmHint);
+        if (reputationAlgorithm == null) {
+            reputationAlgorithm = lookupAlgorithm(reputationAlgorithmHint);
+            if (reputationAlgorithm != null) {
+                algorithms.put(reputationAlgorithmHint, reputationAlgorithm);
             }
-        } 
-         
+        }
+        return reputationAlgorithm;
+    }
+
+    /**
+     * The page is compiled the first time it is used, then a new instance of the compiled class is created for each
+     * call, since the algorithm is given the context of the current request.
+     *
+     * @param page the page holding the Groovy algorithm
+     * @return a new instance of the algorithm, or null if the page does not define one
+     */
+    private ReputationAlgorithmGroovy getGroovyAlgorithm(String page) throws Exception
+    {
+        String key = page.contains(":") ? page : getXWikiContext().getDatabase() + ":" + page;
+        Class< ? > algorithmClass = groovyAlgorithms.get(key);
+        if (algorithmClass != null) {
+            return (ReputationAlgorithmGroovy) algorithmClass.newInstance();
+        }
+
+        Object algorithm = getXWiki().parseGroovyFromPage(page, getXWikiContext());
+        if (algorithm != null) {
+            groovyAlgorithms.put(key, algorithm.getClass());
+        }
+        return (ReputationAlgorithmGroovy) algorithm;
+    }
+
+    private ReputationAlgorithm lookupAlgorithm(String reputationAlgorithmHint)
+    {
         try {
             return componentManager.getInstance(ReputationAlgorithm.class, reputationAlgorithmHint);
         } catch (ComponentLookupException e) {
-            // TODO Auto-generated catch block
             logger.error("Error loading ratings manager component for hint " + reputationAlgorithmHint, e);
             try {
                 return componentManager.getInstance(ReputationAlgorithm.class, "default");
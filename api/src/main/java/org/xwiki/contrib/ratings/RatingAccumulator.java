@@ -0,0 +1,52 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings;
+
+/**
+ * Computes an average rating from the votes of a document, added one by one.
+ *
+ * @version $Id$
+ * @see RatingAggregator#newAccumulator()
+ */
+public interface RatingAccumulator
+{
+    /**
+     * @param vote a vote of the document
+     * @param weight the reputation of the author of the vote, 1 if the author has no reputation and 0 if the author
+     *            is the rated document itself, only computed when {@link RatingAggregator#isReputationWeighted()}
+     */
+    void addVote(int vote, float weight);
+
+    /**
+     * Adds several identical votes at once, as counted by a query grouping the votes of a document.
+     *
+     * @param vote a vote of the document
+     * @param weight the reputation of the authors of the votes, see {@link #addVote(int, float)}
+     * @param count the number of votes to add
+     */
+    void addVotes(int vote, float weight, long count);
+
+    /**
+     * Sets the number of votes, the average vote and the state of an average rating from the votes added so far.
+     *
+     * @param averageRating the average rating to set
+     */
+    void store(AverageRating averageRating);
+}
@@ -0,0 +1,53 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Method used to compute the average rating of a document from its votes. The hint of the component is the name of
+ * the method, as passed to {@link RatingsManager#getAverageRating(String, String)}.
+ *
+ * @version $Id$
+ */
+@Role
+public interface RatingAggregator
+{
+    /**
+     * @return true if the votes given to {@link RatingAccumulator#addVote(int, float)} need to be weighted by the
+     *         reputation of their author
+     */
+    boolean isReputationWeighted();
+
+    /**
+     * @return a new accumulator, used to compute the average rating from all the ratings of a document
+     */
+    RatingAccumulator newAccumulator();
+
+    /**
+     * Updates a stored average rating after a vote was added, changed or removed, from its values and state only.
+     *
+     * @param averageRating the average rating to update
+     * @param oldVote the previous vote, 0 if the vote is new
+     * @param newVote the new vote, 0 if the vote was removed
+     * @return false if the average rating could not be updated and has to be computed again from all the ratings
+     */
+    boolean updateVote(AverageRating averageRating, int oldVote, int newVote);
+}
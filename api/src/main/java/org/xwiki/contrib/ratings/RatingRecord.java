@@ -0,0 +1,72 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings;
+
+import java.util.Date;
+
+/**
+ * A vote to import with {@link RatingsManager#importRatings(java.util.Iterator)}.
+ *
+ * @version $Id$
+ */
+public class RatingRecord
+{
+    private final String documentName;
+
+    private final String author;
+
+    private final int vote;
+
+    private final Date date;
+
+    /**
+     * @param documentName the rated document
+     * @param author the author of the vote
+     * @param vote the vote
+     * @param date the date of the vote, null for the date of the import
+     */
+    public RatingRecord(String documentName, String author, int vote, Date date)
+    {
+        this.documentName = documentName;
+        this.author = author;
+        this.vote = vote;
+        this.date = (date == null) ? null : (Date) date.clone();
+    }
+
+    public String getDocumentName()
+    {
+        return documentName;
+    }
+
+    public String getAuthor()
+    {
+        return author;
+    }
+
+    public int getVote()
+    {
+        return vote;
+    }
+
+    public Date getDate()
+    {
+        return (date == null) ? null : (Date) date.clone();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Configuration of the ratings of the current wiki. Each value is read from the wiki preferences, falling back on
+ * xwiki.cfg, except for the component hints which are read from the {@link RatingsManager#RATINGS_CONFIG_PAGE} page.
+ *
+ * @version $Id$
+ */
+@Role
+public interface RatingsConfiguration
+{
+    /**
+     * @return true if ratings are enabled
+     */
+    boolean hasRatings();
+
+    /**
+     * @return true if average ratings are stored instead of being computed on each request
+     */
+    boolean isAverageRatingStored();
+
+    /**
+     * @return the maximum number of documents whose computed average ratings are cached when average ratings are not
+     *         stored, 0 to disable the cache
+     */
+    int getAverageRatingCacheSize();
+
+    /**
+     * @return the time in seconds after which a cached computed average rating is computed again
+     */
+    int getAverageRatingCacheTimeToLive();
+
+    /**
+     * @return true if the reputation of users is stored
+     */
+    boolean isReputationStored();
+
+    /**
+     * @return true if the reputation of users is computed
+     */
+    boolean hasReputation();
+
+    /**
+     * @return the methods used to compute average ratings
+     */
+    String[] getDefaultReputationMethods();
+
+    /**
+     * @return true if votes are buffered in memory and saved periodically
+     */
+    boolean isWriteBehind();
+
+    /**
+     * @return the delay in seconds between two saves of the buffered votes
+     */
+    long getWriteBehindInterval();
+
+    /**
+     * @return the number of threads updating reputations after votes, 0 to update them in the thread of the vote
+     */
+    int getReputationUpdateThreads();
+
+    /**
+     * @return the maximum number of reputation updates waiting for a thread, before votes run them themselves
+     */
+    int getReputationUpdateQueueSize();
+
+    /**
+     * @return the score ordering the best rated documents: "average" for the average vote, "votes" for the number of
+     *         votes, "bayesian" for the average vote pulled towards {@link #getTopRatedPriorVote()}
+     */
+    String getTopRatedScore();
+
+    /**
+     * @return the vote towards which the "bayesian" score pulls the average of documents having few votes
+     */
+    float getTopRatedPriorVote();
+
+    /**
+     * @return the number of votes the prior vote of the "bayesian" score counts for
+     */
+    int getTopRatedPriorWeight();
+
+    /**
+     * @return true if saving a rating creates a new revision of the document holding it
+     */
+    boolean isVersioned();
+
+    /**
+     * @return the hint of the ratings manager to use
+     */
+    String getRatingsManagerHint();
+
+    /**
+     * @return the hint of the reputation algorithm to use, or the name of a page holding a Groovy implementation
+     */
+    String getReputationAlgorithmHint();
+
+    /**
+     * @return the space holding the rating pages of the separate page manager, empty to use the rated page space
+     */
+    String getSeparatePageSpaceName();
+
+    /**
+     * @return true if the separate page manager uses a ratings space for each rated space
+     */
+    boolean hasSeparatePageSpacePerSpace();
+}
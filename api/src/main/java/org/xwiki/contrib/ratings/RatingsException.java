@@ -40,6 +40,10 @@ public class RatingsException extends XWikiException
 
     public static final int ERROR_RATINGS_SAVERATING_NULLDOCUMENT = 1120005;
 
+    public static final int ERROR_RATINGS_QUERY = 1120006;
+
+    public static final int ERROR_RATINGS_INVALID_CURSOR = 1120007;
+
     public RatingsException()
     {
     }
@@ -0,0 +1,218 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result of {@link RatingsManager#importRatings(java.util.Iterator)}. Records are imported by batches: when an import
+ * stops before the end of the records, it can be resumed by importing again the records following
+ * {@link #getResumePosition()}. The resume position moves past a batch even when some of its documents failed, so
+ * the records of the {@link #getFailedDocuments() failed documents} are not after it and must be imported again by
+ * the caller as well. Importing a record again replaces the vote of its author, so that records imported twice are
+ * counted once. The average ratings of the documents of a batch are computed before the resume position moves past
+ * it, so that the average ratings of the documents imported before an interruption are up to date.
+ *
+ * @version $Id$
+ */
+public class RatingsImportReport
+{
+    private final long startTime = System.currentTimeMillis();
+
+    private long endTime;
+
+    private long recordCount;
+
+    private long skippedRecordCount;
+
+    private long importedRatingCount;
+
+    private long documentCount;
+
+    private long resumePosition;
+
+    private final Map<String, String> failedDocuments = new LinkedHashMap<String, String>();
+
+    private String failure;
+
+    private boolean reputationRecomputed;
+
+    /**
+     * @return the number of records read
+     */
+    public long getRecordCount()
+    {
+        return recordCount;
+    }
+
+    /**
+     * @return the number of records ignored because they have no document, no author or no vote
+     */
+    public long getSkippedRecordCount()
+    {
+        return skippedRecordCount;
+    }
+
+    /**
+     * @return the number of ratings written, records replaced by a later record of the same author on the same
+     *         document in the same batch being written once
+     */
+    public long getImportedRatingCount()
+    {
+        return importedRatingCount;
+    }
+
+    /**
+     * @return the number of documents written, a document being counted once per batch holding ratings on it
+     */
+    public long getDocumentCount()
+    {
+        return documentCount;
+    }
+
+    /**
+     * @return the number of records to skip when resuming, including the records of the batches holding failed
+     *         documents, which are only imported again from {@link #getFailedDocuments()}
+     */
+    public long getResumePosition()
+    {
+        return resumePosition;
+    }
+
+    /**
+     * @return the error message of each document whose ratings or average ratings could not be written, by document
+     *         name; their records must be imported again when resuming, as they are before the resume position
+     */
+    public Map<String, String> getFailedDocuments()
+    {
+        return Collections.unmodifiableMap(failedDocuments);
+    }
+
+    /**
+     * @return the error which stopped the import before the end of the records, or null if all the records were read
+     */
+    public String getFailure()
+    {
+        return failure;
+    }
+
+    /**
+     * @return true if the reputations were recomputed after the import
+     */
+    public boolean isReputationRecomputed()
+    {
+        return reputationRecomputed;
+    }
+
+    /**
+     * @return the duration of the import in milliseconds, up to now if it is still running
+     */
+    public long getDuration()
+    {
+        return ((endTime == 0) ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    /**
+     * @return the number of ratings written per second
+     */
+    public double getRatingsPerSecond()
+    {
+        long duration = getDuration();
+        return (duration == 0) ? importedRatingCount : importedRatingCount * 1000.0 / duration;
+    }
+
+    /**
+     * Counts a record read.
+     *
+     * @param skipped true if the record is invalid and ignored
+     */
+    public void addRecord(boolean skipped)
+    {
+        recordCount++;
+        if (skipped) {
+            skippedRecordCount++;
+        }
+    }
+
+    /**
+     * Counts a document written.
+     *
+     * @param ratingCount the number of ratings written in the document
+     */
+    public void addDocument(int ratingCount)
+    {
+        documentCount++;
+        importedRatingCount += ratingCount;
+    }
+
+    /**
+     * @param documentName a document whose ratings could not be written
+     * @param error the error message
+     */
+    public void addFailedDocument(String documentName, String error)
+    {
+        failedDocuments.put(documentName, error);
+    }
+
+    /**
+     * Moves the resume position past a batch, whether or not all its documents were written: the records of the
+     * failed documents of the batch are then only known from {@link #getFailedDocuments()}.
+     *
+     * @param resumePosition the number of records whose import is complete or failed with their document
+     */
+    public void setResumePosition(long resumePosition)
+    {
+        this.resumePosition = resumePosition;
+    }
+
+    /**
+     * @param failure the error which stopped the import before the end of the records
+     */
+    public void setFailure(String failure)
+    {
+        this.failure = failure;
+    }
+
+    /**
+     * @param reputationRecomputed true if the reputations were recomputed after the import
+     */
+    public void setReputationRecomputed(boolean reputationRecomputed)
+    {
+        this.reputationRecomputed = reputationRecomputed;
+    }
+
+    /**
+     * Marks the end of the import.
+     */
+    public void finish()
+    {
+        endTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString()
+    {
+        return importedRatingCount + " ratings imported in " + documentCount + " documents from " + recordCount
+            + " records (" + skippedRecordCount + " skipped, " + failedDocuments.size() + " failed documents) in "
+            + getDuration() + " ms";
+    }
+}
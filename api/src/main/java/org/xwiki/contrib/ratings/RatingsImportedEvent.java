@@ -0,0 +1,55 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings;
+
+import org.xwiki.observation.event.Event;
+
+/**
+ * Sent for each document whose ratings were written by a batch of
+ * {@link RatingsManager#importRatings(java.util.Iterator)}, once its average ratings are computed, instead of an
+ * {@link UpdateRatingEvent} for each imported vote. It is not sent for the documents whose ratings or average ratings
+ * could not be written.
+ *
+ * @version $Id$
+ */
+public class RatingsImportedEvent implements Event
+{
+    private String documentName;
+
+    public RatingsImportedEvent()
+    {
+    }
+
+    public RatingsImportedEvent(String documentName)
+    {
+        this.documentName = documentName;
+    }
+
+    public String getDocumentName()
+    {
+        return documentName;
+    }
+
+    @Override
+    public boolean matches(Object otherEvent)
+    {
+        return otherEvent instanceof RatingsImportedEvent;
+    }
+}
@@ -19,7 +19,10 @@
  */
 package org.xwiki.contrib.ratings;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.xwiki.component.annotation.Role;
 
@@ -35,6 +38,7 @@ public interface RatingsManager
     public static final String AVERAGERATING_CLASS_FIELDNAME_NBVOTES = "nbvotes";
     public static final String AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE = "averagevote";
     public static final String AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE_METHOD = "method";
+    public static final String AVERAGERATING_CLASS_FIELDNAME_STATE = "state";
     public static final String RATING_REPUTATION_METHOD_BALANCED = "balanced";
     public static final String RATING_REPUTATION_METHOD_AVERAGE = "average";
     public static final String RATING_REPUTATION_METHOD_DEFAULT = "average";
@@ -50,16 +54,53 @@ public interface RatingsManager
     List<Rating> getRatings(String documentName, int start, int count, boolean asc)
         throws RatingsException;
 
+    /**
+     * Iterates over all the ratings of a document without reading them all at once, so that exports and computations
+     * over documents having many ratings run in constant memory. Ratings are read from the store as the iteration
+     * goes.
+     *
+     * @param documentName the rated document
+     * @param asc true to iterate from the oldest rating, false from the most recent one
+     * @return an iterator over the ratings of the document, which throws a {@link RatingsIterationException} when the
+     *         next ratings cannot be read
+     * @throws RatingsException when an error occurs while starting to read the ratings
+     */
+    Iterator<Rating> getRatings(String documentName, boolean asc) throws RatingsException;
+
     Rating getRating(String ratingId) throws RatingsException;
 
     Rating getRating(String documentName, int id) throws RatingsException;
 
     Rating getRating(String documentName, String user) throws RatingsException;
 
+    /**
+     * Reads the ratings of an author on many documents at once, with a few queries instead of one per document.
+     *
+     * @param documentNames the rated documents
+     * @param user the author of the ratings
+     * @return the ratings by document name, in the order of the given documents, without the documents the author
+     *         did not rate
+     * @throws RatingsException when an error occurs while reading the ratings
+     */
+    Map<String, Rating> getRatings(Collection<String> documentNames, String user) throws RatingsException;
+
     Rating setRating(String documentName, String author, int vote) throws RatingsException;
 
     boolean removeRating(Rating rating) throws RatingsException;
 
+    /**
+     * Imports votes in bulk, for migrations. Records are read by batches and grouped by document: the ratings of each
+     * document are written once per batch, then its stored average ratings are computed, without sending an
+     * {@link UpdateRatingEvent} for each vote. Once all the batches are written, the reputations are recomputed, along
+     * with the average ratings weighted by reputation. An error on a document is reported and does not stop the
+     * import.
+     *
+     * @param records the votes to import, ideally sorted by document
+     * @return the report of the import
+     * @throws RatingsException when an error occurs outside of the import of a document
+     */
+    RatingsImportReport importRatings(Iterator<RatingRecord> records) throws RatingsException;
+
     // average rating and reputation
 
     boolean isAverageRatingStored();
@@ -67,6 +108,12 @@ public interface RatingsManager
     boolean isReputationStored();
 
     boolean hasReputation();
+
+    /**
+     * @return the number of hits, misses and invalidations of the cache of the average ratings computed when they are
+     *         not stored, by counter name, or null if the cache is disabled
+     */
+    Map<String, Long> getAverageRatingCacheStatistics();
     
     AverageRating getUserReputation(String username) throws ReputationException;
         
@@ -81,6 +128,17 @@ public interface RatingsManager
     AverageRating getAverageRating(String documentName, String method, boolean create)
         throws RatingsException;
 
+    /**
+     * Reads the average ratings of many documents at once, with a few queries instead of one per document.
+     *
+     * @param documentNames the rated documents
+     * @param method the method used to compute the average ratings
+     * @return the average ratings by document name, in the order of the given documents
+     * @throws RatingsException when an error occurs while reading the average ratings
+     */
+    Map<String, AverageRating> getAverageRatings(Collection<String> documentNames, String method)
+        throws RatingsException;
+
     AverageRating getAverageRatingFromQuery(String fromsql, String wheresql)
         throws RatingsException;
 
@@ -95,4 +153,13 @@ public interface RatingsManager
     void updateAverageRatings(String documentName, Rating rating, int oldVote)
         throws RatingsException;
 
+    /**
+     * Recomputes from scratch and stores the average ratings of a document, for all the default methods. Stored
+     * averages are otherwise maintained incrementally, so this is only needed to repair them.
+     *
+     * @param documentName the document for which to recompute the average ratings
+     * @throws RatingsException when an error occurs while computing or saving the average ratings
+     */
+    void recalcAverageRatings(String documentName) throws RatingsException;
+
 }
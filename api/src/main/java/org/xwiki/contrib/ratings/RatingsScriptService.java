@@ -22,8 +22,13 @@ package org.xwiki.contrib.ratings;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.api.Document;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -50,6 +55,12 @@ public class RatingsScriptService implements ScriptService
 
     @Inject
     private Provider<ReputationAlgorithm> reputationAlgorithmProvider;
+
+    @Inject
+    private TopRatedDocuments topRatedDocuments;
+
+    @Inject
+    private ReputationUpdateStatistics reputationUpdateStatistics;
  
     protected static List<RatingApi> wrapRatings(List<Rating> ratings)
     {
@@ -76,6 +87,14 @@ public class RatingsScriptService implements ScriptService
     {
         return (XWikiContext) execution.getContext().getProperty("xwikicontext");
     }
+
+    /**
+     * @return the ratings manager of the current wiki
+     */
+    private RatingsManager getRatingsManager()
+    {
+        return ratingsManagerProvider.get();
+    }
     
     
     public RatingApi setRating(Document doc, String author, int vote)
@@ -83,7 +102,7 @@ public class RatingsScriptService implements ScriptService
         // TODO protect this with programming rights
         // and add a setRating(docName), not protected but for which the author is retrieved from getXWikiContext().
         try {
-            return new RatingApi(ratingsManagerProvider.get().setRating(doc.getFullName(), author, vote));
+            return new RatingApi(getRatingsManager().setRating(doc.getFullName(), author, vote));
         } catch (Throwable e) {
             getXWikiContext().put("exception", e);
             return null;
@@ -93,7 +112,10 @@ public class RatingsScriptService implements ScriptService
     public RatingApi getRating(Document doc, String author)
     {
         try {
-            Rating rating = ratingsManagerProvider.get().getRating(doc.getFullName(), author);
+            // the rating of the current user is displayed with each rated document of the page, the ratings manager
+            // reads it once per request
+            Rating rating = getRatingsManager().getRatings(Collections.singletonList(doc.getFullName()), author)
+                .get(doc.getFullName());
             if (rating == null) {
                 return null;
             }
@@ -112,7 +134,45 @@ public class RatingsScriptService implements ScriptService
     public List<RatingApi> getRatings(Document doc, int start, int count, boolean asc)
     {
         try {
-            return wrapRatings(ratingsManagerProvider.get().getRatings(doc.getFullName(), start, count, asc));
+            return wrapRatings(getRatingsManager().getRatings(doc.getFullName(), start, count, asc));
+        } catch (Exception e) {
+            getXWikiContext().put("exception", e);
+            return null;
+        }
+    }
+
+    /**
+     * Iterates over all the ratings of a document, reading them from the store as the iteration goes, so that exports
+     * of documents having many ratings do not load them all at once.
+     *
+     * @param doc the rated document
+     * @param asc true to iterate from the oldest rating, false from the most recent one
+     * @return an iterator over the ratings of the document, or null if an error occurred
+     */
+    public Iterator<RatingApi> getRatingsIterator(Document doc, boolean asc)
+    {
+        try {
+            final Iterator<Rating> ratings = getRatingsManager().getRatings(doc.getFullName(), asc);
+            return new Iterator<RatingApi>()
+            {
+                @Override
+                public boolean hasNext()
+                {
+                    return ratings.hasNext();
+                }
+
+                @Override
+                public RatingApi next()
+                {
+                    return new RatingApi(ratings.next());
+                }
+
+                @Override
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
         } catch (Exception e) {
             getXWikiContext().put("exception", e);
             return null;
@@ -122,7 +182,7 @@ public class RatingsScriptService implements ScriptService
     public AverageRatingApi getAverageRating(Document doc, String method)
     {
         try {
-            return new AverageRatingApi(ratingsManagerProvider.get().getAverageRating(doc.getFullName(), method));
+            return new AverageRatingApi(getRatingsManager().getAverageRating(doc.getFullName(), method));
         } catch (Throwable e) {
             getXWikiContext().put("exception", e);
             return null;
@@ -132,17 +192,100 @@ public class RatingsScriptService implements ScriptService
     public AverageRatingApi getAverageRating(Document doc)
     {
         try {
-            return new AverageRatingApi(ratingsManagerProvider.get().getAverageRating(doc.getFullName()));
+            return new AverageRatingApi(getRatingsManager().getAverageRating(doc.getFullName()));
         } catch (Throwable e) {
             getXWikiContext().put("exception", e);
             return null;
         }
     }
 
+    /**
+     * Reads the average ratings of many documents at once, for listings displaying the rating of each document.
+     *
+     * @param documents the rated documents, as documents or document names
+     * @param method the method of the average ratings
+     * @return the average ratings by document name, in the order of the given documents, or null if they cannot be
+     *         read
+     */
+    public Map<String, AverageRatingApi> getAverageRatings(Collection<?> documents, String method)
+    {
+        try {
+            return wrapAverageRatings(getRatingsManager().getAverageRatings(getDocumentNames(documents), method));
+        } catch (Throwable e) {
+            getXWikiContext().put("exception", e);
+            return null;
+        }
+    }
+
+    public Map<String, AverageRatingApi> getAverageRatings(Collection<?> documents)
+    {
+        return getAverageRatings(documents, RatingsManager.RATING_REPUTATION_METHOD_AVERAGE);
+    }
+
+    /**
+     * Reads the ratings of an author on many documents at once, for listings displaying the vote of the current user
+     * on each document.
+     *
+     * @param documents the rated documents, as documents or document names
+     * @param author the author of the ratings
+     * @return the ratings by document name, in the order of the given documents, without the documents the author did
+     *         not rate, or null if they cannot be read
+     */
+    public Map<String, RatingApi> getRatings(Collection<?> documents, String author)
+    {
+        try {
+            Map<String, RatingApi> result = new LinkedHashMap<String, RatingApi>();
+            for (Map.Entry<String, Rating> rating : getRatingsManager().getRatings(getDocumentNames(documents), author)
+                .entrySet()) {
+                result.put(rating.getKey(), new RatingApi(rating.getValue()));
+            }
+            return result;
+        } catch (Throwable e) {
+            getXWikiContext().put("exception", e);
+            return null;
+        }
+    }
+
+    private static List<String> getDocumentNames(Collection<?> documents)
+    {
+        List<String> documentNames = new ArrayList<String>(documents.size());
+        for (Object document : documents) {
+            if (document instanceof Document) {
+                documentNames.add(((Document) document).getFullName());
+            } else if (document != null) {
+                documentNames.add(document.toString());
+            }
+        }
+        return documentNames;
+    }
+
+    /**
+     * Returns the number of votes given to a document for each vote value, read from its average rating.
+     *
+     * @param doc the rated document
+     * @param method the method of the average rating
+     * @return the number of votes by vote value, or null if the method does not keep them
+     */
+    public Map<Integer, Integer> getVoteCounts(Document doc, String method)
+    {
+        try {
+            return new AverageRatingApi(getRatingsManager().getAverageRating(doc.getFullName(), method))
+                .getVoteCounts();
+        } catch (Throwable e) {
+            getXWikiContext().put("exception", e);
+            return null;
+        }
+    }
+
+    public Map<Integer, Integer> getVoteCounts(Document doc)
+    {
+        return getVoteCounts(doc, RatingsManager.RATING_REPUTATION_METHOD_AVERAGE);
+    }
+
     public AverageRatingApi getAverageRating(String fromsql, String wheresql, String method)
     {
         try {
-            return new AverageRatingApi(ratingsManagerProvider.get().getAverageRatingFromQuery(fromsql, wheresql, method));
+            return new AverageRatingApi(getRatingsManager().getAverageRatingFromQuery(fromsql, wheresql, method));
         } catch (Throwable e) {
             getXWikiContext().put("exception", e);
             return null;
@@ -152,17 +295,149 @@ public class RatingsScriptService implements ScriptService
     public AverageRatingApi getAverageRating(String fromsql, String wheresql)
     {
         try {
-            return new AverageRatingApi(ratingsManagerProvider.get().getAverageRatingFromQuery(fromsql, wheresql));
+            return new AverageRatingApi(getRatingsManager().getAverageRatingFromQuery(fromsql, wheresql));
+        } catch (Throwable e) {
+            getXWikiContext().put("exception", e);
+            return null;
+        }
+    }
+
+    /**
+     * Lists the best rated documents from memory, without querying the database. Requires stored average ratings.
+     *
+     * @param space the space of the documents, null or empty for all the documents of the current wiki
+     * @param count the maximum number of documents to return
+     * @param method the method used to compute the average ratings
+     * @return the average ratings of the best rated documents by document name, best first, or null if they cannot
+     *         be listed
+     */
+    public Map<String, AverageRatingApi> getTopRated(String space, int count, String method)
+    {
+        try {
+            return wrapAverageRatings(topRatedDocuments.getTopRated(space, count, method));
+        } catch (Throwable e) {
+            getXWikiContext().put("exception", e);
+            return null;
+        }
+    }
+
+    public Map<String, AverageRatingApi> getTopRated(String space, int count)
+    {
+        return getTopRated(space, count, RatingsManager.RATING_REPUTATION_METHOD_AVERAGE);
+    }
+
+    /**
+     * Lists the rated documents from memory, best first, one page at a time. Requires stored average ratings. The
+     * next page starts after the cursor of the last document of the previous page, see
+     * {@link #getRatingCursor(String, AverageRatingApi)}, so that pages do not skip or repeat documents when votes
+     * change the ranking between two requests.
+     *
+     * @param space the space of the documents, null or empty for all the documents of the current wiki
+     * @param after the cursor of the last document of the previous page, null or empty for the first page
+     * @param count the maximum number of documents to return
+     * @param method the method used to compute the average ratings
+     * @return the average ratings of the documents of the page by document name, or null if they cannot be listed
+     */
+    public Map<String, AverageRatingApi> getRatedDocuments(String space, String after, int count, String method)
+    {
+        try {
+            return wrapAverageRatings(topRatedDocuments.getRatedDocuments(space, after, count, method));
         } catch (Throwable e) {
             getXWikiContext().put("exception", e);
             return null;
         }
     }
 
+    public Map<String, AverageRatingApi> getRatedDocuments(String space, String after, int count)
+    {
+        return getRatedDocuments(space, after, count, RatingsManager.RATING_REPUTATION_METHOD_AVERAGE);
+    }
+
+    /**
+     * @param documentName the name of a document listed by {@link #getRatedDocuments(String, String, int, String)}
+     * @param averageRating the average rating listed for the document
+     * @return the cursor to pass to get the documents ranked after this one
+     */
+    public String getRatingCursor(String documentName, AverageRatingApi averageRating)
+    {
+        return topRatedDocuments.getCursor(documentName, averageRating.averageRating);
+    }
+
+    private Map<String, AverageRatingApi> wrapAverageRatings(Map<String, AverageRating> averageRatings)
+    {
+        if (averageRatings == null) {
+            return null;
+        }
+        Map<String, AverageRatingApi> result = new LinkedHashMap<String, AverageRatingApi>();
+        for (Map.Entry<String, AverageRating> averageRating : averageRatings.entrySet()) {
+            result.put(averageRating.getKey(), new AverageRatingApi(averageRating.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Recomputes the stored average ratings of a document from all its ratings. Requires admin rights.
+     *
+     * @param doc the document for which to recompute the average ratings
+     * @return true if the average ratings were recomputed
+     */
+    public boolean recalcAverageRatings(Document doc)
+    {
+        try {
+            if (!getXWikiContext().getWiki().getRightService().hasAdminRights(getXWikiContext())) {
+                return false;
+            }
+            getRatingsManager().recalcAverageRatings(doc.getFullName());
+            return true;
+        } catch (Throwable e) {
+            getXWikiContext().put("exception", e);
+            return false;
+        }
+    }
+
     public AverageRatingApi getUserReputation(String username)
     {
         try {
-            return new AverageRatingApi(ratingsManagerProvider.get().getUserReputation(username));
+            return new AverageRatingApi(getRatingsManager().getUserReputation(username));
+        } catch (Throwable e) {
+            getXWikiContext().put("exception", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the counters of the queue of reputation updates: updates submitted, coalesced with a queued update,
+     * completed, failed, run by the voter because the queue was full, and updates currently queued or running.
+     * Requires admin rights.
+     *
+     * @return the counters by name, or null if they cannot be read
+     */
+    public Map<String, Long> getReputationUpdateStatistics()
+    {
+        try {
+            if (!getXWikiContext().getWiki().getRightService().hasAdminRights(getXWikiContext())) {
+                return null;
+            }
+            return reputationUpdateStatistics.getStatistics();
+        } catch (Throwable e) {
+            getXWikiContext().put("exception", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the counters of the cache of the average ratings computed when average ratings are not stored: cache
+     * hits, misses and invalidations. Requires admin rights.
+     *
+     * @return the counters by name, or null if they cannot be read or the cache is disabled
+     */
+    public Map<String, Long> getAverageRatingCacheStatistics()
+    {
+        try {
+            if (!getXWikiContext().getWiki().getRightService().hasAdminRights(getXWikiContext())) {
+                return null;
+            }
+            return getRatingsManager().getAverageRatingCacheStatistics();
         } catch (Throwable e) {
             getXWikiContext().put("exception", e);
             return null;
@@ -0,0 +1,68 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings;
+
+import java.util.Map;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Keeps the rated documents of each wiki ordered by score, so that the best rated documents are listed and paged
+ * through without querying the database. The score is configured by
+ * {@link RatingsConfiguration#getTopRatedScore()}.
+ *
+ * @version $Id$
+ */
+@Role
+public interface TopRatedDocuments
+{
+    /**
+     * @param space the space of the documents, null or empty for all the documents of the current wiki
+     * @param count the maximum number of documents to return
+     * @param method the method used to compute the average ratings
+     * @return the average ratings of the best rated documents by document name, best first, or null if average
+     *         ratings are not stored
+     * @throws RatingsException when an error occurs while reading the stored average ratings
+     */
+    Map<String, AverageRating> getTopRated(String space, int count, String method) throws RatingsException;
+
+    /**
+     * Pages through the rated documents, best first. Pages are delimited by the position of the last document of the
+     * previous page, so that they stay consistent while documents are rated.
+     *
+     * @param space the space of the documents, null or empty for all the documents of the current wiki
+     * @param after the cursor of the last document of the previous page, see {@link #getCursor}, null or empty for
+     *            the first page
+     * @param count the maximum number of documents to return
+     * @param method the method used to compute the average ratings
+     * @return the average ratings of the documents of the page by document name, best first, or null if average
+     *         ratings are not stored
+     * @throws RatingsException when the cursor is not valid or an error occurs while reading the average ratings
+     */
+    Map<String, AverageRating> getRatedDocuments(String space, String after, int count, String method)
+        throws RatingsException;
+
+    /**
+     * @param documentName a document returned by {@link #getRatedDocuments}
+     * @param averageRating the average rating returned for the document
+     * @return the cursor to pass to {@link #getRatedDocuments} to get the documents following this one
+     */
+    String getCursor(String documentName, AverageRating averageRating);
+}
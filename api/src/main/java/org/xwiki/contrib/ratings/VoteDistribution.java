@@ -0,0 +1,37 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings;
+
+import java.util.Map;
+
+/**
+ * Implemented by the average ratings which know how many times each vote value was given.
+ *
+ * @version $Id$
+ * @see AverageRatingApi#getVoteCounts()
+ */
+public interface VoteDistribution
+{
+    /**
+     * @return the number of votes for each vote value, in increasing order of vote, or null if the method of the
+     *         average rating does not keep them
+     */
+    Map<Integer, Integer> getVoteCounts();
+}
@@ -19,19 +19,53 @@
  */
 package org.xwiki.contrib.ratings.internal;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
 
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
 import org.xwiki.contrib.ratings.AverageRating;
 import org.xwiki.contrib.ratings.Rating;
+import org.xwiki.contrib.ratings.RatingAccumulator;
+import org.xwiki.contrib.ratings.RatingAggregator;
+import org.xwiki.contrib.ratings.RatingRecord;
+import org.xwiki.contrib.ratings.RatingsConfiguration;
 import org.xwiki.contrib.ratings.RatingsException;
+import org.xwiki.contrib.ratings.RatingsImportReport;
+import org.xwiki.contrib.ratings.RatingsImportedEvent;
+import org.xwiki.contrib.ratings.RatingsIterationException;
 import org.xwiki.contrib.ratings.RatingsManager;
+import org.xwiki.contrib.ratings.ReputationAlgorithm;
 import org.xwiki.contrib.ratings.ReputationException;
+import org.xwiki.contrib.ratings.UpdateRatingEvent;
+import org.xwiki.observation.EventListener;
 import org.xwiki.observation.ObservationManager;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
@@ -51,8 +85,146 @@ public abstract class AbstractRatingsManager implements RatingsManager
     @Inject
     ObservationManager observationManager;
     
+    @Inject
+    QueryManager queryManager;
+
+    @Inject
+    RatingsConfiguration configuration;
+
+    @Inject
+    ComponentManager componentManager;
+
+    @Inject
+    CacheManager cacheManager;
+
+    /**
+     * Keeps the {@link #averageRatingCache} up to date.
+     */
+    @Inject
+    @Named(AverageRatingCacheListener.NAME)
+    EventListener averageRatingCacheListener;
+
+    @Inject
+    Provider<ReputationAlgorithm> reputationAlgorithmProvider;
+
     protected static final Logger LOGGER = LoggerFactory.getLogger(AbstractRatingsManager.class);
-    
+
+    /**
+     * Joins the average rating objects of the documents selected by {@link #getAverageRatingFromQuery}.
+     */
+    private static final String QUERY_AVERAGE_RATINGS_FROM =
+        ", BaseObject as avgobj, FloatProperty as avgvote, StringProperty as avgmethod ";
+
+    private static final String QUERY_AVERAGE_RATINGS_WHERE =
+        "doc.fullName=avgobj.name and avgobj.className=:averageRatingsClassName"
+            + " and avgobj.id=avgvote.id.id and avgvote.id.name='" + AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE + "'"
+            + " and avgobj.id=avgmethod.id.id and avgmethod.id.name='"
+            + AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE_METHOD + "' and avgmethod.value=:method";
+
+    /**
+     * Reads the stored reputations of a batch of users.
+     */
+    private static final String QUERY_REPUTATIONS = "select avgobj.name, avgvote.value"
+        + " from BaseObject as avgobj, FloatProperty as avgvote, StringProperty as avgmethod"
+        + " where avgobj.name in (:names) and avgobj.className=:averageRatingsClassName"
+        + " and avgobj.id=avgvote.id.id and avgvote.id.name='" + AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE + "'"
+        + " and avgobj.id=avgmethod.id.id and avgmethod.id.name='" + AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE_METHOD
+        + "' and avgmethod.value=:method";
+
+    /**
+     * Joins all the stored average ratings of a method having votes, the selected columns are prepended.
+     */
+    private static final String QUERY_STORED_AVERAGE_RATINGS_FROM =
+        " from BaseObject as avgobj, FloatProperty as avgvote, IntegerProperty as nbvotes,"
+        + " StringProperty as avgmethod where avgobj.className=:averageRatingsClassName"
+        + " and avgobj.id=avgvote.id.id and avgvote.id.name='" + AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE + "'"
+        + " and avgobj.id=nbvotes.id.id and nbvotes.id.name='" + AVERAGERATING_CLASS_FIELDNAME_NBVOTES + "'"
+        + " and nbvotes.value > 0 and avgobj.id=avgmethod.id.id and avgmethod.id.name='"
+        + AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE_METHOD + "' and avgmethod.value=:method";
+
+    /**
+     * Reads all the stored average ratings of a method having votes.
+     */
+    private static final String QUERY_STORED_AVERAGE_RATINGS =
+        "select avgobj.name, avgvote.value, nbvotes.value" + QUERY_STORED_AVERAGE_RATINGS_FROM;
+
+    /**
+     * Counts the rated documents and their votes, and adds up their votes weighted by their average vote, from their
+     * stored average ratings.
+     */
+    private static final String QUERY_STORED_AVERAGE_RATINGS_TOTALS = "select count(avgobj.id), sum(nbvotes.value),"
+        + " sum(cast(nbvotes.value as double) * avgvote.value)" + QUERY_STORED_AVERAGE_RATINGS_FROM;
+
+    /**
+     * Reads the stored average ratings of a set of documents.
+     */
+    private static final String QUERY_AVERAGE_RATINGS_OF_DOCUMENTS = "select avgobj.name, avgvote.value, nbvotes.value"
+        + " from BaseObject as avgobj, FloatProperty as avgvote, IntegerProperty as nbvotes,"
+        + " StringProperty as avgmethod where avgobj.name in (:names) and avgobj.className=:averageRatingsClassName"
+        + " and avgobj.id=avgvote.id.id and avgvote.id.name='" + AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE + "'"
+        + " and avgobj.id=nbvotes.id.id and nbvotes.id.name='" + AVERAGERATING_CLASS_FIELDNAME_NBVOTES + "'"
+        + " and avgobj.id=avgmethod.id.id and avgmethod.id.name='" + AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE_METHOD
+        + "' and avgmethod.value=:method";
+
+    /**
+     * Reads the state of the stored average ratings of a set of documents.
+     */
+    private static final String QUERY_AVERAGE_RATING_STATES = "select avgobj.name, state.value"
+        + " from BaseObject as avgobj, LargeStringProperty as state, StringProperty as avgmethod"
+        + " where avgobj.name in (:names) and avgobj.className=:averageRatingsClassName"
+        + " and avgobj.id=state.id.id and state.id.name='" + AVERAGERATING_CLASS_FIELDNAME_STATE + "'"
+        + " and avgobj.id=avgmethod.id.id and avgmethod.id.name='" + AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE_METHOD
+        + "' and avgmethod.value=:method";
+
+    /**
+     * Number of records imported together, the ratings of a document being written once per batch.
+     */
+    private static final int IMPORT_BATCH_SIZE = 10000;
+
+    /**
+     * Maximum number of names bound to a single query.
+     */
+    protected static final int QUERY_BATCH_SIZE = 500;
+
+    /**
+     * Number of ratings read at once when iterating over the ratings of a document.
+     */
+    protected static final int RATINGS_PAGE_SIZE = 500;
+
+    /**
+     * Execution context property holding the reputations already read during the request, by wiki and user.
+     */
+    private static final String REPUTATIONS_CONTEXT_PROPERTY = "ratings.reputations";
+
+    /**
+     * Number of locks shared by the rated documents. Votes on documents using different locks run in parallel. These
+     * locks only exist in the current JVM: votes cast on other cluster nodes are not serialized with them.
+     */
+    private static final int DOCUMENT_LOCK_STRIPES = 256;
+
+    private final Lock[] documentLocks = createDocumentLocks();
+
+    /**
+     * Aggregators already looked up, by method.
+     */
+    private final Map<String, RatingAggregator> aggregators = new ConcurrentHashMap<String, RatingAggregator>();
+
+    /**
+     * Computed average ratings, when average ratings are not stored. Created on first use.
+     */
+    private AverageRatingCache averageRatingCache;
+
+    private boolean averageRatingCacheCreated;
+
+    private static Lock[] createDocumentLocks()
+    {
+        Lock[] locks = new Lock[DOCUMENT_LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
     public String getRatingsClassName()
     {
         return RATINGS_CLASSNAME;
@@ -88,47 +260,313 @@ public abstract class AbstractRatingsManager implements RatingsManager
         return getXWikiContext().getWiki();
     }
 
+    /**
+     * @param documentName the rated document
+     * @return a key identifying the document in the current wiki
+     */
+    protected String getDocumentKey(String documentName)
+    {
+        return getXWikiContext().getDatabase() + ":" + documentName;
+    }
+
+    /**
+     * Votes read the current ratings of the document before modifying them, so that concurrent votes on the same
+     * document have to hold its lock to avoid losing updates. The lock is reentrant.
+     * <p>
+     * The lock is local to the current JVM and does not protect the ratings against votes cast at the same time on
+     * other cluster nodes. Storages shared by several nodes have to enforce what matters across nodes themselves, as
+     * the unique key on the document and the author of the ratings table of {@link DatabaseRatingsManager} does.
+     * </p>
+     *
+     * @param documentName the rated document
+     * @return the lock protecting the ratings of the document in the current wiki
+     */
+    protected Lock getDocumentLock(String documentName)
+    {
+        int hash = getDocumentKey(documentName).hashCode();
+        return documentLocks[(hash & Integer.MAX_VALUE) % documentLocks.length];
+    }
+
+    /**
+     * @param method the method used to compute average ratings
+     * @return the aggregator implementing the method, the "average" one if there is no aggregator with this hint
+     */
+    protected RatingAggregator getAggregator(String method)
+    {
+        RatingAggregator aggregator = aggregators.get(method);
+        if (aggregator == null) {
+            try {
+                aggregator = componentManager.getInstance(RatingAggregator.class, method);
+                aggregators.put(method, aggregator);
+            } catch (ComponentLookupException e) {
+                LOGGER.debug("No aggregator for average rating method " + method + ", using the average");
+                try {
+                    aggregator = componentManager.getInstance(RatingAggregator.class, RATING_REPUTATION_METHOD_AVERAGE);
+                } catch (ComponentLookupException e1) {
+                    aggregator = new AverageRatingAggregator();
+                }
+            }
+        }
+        return aggregator;
+    }
+
+    /**
+     * Copies the values and the state of an average rating to another one, of the same method.
+     *
+     * @param source the average rating to copy
+     * @param target the average rating to set
+     */
+    protected void copyAverageRating(AverageRating source, AverageRating target)
+    {
+        target.setAverageVote(source.getAverageVote());
+        target.setNbVotes(source.getNbVotes());
+        AverageRatingState.copy(source, target);
+    }
+
+    /**
+     * @return the cache of the computed average ratings, or null if it is disabled
+     */
+    private synchronized AverageRatingCache getAverageRatingCache()
+    {
+        if (!averageRatingCacheCreated) {
+            averageRatingCacheCreated = true;
+            int size = configuration.getAverageRatingCacheSize();
+            if (size > 0) {
+                String name = "ratings.averageratings." + getClass().getName();
+                CacheConfiguration cacheConfiguration = new CacheConfiguration();
+                cacheConfiguration.setConfigurationId(name);
+                LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+                lru.setMaxEntries(size);
+                lru.setTimeToLive(configuration.getAverageRatingCacheTimeToLive());
+                cacheConfiguration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+                try {
+                    averageRatingCache = new AverageRatingCache(execution,
+                        cacheManager.<Map<String, MemoryAverageRating>>createNewLocalCache(cacheConfiguration));
+                    ((AverageRatingCacheListener) averageRatingCacheListener).addCache(averageRatingCache);
+                } catch (CacheException e) {
+                    LOGGER.error("Failed to create the average ratings cache, average ratings will not be cached", e);
+                }
+            }
+        }
+        return averageRatingCache;
+    }
+
+    /**
+     * Computes the average rating of a document when average ratings are not stored, or reads it from the cache.
+     *
+     * @param documentName the rated document
+     * @param method the method used to compute the average rating
+     * @return the computed average rating
+     * @throws RatingsException when an error occurs while reading the ratings of the document
+     */
+    protected AverageRating getComputedAverageRating(String documentName, String method) throws RatingsException
+    {
+        AverageRatingCache cache = getAverageRatingCache();
+        if (cache == null) {
+            return calcAverageRating(documentName, method);
+        }
+        String key = getDocumentKey(documentName);
+        AverageRating averageRating = cache.get(key, method);
+        if (averageRating == null) {
+            long generation = cache.getGeneration();
+            averageRating = calcAverageRating(documentName, method);
+            if (averageRating != null) {
+                cache.put(key, documentName, averageRating, generation);
+            }
+        }
+        return averageRating;
+    }
+
+    /**
+     * Drops the cached computed average ratings of a document, after its ratings were modified without a vote, along
+     * with the ratings of the document read during the current request.
+     *
+     * @param documentName the rated document
+     */
+    protected void invalidateAverageRatings(String documentName)
+    {
+        AverageRatingCache cache = getAverageRatingCache();
+        if (cache != null) {
+            cache.invalidate(getDocumentKey(documentName));
+        }
+        RequestRatingsCache requestCache = RequestRatingsCache.get(execution);
+        if (requestCache != null) {
+            requestCache.invalidate(getDocumentKey(documentName));
+        }
+    }
+
+    /**
+     * Sends the {@link UpdateRatingEvent} of a vote, once the ratings of the document read during the current request
+     * are dropped, so that listeners read the new ratings.
+     *
+     * @param documentName the rated document
+     * @param rating the new rating
+     * @param oldVote the previous vote of the author, 0 if the vote is new
+     */
+    protected void notifyRatingUpdated(String documentName, Rating rating, int oldVote)
+    {
+        RequestRatingsCache requestCache = RequestRatingsCache.get(execution);
+        if (requestCache != null) {
+            requestCache.invalidate(getDocumentKey(documentName));
+        }
+        observationManager.notify(new UpdateRatingEvent(documentName, rating, oldVote), null);
+    }
+
+    /**
+     * @return the number of hits, misses and invalidations of the cache of the computed average ratings, or null if
+     *         it is disabled
+     */
+    public Map<String, Long> getAverageRatingCacheStatistics()
+    {
+        AverageRatingCache cache = getAverageRatingCache();
+        return (cache == null) ? null : cache.getStatistics();
+    }
+
     public boolean hasRatings()
     {
-        int result = (int) getXWiki().ParamAsLong("xwiki.ratings", 0);
-        return (getXWiki().getXWikiPreferenceAsInt("ratings", result, getXWikiContext()) == 1);
+        return configuration.hasRatings();
+    }
+
+    /**
+     * @return the configuration of the ratings, used by the ratings saving their own documents
+     */
+    RatingsConfiguration getConfiguration()
+    {
+        return configuration;
     }
 
     public boolean isAverageRatingStored()
     {
-        int result = (int) getXWiki().ParamAsLong("xwiki.ratings.averagerating.stored", 1);
-        return (getXWiki().getXWikiPreferenceAsInt("ratings_averagerating_stored", result, getXWikiContext()) == 1);
+        return configuration.isAverageRatingStored();
     }
 
     public boolean isReputationStored()
     {
-        int result = (int) getXWiki().ParamAsLong("xwiki.ratings.reputation.stored", 0);
-        return (getXWiki().getXWikiPreferenceAsInt("ratings_reputation_stored", result, getXWikiContext()) == 1);
+        return configuration.isReputationStored();
     }
 
     public boolean hasReputation()
     {
-        int result = (int) getXWiki().ParamAsLong("xwiki.ratings.reputation", 0);
-        return (getXWiki().getXWikiPreferenceAsInt("ratings_reputation", result, getXWikiContext()) == 1);
+        return configuration.hasReputation();
     }
 
     public String[] getDefaultReputationMethods()
     {
-        String method =
-            getXWiki().Param("xwiki.ratings.reputation.defaultmethod", RATING_REPUTATION_METHOD_DEFAULT);
-        method = getXWiki().getXWikiPreference("ratings_reputation_defaultmethod", method, getXWikiContext());
-        return method.split(",");
+        return configuration.getDefaultReputationMethods();
     }
 
     public void updateAverageRatings(String documentName, Rating rating, int oldVote)
         throws RatingsException
     {
-        String[] methods = getDefaultReputationMethods();
-        for (int i = 0; i < methods.length; i++) {
-            updateAverageRating(documentName, rating, oldVote, methods[i]);
+        updateAverageRatings(documentName, oldVote, rating.getVote());
+    }
+
+    /**
+     * Updates the stored average ratings of a document for all the configured methods after a vote was added, changed
+     * or removed. The ratings are read at most once for all the methods, and the document holding the average ratings
+     * is saved once.
+     *
+     * @param documentName the rated document
+     * @param oldVote the previous vote, 0 if the vote is new
+     * @param newVote the new vote, 0 if the vote was removed
+     * @throws RatingsException when an error occurs while updating the average ratings
+     */
+    protected void updateAverageRatings(String documentName, int oldVote, int newVote) throws RatingsException
+    {
+        if (!isAverageRatingStored() || oldVote == newVote) {
+            return;
+        }
+        try {
+            XWikiContext context = getXWikiContext();
+            XWikiDocument doc = getXWiki().getDocument(documentName, context);
+            if (updateAverageRatings(doc, documentName, new int[] {oldVote}, new int[] {newVote})) {
+                RatingsDocumentSaver.save(doc, configuration, context);
+            }
+        } catch (XWikiException e) {
+            throw new RatingsException(e);
         }
     }
 
+    /**
+     * Updates the stored average ratings of a document after votes were changed in it, without saving the document.
+     * The "average" method is maintained incrementally from the old and new votes, the other methods and the averages
+     * which drifted are recomputed together from a single read of the ratings.
+     *
+     * @param doc the rated document, holding the average rating objects
+     * @param documentName the name of the rated document
+     * @param oldVotes the previous votes, 0 for new votes
+     * @param newVotes the new votes, 0 for removed votes
+     * @return true if average ratings were modified in the document
+     * @throws RatingsException when an error occurs while computing the average ratings
+     * @throws XWikiException when an error occurs while creating an average rating object
+     */
+    protected boolean updateAverageRatings(XWikiDocument doc, String documentName, int[] oldVotes, int[] newVotes)
+        throws RatingsException, XWikiException
+    {
+        if (!isAverageRatingStored()) {
+            return false;
+        }
+        boolean changed = false;
+        for (int i = 0; i < oldVotes.length; i++) {
+            changed |= oldVotes[i] != newVotes[i];
+        }
+        if (!changed) {
+            return false;
+        }
+
+        List<String> recalcMethods = new ArrayList<String>();
+        for (String method : getDefaultReputationMethods()) {
+            AverageRating averageRating = getStoredAverageRating(doc, method, false);
+            RatingAggregator aggregator = getAggregator(method);
+            boolean updated = (averageRating != null);
+            for (int i = 0; updated && i < oldVotes.length; i++) {
+                if (oldVotes[i] != newVotes[i]) {
+                    updated = aggregator.updateVote(averageRating, oldVotes[i], newVotes[i]);
+                }
+            }
+            if (!updated) {
+                if (averageRating != null && LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Recomputing average rating for document " + documentName + " and method " + method);
+                }
+                recalcMethods.add(method);
+            }
+        }
+        if (!recalcMethods.isEmpty()) {
+            List<Rating> ratings = getAllRatings(doc, documentName);
+            if (ratings != null) {
+                setAverageRatings(doc, calcAverageRatings(documentName, ratings,
+                    recalcMethods.toArray(new String[recalcMethods.size()])));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies computed average ratings to the average rating objects of a document, creating them when needed.
+     *
+     * @param doc the rated document
+     * @param averageRatings the computed average ratings, by method
+     * @throws XWikiException when an error occurs while creating an average rating object
+     */
+    private void setAverageRatings(XWikiDocument doc, Map<String, AverageRating> averageRatings)
+        throws XWikiException
+    {
+        for (Map.Entry<String, AverageRating> calculated : averageRatings.entrySet()) {
+            copyAverageRating(calculated.getValue(), getStoredAverageRating(doc, calculated.getKey(), true));
+        }
+    }
+
+    /**
+     * @param doc the rated document
+     * @param documentName the name of the rated document
+     * @return all the ratings of the document, as used to recompute its average ratings
+     * @throws RatingsException when an error occurs while reading the ratings
+     */
+    protected List<Rating> getAllRatings(XWikiDocument doc, String documentName) throws RatingsException
+    {
+        return getRatings(documentName, 0, 0, true);
+    }
+
     public AverageRating getAverageRatingFromQuery(String fromsql, String wheresql)
         throws RatingsException
     {
@@ -143,38 +581,513 @@ public abstract class AbstractRatingsManager implements RatingsManager
     public AverageRating getAverageRatingFromQuery(String fromsql, String wheresql, String method)
         throws RatingsException
     {
+        String sql = "select sum(avgvote.value) as vote, count(avgvote.value) as nbvotes from XWikiDocument as doc "
+            + fromsql + QUERY_AVERAGE_RATINGS_FROM + (wheresql.equals("") ? "where " : wheresql + " and ")
+            + QUERY_AVERAGE_RATINGS_WHERE;
         try {
-            String fromsql2 =
-                fromsql + ", BaseObject as avgobj, FloatProperty as avgvote, StringProperty as avgmethod ";
-            String wheresql2 =
-                (wheresql.equals("") ? "where " : wheresql + " and ")
-                    + "doc.fullName=avgobj.name and avgobj.className='" + getAverageRatingsClassName()
-                    + "' and avgobj.id=avgvote.id.id and avgvote.id.name='" + AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE
-                    + "' and avgobj.id=avgmethod.id.id and avgmethod.id.name='"
-                    + AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE_METHOD + "' and avgmethod.value='" + method + "'";
-            String sql =
-                "select sum(avgvote.value) as vote, count(avgvote.value) as nbvotes from XWikiDocument as doc "
-                    + fromsql2 + wheresql2;
-
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Running average rating with sql " + sql);
             }
             getXWikiContext().put("lastsql", sql);
 
-            List result = getXWiki().getStore().search(sql, 0, 0, getXWikiContext());
-            float vote = ((Number) ((Object[]) result.get(0))[0]).floatValue();
-            int nbvotes = ((Number) ((Object[]) result.get(0))[1]).intValue();
+            List<Object[]> result = queryManager.createQuery(sql, Query.HQL)
+                .bindValue("averageRatingsClassName", getAverageRatingsClassName()).bindValue("method", method)
+                .execute();
+            Number sum = (Number) result.get(0)[0];
+            float vote = (sum == null) ? 0 : sum.floatValue();
+            int nbvotes = ((Number) result.get(0)[1]).intValue();
 
-            AverageRating avgr = new MemoryAverageRating(null, nbvotes, vote / (float) nbvotes, method);
+            AverageRating avgr =
+                new MemoryAverageRating(null, nbvotes, (nbvotes == 0) ? 0 : vote / (float) nbvotes, method);
             return avgr;
-        } catch (XWikiException e) {
-            throw new RatingsException(e);
+        } catch (QueryException e) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS, RatingsException.ERROR_RATINGS_QUERY,
+                "Failed to compute the average rating with query " + sql, e);
+        }
+    }
+
+    /**
+     * Reads the stored average ratings of all the rated documents of the current wiki, without loading the documents.
+     *
+     * @param method the method used to compute the average ratings
+     * @return the stored average ratings having at least one vote, with the name of their document
+     * @throws RatingsException when an error occurs while reading the average ratings
+     */
+    protected List<MemoryAverageRating> getStoredAverageRatings(String method) throws RatingsException
+    {
+        try {
+            List<Object[]> results = queryManager.createQuery(QUERY_STORED_AVERAGE_RATINGS, Query.HQL)
+                .bindValue("averageRatingsClassName", getAverageRatingsClassName()).bindValue("method", method)
+                .execute();
+            List<MemoryAverageRating> averageRatings = new ArrayList<MemoryAverageRating>(results.size());
+            for (Object[] result : results) {
+                averageRatings.add(new MemoryAverageRating((String) result[0], ((Number) result[2]).intValue(),
+                    ((Number) result[1]).floatValue(), method));
+            }
+            return averageRatings;
+        } catch (QueryException e) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS, RatingsException.ERROR_RATINGS_QUERY,
+                "Failed to read the stored average ratings for method " + method, e);
+        }
+    }
+
+    /**
+     * Counts the documents of the current wiki having a stored average rating, and their votes, without reading the
+     * average ratings. The votes weighted by the average votes change with any vote, even when the numbers of votes
+     * do not.
+     *
+     * @param method the method used to compute the average ratings
+     * @return the number of documents having at least one vote, the sum of their numbers of votes, and the sum of
+     *         their numbers of votes multiplied by their average vote
+     * @throws RatingsException when an error occurs while counting the average ratings
+     * @see #getStoredAverageRatings(String)
+     */
+    protected double[] getStoredAverageRatingsTotals(String method) throws RatingsException
+    {
+        try {
+            List<Object[]> results = queryManager.createQuery(QUERY_STORED_AVERAGE_RATINGS_TOTALS, Query.HQL)
+                .bindValue("averageRatingsClassName", getAverageRatingsClassName()).bindValue("method", method)
+                .execute();
+            return toTotals(results.isEmpty() ? null : results.get(0));
+        } catch (QueryException e) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS, RatingsException.ERROR_RATINGS_QUERY,
+                "Failed to count the stored average ratings for method " + method, e);
+        }
+    }
+
+    /**
+     * @param result a (count, sum, weighted sum) row, whose sums are null when nothing is counted
+     * @return the count and the sums
+     */
+    protected static double[] toTotals(Object[] result)
+    {
+        double[] totals = new double[3];
+        for (int i = 0; result != null && i < totals.length; i++) {
+            totals[i] = (result[i] == null) ? 0 : ((Number) result[i]).doubleValue();
+        }
+        return totals;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Average ratings already read during the current request are not read again.
+     * </p>
+     */
+    public Map<String, AverageRating> getAverageRatings(Collection<String> documentNames, String method)
+        throws RatingsException
+    {
+        RequestRatingsCache requestCache = RequestRatingsCache.get(execution);
+        Map<String, AverageRating> averageRatings = new HashMap<String, AverageRating>();
+        List<String> missingNames = new ArrayList<String>();
+        for (String documentName : new LinkedHashSet<String>(documentNames)) {
+            AverageRating averageRating =
+                (requestCache == null) ? null : requestCache.getAverageRating(getDocumentKey(documentName), method);
+            if (averageRating == null) {
+                missingNames.add(documentName);
+            } else {
+                averageRatings.put(documentName, averageRating);
+            }
+        }
+
+        if (!missingNames.isEmpty()) {
+            for (Map.Entry<String, AverageRating> averageRating : readAverageRatings(missingNames, method).entrySet()) {
+                averageRatings.put(averageRating.getKey(), averageRating.getValue());
+                if (requestCache != null) {
+                    requestCache.putAverageRating(getDocumentKey(averageRating.getKey()), averageRating.getKey(),
+                        averageRating.getValue());
+                }
+            }
+        }
+
+        Map<String, AverageRating> result = new LinkedHashMap<String, AverageRating>();
+        for (String documentName : documentNames) {
+            AverageRating averageRating = averageRatings.get(documentName);
+            if (averageRating != null) {
+                result.put(documentName, averageRating);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the average ratings of documents, stored or computed. The average ratings of the documents having none
+     * stored for the method, such as documents rated before average ratings were stored or whose average rating
+     * failed to be saved, are computed from their ratings, all at once.
+     *
+     * @param documentNames the rated documents, without duplicates
+     * @param method the method used to compute the average ratings
+     * @return the average ratings by document name
+     * @throws RatingsException when an error occurs while reading the average ratings
+     */
+    protected Map<String, AverageRating> readAverageRatings(List<String> documentNames, String method)
+        throws RatingsException
+    {
+        if (!isAverageRatingStored()) {
+            return calcAverageRatings(documentNames, method);
+        }
+
+        List<String> localNames = new ArrayList<String>();
+        List<String> otherNames = new ArrayList<String>();
+        for (String documentName : documentNames) {
+            // documents from other wikis are stored in another database
+            if (documentName.indexOf(':') < 0) {
+                localNames.add(documentName);
+            } else {
+                otherNames.add(documentName);
+            }
+        }
+        Map<String, AverageRating> averageRatings = getStoredAverageRatings(localNames, method);
+        List<String> missingNames = new ArrayList<String>();
+        for (String documentName : localNames) {
+            if (!averageRatings.containsKey(documentName)) {
+                missingNames.add(documentName);
+            }
+        }
+        if (!missingNames.isEmpty()) {
+            averageRatings.putAll(calcAverageRatings(missingNames, method));
+        }
+        for (String documentName : otherNames) {
+            averageRatings.put(documentName, getAverageRating(documentName, method, false));
+        }
+        return averageRatings;
+    }
+
+    /**
+     * Reads the stored average ratings of documents of the current wiki, without loading the documents.
+     *
+     * @param documentNames the rated documents
+     * @param method the method used to compute the average ratings
+     * @return the stored average ratings by document name, without the documents having none
+     * @throws RatingsException when an error occurs while reading the average ratings
+     */
+    protected Map<String, AverageRating> getStoredAverageRatings(List<String> documentNames, String method)
+        throws RatingsException
+    {
+        Map<String, AverageRating> averageRatings = new HashMap<String, AverageRating>();
+        try {
+            for (List<String> batch : getBatches(documentNames)) {
+                List<Object[]> results = queryManager.createQuery(QUERY_AVERAGE_RATINGS_OF_DOCUMENTS, Query.HQL)
+                    .bindValue("names", batch).bindValue("averageRatingsClassName", getAverageRatingsClassName())
+                    .bindValue("method", method).execute();
+                for (Object[] result : results) {
+                    Number averageVote = (Number) result[1];
+                    Number nbVotes = (Number) result[2];
+                    averageRatings.put((String) result[0], new MemoryAverageRating((String) result[0],
+                        (nbVotes == null) ? 0 : nbVotes.intValue(),
+                        (averageVote == null) ? 0 : averageVote.floatValue(), method));
+                }
+                List<Object[]> states = queryManager.createQuery(QUERY_AVERAGE_RATING_STATES, Query.HQL)
+                    .bindValue("names", batch).bindValue("averageRatingsClassName", getAverageRatingsClassName())
+                    .bindValue("method", method).execute();
+                for (Object[] state : states) {
+                    AverageRating averageRating = averageRatings.get(state[0]);
+                    if (averageRating != null && !"".equals(state[1])) {
+                        AverageRatingState.set(averageRating, (String) state[1]);
+                    }
+                }
+            }
+        } catch (QueryException e) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS, RatingsException.ERROR_RATINGS_QUERY,
+                "Failed to read the average ratings of " + documentNames.size() + " documents", e);
+        }
+        return averageRatings;
+    }
+
+    /**
+     * Computes the average ratings of documents when average ratings are not stored. Storages able to count the
+     * votes of many documents with a single query override this method.
+     *
+     * @param documentNames the rated documents
+     * @param method the method used to compute the average ratings
+     * @return the computed average ratings by document name
+     * @throws RatingsException when an error occurs while reading the ratings
+     */
+    protected Map<String, AverageRating> calcAverageRatings(List<String> documentNames, String method)
+        throws RatingsException
+    {
+        Map<String, AverageRating> averageRatings = new HashMap<String, AverageRating>();
+        for (String documentName : documentNames) {
+            averageRatings.put(documentName, getComputedAverageRating(documentName, method));
+        }
+        return averageRatings;
+    }
+
+    /**
+     * @param documentNames the rated documents
+     * @param voteCounts the number of ratings of each vote of each document, as (document name, vote, count) rows
+     * @param method the method used to compute the average ratings, which must not be weighted by reputation
+     * @return the average ratings by document name, including the documents having no vote
+     */
+    protected Map<String, AverageRating> calcAverageRatings(List<String> documentNames, List<Object[]> voteCounts,
+        String method)
+    {
+        RatingAggregator aggregator = getAggregator(method);
+        Map<String, RatingAccumulator> accumulators = new HashMap<String, RatingAccumulator>();
+        for (String documentName : documentNames) {
+            accumulators.put(documentName, aggregator.newAccumulator());
+        }
+        for (Object[] voteCount : voteCounts) {
+            RatingAccumulator accumulator = accumulators.get(voteCount[0]);
+            if (accumulator != null && voteCount[1] != null) {
+                accumulator.addVotes(((Number) voteCount[1]).intValue(), 1, ((Number) voteCount[2]).longValue());
+            }
+        }
+        Map<String, AverageRating> averageRatings = new HashMap<String, AverageRating>();
+        for (Map.Entry<String, RatingAccumulator> accumulator : accumulators.entrySet()) {
+            AverageRating averageRating = new MemoryAverageRating(accumulator.getKey(), 0, 0, method);
+            accumulator.getValue().store(averageRating);
+            averageRatings.put(accumulator.getKey(), averageRating);
+        }
+        return averageRatings;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Ratings already read during the current request are not read again.
+     * </p>
+     */
+    public Map<String, Rating> getRatings(Collection<String> documentNames, String author) throws RatingsException
+    {
+        Map<String, Rating> result = new LinkedHashMap<String, Rating>();
+        if (author == null) {
+            return result;
+        }
+        RequestRatingsCache requestCache = RequestRatingsCache.get(execution);
+        Map<String, Rating> ratings = new HashMap<String, Rating>();
+        List<String> missingNames = new ArrayList<String>();
+        for (String documentName : new LinkedHashSet<String>(documentNames)) {
+            String key = getDocumentKey(documentName);
+            if (requestCache != null && requestCache.hasRating(key, author)) {
+                ratings.put(documentName, requestCache.getRating(key, author));
+            } else {
+                missingNames.add(documentName);
+            }
+        }
+
+        if (!missingNames.isEmpty()) {
+            Map<String, Rating> readRatings = readRatings(missingNames, author);
+            for (String documentName : missingNames) {
+                Rating rating = readRatings.get(documentName);
+                ratings.put(documentName, rating);
+                if (requestCache != null) {
+                    requestCache.putRating(getDocumentKey(documentName), author, rating);
+                }
+            }
+        }
+
+        for (String documentName : documentNames) {
+            Rating rating = ratings.get(documentName);
+            if (rating != null) {
+                result.put(documentName, rating);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the ratings of an author on documents. Storages able to read them with a single query override this
+     * method.
+     *
+     * @param documentNames the rated documents, without duplicates
+     * @param author the author of the ratings
+     * @return the ratings by document name, without the documents the author did not rate
+     * @throws RatingsException when an error occurs while reading the ratings
+     */
+    protected Map<String, Rating> readRatings(List<String> documentNames, String author) throws RatingsException
+    {
+        Map<String, Rating> ratings = new HashMap<String, Rating>();
+        for (String documentName : documentNames) {
+            Rating rating = getRating(documentName, author);
+            if (rating != null) {
+                ratings.put(documentName, rating);
+            }
+        }
+        return ratings;
+    }
+
+    /**
+     * @param names the names to bind to queries
+     * @return the names split in lists of at most {@link #QUERY_BATCH_SIZE} names
+     */
+    protected static List<List<String>> getBatches(List<String> names)
+    {
+        List<List<String>> batches = new ArrayList<List<String>>();
+        for (int i = 0; i < names.size(); i += QUERY_BATCH_SIZE) {
+            batches.add(new ArrayList<String>(names.subList(i, Math.min(names.size(), i + QUERY_BATCH_SIZE))));
+        }
+        return batches;
+    }
+
+    public RatingsImportReport importRatings(Iterator<RatingRecord> records) throws RatingsException
+    {
+        RatingsImportReport report = new RatingsImportReport();
+        Map<String, Map<String, RatingRecord>> batch = new LinkedHashMap<String, Map<String, RatingRecord>>();
+        int batchSize = 0;
+        try {
+            while (records.hasNext()) {
+                RatingRecord record = records.next();
+                boolean skipped = record == null || StringUtils.isEmpty(record.getDocumentName())
+                    || StringUtils.isEmpty(record.getAuthor()) || record.getVote() <= 0;
+                report.addRecord(skipped);
+                if (skipped) {
+                    continue;
+                }
+                Map<String, RatingRecord> documentRecords = batch.get(record.getDocumentName());
+                if (documentRecords == null) {
+                    documentRecords = new LinkedHashMap<String, RatingRecord>();
+                    batch.put(record.getDocumentName(), documentRecords);
+                }
+                // the last vote of an author on a document wins
+                documentRecords.put(record.getAuthor(), record);
+                if (++batchSize == IMPORT_BATCH_SIZE) {
+                    importBatch(batch, report);
+                    batch.clear();
+                    batchSize = 0;
+                }
+            }
+        } catch (Exception e) {
+            // the iterator may read the records from a file or a database, whose errors are not always runtime ones
+            LOGGER.error("Failed to read the ratings to import after " + report.getRecordCount() + " records", e);
+            report.setFailure(e.getMessage());
+        }
+        importBatch(batch, report);
+
+        if (hasReputation() && report.getImportedRatingCount() > 0) {
+            try {
+                reputationAlgorithmProvider.get().recalcAllReputation();
+                report.setReputationRecomputed(true);
+                recalcReputationWeightedAverageRatings();
+            } catch (ReputationException e) {
+                if (e.getCode() != ReputationException.ERROR_REPUTATION_NOT_IMPLEMENTED) {
+                    LOGGER.error("Failed to recompute the reputations after importing ratings", e);
+                }
+            }
+        }
+        report.finish();
+        LOGGER.info("Ratings import: " + report);
+        return report;
+    }
+
+    /**
+     * Writes the ratings of a batch, then computes the average ratings of its documents, before moving the resume
+     * position past the batch, so that an import stopped at any time leaves the average ratings of the documents
+     * written so far consistent with their ratings.
+     */
+    private void importBatch(Map<String, Map<String, RatingRecord>> batch, RatingsImportReport report)
+    {
+        for (Map.Entry<String, Map<String, RatingRecord>> documentRecords : batch.entrySet()) {
+            String documentName = documentRecords.getKey();
+            Lock lock = getDocumentLock(documentName);
+            lock.lock();
+            try {
+                report.addDocument(importDocumentRatings(documentName, documentRecords.getValue().values()));
+            } catch (Exception e) {
+                LOGGER.warn("Failed to import the ratings of document " + documentName, e);
+                report.addFailedDocument(documentName, e.getMessage());
+                continue;
+            } finally {
+                lock.unlock();
+            }
+            if (recalcImportedAverageRatings(documentName, report)) {
+                observationManager.notify(new RatingsImportedEvent(documentName), null);
+            }
         }
+        report.setResumePosition(report.getRecordCount());
     }
 
+    /**
+     * Computes and stores the average ratings of a document once its imported ratings are written.
+     *
+     * @return false if the average ratings could not be computed, the document being reported as failed
+     */
+    private boolean recalcImportedAverageRatings(String documentName, RatingsImportReport report)
+    {
+        try {
+            recalcAverageRatingsLocked(documentName);
+            return true;
+        } catch (Exception e) {
+            LOGGER.warn("Failed to compute the average ratings of imported document " + documentName, e);
+            report.addFailedDocument(documentName, e.getMessage());
+            return false;
+        }
+    }
+
+    private void recalcAverageRatingsLocked(String documentName) throws RatingsException
+    {
+        Lock lock = getDocumentLock(documentName);
+        lock.lock();
+        try {
+            recalcAverageRatings(documentName);
+        } finally {
+            lock.unlock();
+            invalidateAverageRatings(documentName);
+        }
+    }
+
+    /**
+     * Recomputes the stored average ratings of all the rated documents after the reputations were recomputed, when
+     * one of the default methods is weighted by the reputation of the voters.
+     */
+    private void recalcReputationWeightedAverageRatings()
+    {
+        if (!isAverageRatingStored()) {
+            return;
+        }
+        for (String method : getDefaultReputationMethods()) {
+            if (!getAggregator(method).isReputationWeighted()) {
+                continue;
+            }
+            List<MemoryAverageRating> averageRatings;
+            try {
+                averageRatings = getStoredAverageRatings(method);
+            } catch (RatingsException e) {
+                LOGGER.error("Failed to list the average ratings to recompute after the reputations", e);
+                return;
+            }
+            // all the methods are stored for the same documents, and recomputed at once
+            for (MemoryAverageRating averageRating : averageRatings) {
+                try {
+                    recalcAverageRatingsLocked(averageRating.getDocumentName());
+                } catch (Exception e) {
+                    LOGGER.warn("Failed to recompute the average ratings of document "
+                        + averageRating.getDocumentName() + " after the reputations", e);
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * Writes imported votes on a document, replacing the existing votes of their authors, with as few saves as the
+     * storage allows. The stored average ratings are computed by the caller once the votes of the batch are written.
+     *
+     * @param documentName the rated document
+     * @param records the votes to import, one per author
+     * @return the number of ratings written
+     * @throws RatingsException when an error occurs while writing the ratings
+     */
+    protected abstract int importDocumentRatings(String documentName, Collection<RatingRecord> records)
+        throws RatingsException;
+
     public boolean removeRating(Rating rating) throws RatingsException
     {
-        return rating.remove();
+        String documentName = rating.getDocumentName();
+        Lock lock = getDocumentLock(documentName);
+        lock.lock();
+        try {
+            int oldVote = rating.getVote();
+            if (!rating.remove()) {
+                return false;
+            }
+            invalidateAverageRatings(documentName);
+
+            updateAverageRatings(documentName, oldVote, 0);
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
     
     /**
@@ -193,84 +1106,361 @@ public abstract class AbstractRatingsManager implements RatingsManager
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The ratings are read by pages of {@link #RATINGS_PAGE_SIZE} with
+     * {@link #getRatingsAfter(String, Rating, int, int, boolean)}.
+     * </p>
+     */
+    public Iterator<Rating> getRatings(final String documentName, final boolean asc) throws RatingsException
+    {
+        return new PagedRatingsIterator(RATINGS_PAGE_SIZE)
+        {
+            @Override
+            protected List<Rating> getPage(Rating last, int start, int count) throws RatingsException
+            {
+                return getRatingsAfter(documentName, last, start, count, asc);
+            }
+        };
+    }
+
+    /**
+     * Reads a page of the ratings of a document in date order. The storages which can select the ratings following a
+     * given one override this method, so that reading a page does not skip all the ratings before it.
+     *
+     * @param documentName the rated document
+     * @param last the last rating of the previous page, null for the first page
+     * @param start the number of ratings before the page
+     * @param count the maximum number of ratings to read
+     * @param asc true to read the oldest ratings first
+     * @return the ratings of the page
+     * @throws RatingsException when an error occurs while reading the ratings
+     */
+    protected List<Rating> getRatingsAfter(String documentName, Rating last, int start, int count, boolean asc)
+        throws RatingsException
+    {
+        return getRatings(documentName, start, count, asc);
+    }
+
+    /**
+     * @param documentName the rated document
+     * @return the ratings of the document, read again by {@link #getRatings(String, boolean)} on each iteration
+     */
+    private Iterable<Rating> getRatingsIterable(final String documentName)
+    {
+        return new Iterable<Rating>()
+        {
+            @Override
+            public Iterator<Rating> iterator()
+            {
+                try {
+                    return getRatings(documentName, true);
+                } catch (RatingsException e) {
+                    throw new RatingsIterationException(e);
+                }
+            }
+        };
+    }
+
     public AverageRating calcAverageRating(String documentName, String method)
         throws RatingsException
     {
-        int nbVotes = 0;
-        int balancedNbVotes = 0;
-        float totalVote = 0;
-        float averageVote = 0;
-        List<Rating> ratings = getRatings(documentName, 0, 0, true);
-        if (ratings == null) {
-            return null;
+        return calcAverageRatings(documentName, new String[] {method}).get(method);
+    }
+
+    /**
+     * @param documentName the rated document
+     * @param ratings all the ratings of the document
+     * @param method the method used to compute the average rating
+     * @return the average rating computed from the given ratings
+     * @throws RatingsException when an error occurs while getting the reputation of the authors
+     */
+    protected AverageRating calcAverageRating(String documentName, Iterable<Rating> ratings, String method)
+        throws RatingsException
+    {
+        return calcAverageRatings(documentName, ratings, new String[] {method}).get(method);
+    }
+
+    /**
+     * Computes the average ratings of a document for several methods, iterating over its ratings without keeping them
+     * in memory. The ratings are read once, or twice when a method is weighted by the reputation of the authors.
+     *
+     * @param documentName the rated document
+     * @param methods the methods used to compute the average ratings
+     * @return the computed average ratings, by method
+     * @throws RatingsException when an error occurs while reading the ratings
+     */
+    protected Map<String, AverageRating> calcAverageRatings(String documentName, String[] methods)
+        throws RatingsException
+    {
+        try {
+            return calcAverageRatings(documentName, getRatingsIterable(documentName), methods);
+        } catch (RatingsIterationException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Computes the average ratings of a document for several methods in a single pass over its ratings, feeding the
+     * accumulator of the aggregator of each method.
+     *
+     * @param documentName the rated document
+     * @param ratings all the ratings of the document, iterated twice when a method is weighted by reputation
+     * @param methods the methods used to compute the average ratings
+     * @return the computed average ratings, by method
+     * @throws RatingsException when an error occurs while getting the reputation of the authors
+     */
+    protected Map<String, AverageRating> calcAverageRatings(String documentName, Iterable<Rating> ratings,
+        String[] methods) throws RatingsException
+    {
+        RatingAccumulator[] accumulators = new RatingAccumulator[methods.length];
+        boolean reputationWeighted = false;
+        for (int i = 0; i < methods.length; i++) {
+            RatingAggregator aggregator = getAggregator(methods[i]);
+            accumulators[i] = aggregator.newAccumulator();
+            reputationWeighted |= aggregator.isReputationWeighted();
+        }
+
+        Map<String, Float> reputations = null;
+        if (reputationWeighted) {
+            Set<String> authors = new LinkedHashSet<String>();
+            for (Rating rating : ratings) {
+                authors.add(rating.getAuthor());
+            }
+            // in case we are evaluating the average rating of a user
+            // we should not include votes of himself to a user
+            authors.remove(documentName);
+            reputations = getUserReputations(authors);
         }
+
         for (Rating rating : ratings) {
-            if (method.equals(RATING_REPUTATION_METHOD_BALANCED)) {
-                String author = rating.getAuthor();
-                // in case we are evaluating the average rating of a user
-                // we should not include votes of himself to a user
-                if (!author.equals(documentName)) {
-                    AverageRating reputation = getUserReputation(author);
-                    if ((reputation == null) || (reputation.getAverageVote() == 0)) {
-                        totalVote += rating.getVote();
-                        balancedNbVotes++;
-                    } else {
-                        totalVote += rating.getVote() * reputation.getAverageVote();
-                        balancedNbVotes += reputation.getAverageVote();
+            int vote = rating.getVote();
+            float weight = (reputations == null) ? 1 : getReputationWeight(documentName, rating, reputations);
+            for (RatingAccumulator accumulator : accumulators) {
+                accumulator.addVote(vote, weight);
+            }
+        }
+
+        Map<String, AverageRating> averageRatings = new LinkedHashMap<String, AverageRating>();
+        for (int i = 0; i < methods.length; i++) {
+            AverageRating averageRating = new MemoryAverageRating(documentName, 0, 0, methods[i]);
+            accumulators[i].store(averageRating);
+            averageRatings.put(methods[i], averageRating);
+        }
+        return averageRatings;
+    }
+
+    private float getReputationWeight(String documentName, Rating rating, Map<String, Float> reputations)
+    {
+        if (rating.getAuthor().equals(documentName)) {
+            return 0;
+        }
+        Float reputation = reputations.get(rating.getAuthor());
+        return (reputation == null || reputation.floatValue() == 0) ? 1 : reputation.floatValue();
+    }
+
+    /**
+     * Gets the reputations of several users at once. Stored reputations are read with one query per batch of users,
+     * instead of loading the profile of each user; a user without a stored reputation has none. Reputations are kept
+     * until the end of the request, so that they are read only once for all the methods and documents computed.
+     *
+     * @param usernames the users, from the current wiki or prefixed with their wiki
+     * @return the average vote of the reputation of each user, 0 if the user has no reputation
+     * @throws RatingsException when an error occurs while reading the reputations
+     */
+    protected Map<String, Float> getUserReputations(Collection<String> usernames) throws RatingsException
+    {
+        Map<String, Float> knownReputations = getKnownReputations();
+        Map<String, Float> reputations = new HashMap<String, Float>();
+        List<String> missingUsernames = new ArrayList<String>();
+        for (String username : usernames) {
+            Float reputation = knownReputations.get(getDocumentKey(username));
+            if (reputation == null) {
+                missingUsernames.add(username);
+            } else {
+                reputations.put(username, reputation);
+            }
+        }
+
+        if (isAverageRatingStored()) {
+            List<String> batch = new ArrayList<String>();
+            for (Iterator<String> it = missingUsernames.iterator(); it.hasNext();) {
+                String username = it.next();
+                // users from other wikis have their profile in another database
+                if (username.indexOf(':') < 0) {
+                    batch.add(username);
+                    it.remove();
+                    if (batch.size() == QUERY_BATCH_SIZE) {
+                        readStoredReputations(batch, reputations);
+                        batch.clear();
                     }
                 }
-            } else {
-                totalVote += rating.getVote();
-                balancedNbVotes++;
             }
-            nbVotes++;
+            if (!batch.isEmpty()) {
+                readStoredReputations(batch, reputations);
+            }
+        }
+        for (String username : missingUsernames) {
+            AverageRating reputation = getUserReputation(username);
+            reputations.put(username, (reputation == null) ? 0 : reputation.getAverageVote());
+        }
+
+        for (Map.Entry<String, Float> reputation : reputations.entrySet()) {
+            knownReputations.put(getDocumentKey(reputation.getKey()), reputation.getValue());
+        }
+        return reputations;
+    }
+
+    private void readStoredReputations(List<String> usernames, Map<String, Float> reputations)
+        throws RatingsException
+    {
+        try {
+            List<Object[]> results = queryManager.createQuery(QUERY_REPUTATIONS, Query.HQL)
+                .bindValue("names", new ArrayList<String>(usernames))
+                .bindValue("averageRatingsClassName", getAverageRatingsClassName())
+                .bindValue("method", RATING_REPUTATION_METHOD_AVERAGE).execute();
+            for (String username : usernames) {
+                reputations.put(username, 0f);
+            }
+            for (Object[] result : results) {
+                Number vote = (Number) result[1];
+                reputations.put((String) result[0], (vote == null) ? 0 : vote.floatValue());
+            }
+        } catch (QueryException e) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS, RatingsException.ERROR_RATINGS_QUERY,
+                "Failed to read the reputation of " + usernames.size() + " users", e);
         }
+    }
 
-        if (balancedNbVotes != 0) {
-            averageVote = totalVote / balancedNbVotes;
+    /**
+     * @return the reputations already read during the current request, by wiki and user
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Float> getKnownReputations()
+    {
+        ExecutionContext executionContext = execution.getContext();
+        Map<String, Float> reputations =
+            (Map<String, Float>) executionContext.getProperty(REPUTATIONS_CONTEXT_PROPERTY);
+        if (reputations == null) {
+            reputations = new HashMap<String, Float>();
+            executionContext.setProperty(REPUTATIONS_CONTEXT_PROPERTY, reputations);
         }
-        return new MemoryAverageRating(documentName, nbVotes, averageVote, method);
+        return reputations;
     }
 
     public void updateAverageRating(String documentName, Rating rating, int oldVote, String method)
         throws RatingsException
+    {
+        updateAverageRating(documentName, oldVote, rating.getVote(), method);
+    }
+
+    /**
+     * Updates the stored average rating of a document after a vote was added, changed or removed. The "average"
+     * method is maintained incrementally from the old and new votes, other methods and averages which drifted are
+     * recomputed from all the ratings of the document.
+     *
+     * @param documentName the rated document
+     * @param oldVote the previous vote, 0 if the vote is new
+     * @param newVote the new vote, 0 if the vote was removed
+     * @param method the method used to compute the average rating
+     * @throws RatingsException when an error occurs while updating the average rating
+     */
+    protected void updateAverageRating(String documentName, int oldVote, int newVote, String method)
+        throws RatingsException
     {
         // we only update if we are in stored mode and if the vote changed
-        if (isAverageRatingStored() && oldVote != rating.getVote()) {
-            AverageRating aRating = calcAverageRating(documentName, method);
-            AverageRating averageRating = getAverageRating(documentName, method, true);
-            averageRating.setAverageVote(aRating.getAverageVote());
-            averageRating.setNbVotes(aRating.getNbVotes());
-            averageRating.save();
-            /*
-             * StoredAverageRating averageRating = (StoredAverageRating) getAverageRating(container, method, true,
-             * context); int diffTotal = rating.getVote() - oldVote; int diffNbVotes = (oldVote==0) ? 1 : 0; int
-             * oldNbVotes = averageRating.getNbVotes(); averageRating.setNbVotes(oldNbVotes + diffNbVotes);
-             * averageRating.setAverageVote((averageRating.getAverageVote()*oldNbVotes + diffTotal) / (oldNbVotes +
-             * diffNbVotes));
-             */
+        if (isAverageRatingStored() && oldVote != newVote) {
+            AverageRating averageRating = getStoredAverageRating(documentName, method);
+            if (averageRating != null && getAggregator(method).updateVote(averageRating, oldVote, newVote)) {
+                averageRating.save();
+            } else {
+                if (averageRating != null && LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Recomputing average rating for document " + documentName + " and method " + method);
+                }
+                recalcAverageRating(documentName, method);
+            }
         }
     }
 
+    public void recalcAverageRatings(String documentName) throws RatingsException
+    {
+        if (!isAverageRatingStored()) {
+            return;
+        }
+        Map<String, AverageRating> averageRatings = calcAverageRatings(documentName, getDefaultReputationMethods());
+        if (averageRatings == null) {
+            return;
+        }
+        try {
+            XWikiContext context = getXWikiContext();
+            XWikiDocument doc = getXWiki().getDocument(documentName, context);
+            setAverageRatings(doc, averageRatings);
+            RatingsDocumentSaver.save(doc, configuration, context);
+            invalidateAverageRatings(documentName);
+        } catch (XWikiException e) {
+            throw new RatingsException(e);
+        }
+    }
+
+    /**
+     * Recomputes an average rating from all the ratings of the document and stores it.
+     *
+     * @param documentName the rated document
+     * @param method the method used to compute the average rating
+     * @return the stored average rating
+     * @throws RatingsException when an error occurs while computing or saving the average rating
+     */
+    protected AverageRating recalcAverageRating(String documentName, String method) throws RatingsException
+    {
+        AverageRating aRating = calcAverageRating(documentName, method);
+        AverageRating averageRating = getAverageRating(documentName, method, true);
+        copyAverageRating(aRating, averageRating);
+        averageRating.save();
+        return averageRating;
+    }
+
     public void updateUserReputation(String author, AverageRating voterRating)
         throws RatingsException
     {
         try {
             // We should update the user rating
             AverageRating rating = getAverageRating(author, voterRating.getMethod(), true);
-            rating.setAverageVote(voterRating.getAverageVote());
+            copyAverageRating(voterRating, rating);
             rating.setMethod(voterRating.getMethod());
-            rating.setNbVotes(voterRating.getNbVotes());
             rating.save();
+            if (RATING_REPUTATION_METHOD_AVERAGE.equals(voterRating.getMethod())) {
+                getKnownReputations().remove(getDocumentKey(author));
+            }
+            invalidateAverageRatings(author);
         } catch (XWikiException e) {
             throw new RatingsException(e);
         }
     }
     
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The average rating is read once per request: later calls during the same request return a copy of it, until
+     * the request modifies the ratings of the document.
+     * </p>
+     */
     public AverageRating getAverageRating(String documentName, String method)
         throws RatingsException
     {
-        return getAverageRating(documentName, method, false);
+        RequestRatingsCache requestCache = RequestRatingsCache.get(execution);
+        if (requestCache == null) {
+            return getAverageRating(documentName, method, false);
+        }
+        String key = getDocumentKey(documentName);
+        AverageRating averageRating = requestCache.getAverageRating(key, method);
+        if (averageRating == null) {
+            averageRating = getAverageRating(documentName, method, false);
+            if (averageRating != null) {
+                requestCache.putAverageRating(key, documentName, averageRating);
+            }
+        }
+        return averageRating;
     }
 
     public AverageRating getAverageRating(String documentName, String method, boolean create)
@@ -278,28 +1468,59 @@ public abstract class AbstractRatingsManager implements RatingsManager
     {
         try {
             if (isAverageRatingStored()) {
-                String className = getAverageRatingsClassName();
                 XWikiDocument doc = getXWikiContext().getWiki().getDocument(documentName, getXWikiContext());
-                BaseObject averageRatingObject =
-                    doc.getObject(className, RatingsManager.AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE_METHOD, method,
-                        false);
-                if (averageRatingObject == null) {
-                    if (!create) {
-                        return calcAverageRating(documentName, method);
-                    }
-
-                    // initiate a new average rating object
-                    averageRatingObject = doc.newObject(className, getXWikiContext());
-                    averageRatingObject.setStringValue(RatingsManager.AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE_METHOD,
-                        method);
+                AverageRating averageRating = getStoredAverageRating(doc, method, create);
+                if (averageRating == null) {
+                    return calcAverageRating(documentName, method);
                 }
-
-                return new StoredAverageRating(doc, averageRatingObject, getXWikiContext());
+                return averageRating;
             } else {
-                return calcAverageRating(documentName, method);
+                return getComputedAverageRating(documentName, method);
             }
         } catch (XWikiException e) {
             throw new RatingsException(e);
         }
     }
+
+    /**
+     * @param documentName the rated document
+     * @param method the method used to compute the average rating
+     * @return the stored average rating, or null if none has been stored yet for this method
+     * @throws RatingsException when an error occurs while loading the document
+     */
+    protected AverageRating getStoredAverageRating(String documentName, String method) throws RatingsException
+    {
+        try {
+            XWikiDocument doc = getXWikiContext().getWiki().getDocument(documentName, getXWikiContext());
+            return getStoredAverageRating(doc, method, false);
+        } catch (XWikiException e) {
+            throw new RatingsException(e);
+        }
+    }
+
+    /**
+     * @param doc the document holding the average rating object
+     * @param method the method used to compute the average rating
+     * @param create whether to add a new average rating object to the document if there is none for this method
+     * @return the average rating stored in the document, or null if there is none and create is false
+     * @throws XWikiException when an error occurs while creating the average rating object
+     */
+    protected StoredAverageRating getStoredAverageRating(XWikiDocument doc, String method, boolean create)
+        throws XWikiException
+    {
+        String className = getAverageRatingsClassName();
+        BaseObject averageRatingObject =
+            doc.getObject(className, AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE_METHOD, method, false);
+        if (averageRatingObject == null) {
+            if (!create) {
+                return null;
+            }
+
+            // initiate a new average rating object
+            averageRatingObject = doc.newObject(className, getXWikiContext());
+            averageRatingObject.setStringValue(AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE_METHOD, method);
+        }
+
+        return new StoredAverageRating(doc, averageRatingObject, getXWikiContext(), configuration);
+    }
 }
@@ -0,0 +1,241 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.ratings.RatingsManager;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Index of the rating objects of a document by author, so that finding the vote of a user does not require going
+ * through all the ratings of the document. The index of a document is built the first time it is needed, kept up to
+ * date by the ratings manager when it adds ratings, and dropped each time the document is saved by someone else or
+ * deleted. Only the indexes of the most recently used documents are kept.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(AuthorRatingsIndex.NAME)
+@Singleton
+public class AuthorRatingsIndex implements EventListener, Initializable, Disposable
+{
+    /**
+     * The name of the listener, used as hint to look up the index.
+     */
+    public static final String NAME = "ratings.authorindex";
+
+    /**
+     * Maximum number of documents whose index is kept.
+     */
+    private static final int CACHE_SIZE = 1000;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    /**
+     * Indexes by wiki and document, null if the cache cannot be created.
+     */
+    private Cache<Entry> entries;
+
+    /**
+     * Key of the document being saved by the ratings manager in the current thread, whose index stays valid.
+     */
+    private final ThreadLocal<String> savingDocument = new ThreadLocal<String>();
+
+    /**
+     * Author to object number map of a document, along with the number of rating objects it was built from.
+     */
+    private static class Entry
+    {
+        private final Map<String, Integer> numbers = new ConcurrentHashMap<String, Integer>();
+
+        private volatile int size;
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        CacheConfiguration cacheConfiguration = new CacheConfiguration();
+        cacheConfiguration.setConfigurationId(NAME);
+        LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+        lru.setMaxEntries(CACHE_SIZE);
+        cacheConfiguration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+        try {
+            entries = cacheManager.createNewLocalCache(cacheConfiguration);
+        } catch (CacheException e) {
+            logger.error("Failed to create the ratings author index, ratings will be looked up in each document", e);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (entries != null) {
+            entries.dispose();
+        }
+    }
+
+    private static String getKey(XWikiDocument doc)
+    {
+        return doc.getDocumentReference().getWikiReference().getName() + ":" + doc.getFullName();
+    }
+
+    /**
+     * @param doc the rated document
+     * @param author the author of the rating
+     * @return the rating object of the author, or null if the author did not rate the document
+     */
+    public BaseObject getRatingObject(XWikiDocument doc, String author)
+    {
+        List<BaseObject> objects = doc.getObjects(RatingsManager.RATINGS_CLASSNAME);
+        if (objects == null) {
+            return null;
+        }
+
+        Entry entry = (entries == null) ? null : entries.get(getKey(doc));
+        if (entry == null || entry.size != objects.size()) {
+            entry = build(doc, objects);
+        }
+        BaseObject object = getObject(doc, entry, author);
+        if (object == null && entry.numbers.containsKey(author)) {
+            // the document was modified without being saved yet
+            object = getObject(doc, build(doc, objects), author);
+        }
+        return object;
+    }
+
+    /**
+     * Registers a rating object just added to the document.
+     *
+     * @param doc the rated document
+     * @param object the new rating object
+     */
+    public void add(XWikiDocument doc, BaseObject object)
+    {
+        Entry entry = (entries == null) ? null : entries.get(getKey(doc));
+        if (entry != null) {
+            entry.numbers.put(object.getStringValue(RatingsManager.RATING_CLASS_FIELDNAME_AUTHOR), object.getNumber());
+            List<BaseObject> objects = doc.getObjects(RatingsManager.RATINGS_CLASSNAME);
+            entry.size = (objects == null) ? 0 : objects.size();
+        }
+    }
+
+    /**
+     * Marks the start of a save of the document by the ratings manager, which registered the rating objects it added
+     * with {@link #add(XWikiDocument, BaseObject)}, so that the index is not dropped by the save.
+     *
+     * @param doc the rated document about to be saved
+     */
+    public void beginSave(XWikiDocument doc)
+    {
+        savingDocument.set(getKey(doc));
+    }
+
+    /**
+     * Marks the end of the save started with {@link #beginSave(XWikiDocument)}.
+     */
+    public void endSave()
+    {
+        savingDocument.remove();
+    }
+
+    private BaseObject getObject(XWikiDocument doc, Entry entry, String author)
+    {
+        Integer number = entry.numbers.get(author);
+        if (number == null) {
+            return null;
+        }
+        BaseObject object = doc.getObject(RatingsManager.RATINGS_CLASSNAME, number.intValue());
+        if (object == null || !author.equals(object.getStringValue(RatingsManager.RATING_CLASS_FIELDNAME_AUTHOR))) {
+            return null;
+        }
+        return object;
+    }
+
+    private Entry build(XWikiDocument doc, List<BaseObject> objects)
+    {
+        Entry entry = new Entry();
+        for (BaseObject object : objects) {
+            if (object != null) {
+                String author = object.getStringValue(RatingsManager.RATING_CLASS_FIELDNAME_AUTHOR);
+                if (author != null && !entry.numbers.containsKey(author)) {
+                    entry.numbers.put(author, object.getNumber());
+                }
+            }
+        }
+        entry.size = objects.size();
+        if (entries != null) {
+            entries.set(getKey(doc), entry);
+        }
+        return entry;
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        // a save can replace the rating objects without changing their number, so the index is dropped unless the
+        // document is saved by the ratings manager, which keeps it up to date
+        if (entries != null) {
+            String key = getKey((XWikiDocument) source);
+            if (!(event instanceof DocumentUpdatedEvent && key.equals(savingDocument.get()))) {
+                entries.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.ratings.AverageRating;
+import org.xwiki.contrib.ratings.RatingAccumulator;
+import org.xwiki.contrib.ratings.RatingAggregator;
+import org.xwiki.contrib.ratings.RatingsManager;
+
+/**
+ * The "average" method: the arithmetic mean of the votes. It keeps the {@link VoteHistogram} of the votes in its
+ * state, and is updated from the histogram, whose integer total is exact whatever the number of votes.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+@Named(RatingsManager.RATING_REPUTATION_METHOD_AVERAGE)
+public class AverageRatingAggregator implements RatingAggregator
+{
+    @Override
+    public boolean isReputationWeighted()
+    {
+        return false;
+    }
+
+    @Override
+    public RatingAccumulator newAccumulator()
+    {
+        return new RatingAccumulator()
+        {
+            private int nbVotes;
+
+            private long totalVote;
+
+            private final VoteHistogram histogram = new VoteHistogram();
+
+            @Override
+            public void addVote(int vote, float weight)
+            {
+                addVotes(vote, weight, 1);
+            }
+
+            @Override
+            public void addVotes(int vote, float weight, long count)
+            {
+                totalVote += vote * count;
+                nbVotes += count;
+                histogram.add(vote, (int) count);
+            }
+
+            @Override
+            public void store(AverageRating averageRating)
+            {
+                averageRating.setNbVotes(nbVotes);
+                averageRating.setAverageVote((nbVotes == 0) ? 0 : (float) ((double) totalVote / nbVotes));
+                AverageRatingState.set(averageRating, histogram.toString());
+            }
+        };
+    }
+
+    @Override
+    public boolean updateVote(AverageRating averageRating, int oldVote, int newVote)
+    {
+        int nbVotes = averageRating.getNbVotes();
+        VoteHistogram histogram = VoteHistogram.parse(AverageRatingState.get(averageRating));
+        if (histogram == null) {
+            if (nbVotes != 0) {
+                // stored before histograms were kept
+                return false;
+            }
+            histogram = new VoteHistogram();
+        } else if (histogram.getNbVotes() != nbVotes) {
+            // the stored number of votes does not match the counted votes anymore
+            return false;
+        }
+
+        if (oldVote != 0 && !histogram.remove(oldVote)) {
+            // the average does not know about the vote being changed
+            return false;
+        }
+        if (newVote != 0) {
+            histogram.add(newVote);
+        }
+        nbVotes = histogram.getNbVotes();
+        long total = histogram.getTotal();
+
+        averageRating.setNbVotes(nbVotes);
+        averageRating.setAverageVote((nbVotes == 0) ? 0 : (float) ((double) total / nbVotes));
+        AverageRatingState.set(averageRating, histogram.toString());
+        return true;
+    }
+}
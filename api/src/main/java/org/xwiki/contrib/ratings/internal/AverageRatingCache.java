@@ -0,0 +1,171 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.context.Execution;
+import org.xwiki.contrib.ratings.AverageRating;
+import org.xwiki.contrib.ratings.UpdateRatingEvent;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Cache of the average ratings computed from the ratings of documents, used when average ratings are not stored.
+ * The entries of a document are dropped after each vote on it, when one of its ratings is removed and when it is
+ * deleted. The underlying cache also evicts the least recently used entries and the entries older than its time to
+ * live. The events are received through the {@link AverageRatingCacheListener}.
+ *
+ * @version $Id$
+ */
+public class AverageRatingCache
+{
+    private final Execution execution;
+
+    /**
+     * Average ratings by method, by wiki and document.
+     */
+    private final Cache<Map<String, MemoryAverageRating>> cache;
+
+    /**
+     * Incremented on each invalidation, so that an average rating computed while the ratings of a document were
+     * modified is not cached.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public AverageRatingCache(Execution execution, Cache<Map<String, MemoryAverageRating>> cache)
+    {
+        this.execution = execution;
+        this.cache = cache;
+    }
+
+    /**
+     * @param key the key identifying the document in its wiki
+     * @param method the method used to compute the average rating
+     * @return a copy of the cached average rating, or null if it is not cached
+     */
+    public AverageRating get(String key, String method)
+    {
+        Map<String, MemoryAverageRating> averageRatings = cache.get(key);
+        MemoryAverageRating averageRating = (averageRatings == null) ? null : averageRatings.get(method);
+        if (averageRating == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return AverageRatingState.copy(averageRating.getDocumentName(), averageRating);
+    }
+
+    /**
+     * @return the value to pass to {@link #put(String, String, AverageRating, long)} once the average rating is
+     *         computed
+     */
+    public long getGeneration()
+    {
+        return generation.get();
+    }
+
+    /**
+     * Caches an average rating, unless a document was invalidated since it started being computed.
+     *
+     * @param key the key identifying the document in its wiki
+     * @param documentName the rated document
+     * @param averageRating the computed average rating
+     * @param computeGeneration the value of {@link #getGeneration()} before the average rating was computed
+     */
+    public void put(String key, String documentName, AverageRating averageRating, long computeGeneration)
+    {
+        synchronized (this) {
+            if (computeGeneration != generation.get()) {
+                return;
+            }
+            Map<String, MemoryAverageRating> averageRatings = cache.get(key);
+            if (averageRatings == null) {
+                averageRatings = new ConcurrentHashMap<String, MemoryAverageRating>();
+                cache.set(key, averageRatings);
+            }
+            averageRatings.put(averageRating.getMethod(), AverageRatingState.copy(documentName, averageRating));
+        }
+    }
+
+    /**
+     * Drops the average ratings of a document, for all methods.
+     *
+     * @param key the key identifying the document in its wiki
+     */
+    public void invalidate(String key)
+    {
+        synchronized (this) {
+            generation.incrementAndGet();
+            cache.remove(key);
+        }
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * @return the number of cache hits, misses and invalidations
+     */
+    public Map<String, Long> getStatistics()
+    {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("hits", hits.get());
+        statistics.put("misses", misses.get());
+        statistics.put("invalidations", invalidations.get());
+        return statistics;
+    }
+
+    /**
+     * Drops the entries of a document after a vote on it or its deletion.
+     *
+     * @param event the event sent by the observation manager
+     * @param source the deleted document, for document events
+     * @see AverageRatingCacheListener
+     */
+    public void onEvent(Event event, Object source)
+    {
+        if (event instanceof UpdateRatingEvent) {
+            XWikiContext context = (XWikiContext) execution.getContext().getProperty("xwikicontext");
+            invalidate(context.getDatabase() + ":" + ((UpdateRatingEvent) event).getDocumentName());
+        } else {
+            XWikiDocument doc = (XWikiDocument) source;
+            invalidate(doc.getDocumentReference().getWikiReference().getName() + ":" + doc.getFullName());
+        }
+    }
+
+    /**
+     * Releases the underlying cache.
+     */
+    public void dispose()
+    {
+        cache.dispose();
+    }
+}
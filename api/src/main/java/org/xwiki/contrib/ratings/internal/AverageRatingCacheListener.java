@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.contrib.ratings.UpdateRatingEvent;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Forwards the votes and the deletions of documents to the caches of the computed average ratings of the ratings
+ * managers, which are created when first used.
+ *
+ * @version $Id$
+ * @see AverageRatingCache
+ */
+@Component
+@Named(AverageRatingCacheListener.NAME)
+@Singleton
+public class AverageRatingCacheListener implements EventListener, Disposable
+{
+    /**
+     * The name of the listener, used as hint to look it up.
+     */
+    public static final String NAME = "ratings.averageratings";
+
+    private final List<AverageRatingCache> caches = new CopyOnWriteArrayList<AverageRatingCache>();
+
+    /**
+     * @param cache a cache to keep up to date, disposed with this listener
+     */
+    public void addCache(AverageRatingCache cache)
+    {
+        caches.add(cache);
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new UpdateRatingEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        for (AverageRatingCache cache : caches) {
+            cache.onEvent(event, source);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        for (AverageRatingCache cache : caches) {
+            cache.dispose();
+        }
+        caches.clear();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import org.xwiki.contrib.ratings.AverageRating;
+
+/**
+ * Reads and writes the state of the average ratings which keep one, see {@link StatefulAverageRating}, and copies
+ * average ratings along with their state.
+ *
+ * @version $Id$
+ */
+public final class AverageRatingState
+{
+    private AverageRatingState()
+    {
+    }
+
+    /**
+     * @param averageRating an average rating
+     * @return the state of the average rating, null if it has none or does not keep one
+     */
+    public static String get(AverageRating averageRating)
+    {
+        return (averageRating instanceof StatefulAverageRating) ? ((StatefulAverageRating) averageRating).getState()
+            : null;
+    }
+
+    /**
+     * @param averageRating an average rating, whose state is ignored if it does not keep one
+     * @param state the state to set
+     */
+    public static void set(AverageRating averageRating, String state)
+    {
+        if (averageRating instanceof StatefulAverageRating) {
+            ((StatefulAverageRating) averageRating).setState(state);
+        }
+    }
+
+    /**
+     * @param source the average rating whose state is copied
+     * @param target the average rating to set
+     */
+    public static void copy(AverageRating source, AverageRating target)
+    {
+        set(target, get(source));
+    }
+
+    /**
+     * @param documentName the name of the document of the copy
+     * @param averageRating the average rating to copy
+     * @return a copy of the average rating kept in memory, along with its state
+     */
+    public static MemoryAverageRating copy(String documentName, AverageRating averageRating)
+    {
+        MemoryAverageRating copy = new MemoryAverageRating(documentName, averageRating.getNbVotes(),
+            averageRating.getAverageVote(), averageRating.getMethod());
+        copy(averageRating, copy);
+        return copy;
+    }
+}
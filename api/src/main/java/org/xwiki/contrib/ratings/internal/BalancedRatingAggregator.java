@@ -0,0 +1,93 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.ratings.AverageRating;
+import org.xwiki.contrib.ratings.RatingAccumulator;
+import org.xwiki.contrib.ratings.RatingAggregator;
+import org.xwiki.contrib.ratings.RatingsManager;
+
+/**
+ * The "balanced" method: the mean of the votes weighted by the reputation of their authors. Since reputations change
+ * independently of the votes, it is always computed again from all the ratings. Its state holds the
+ * {@link VoteHistogram} of the votes, not weighted.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+@Named(RatingsManager.RATING_REPUTATION_METHOD_BALANCED)
+public class BalancedRatingAggregator implements RatingAggregator
+{
+    @Override
+    public boolean isReputationWeighted()
+    {
+        return true;
+    }
+
+    @Override
+    public RatingAccumulator newAccumulator()
+    {
+        return new RatingAccumulator()
+        {
+            private int nbVotes;
+
+            private float totalVote;
+
+            private int balancedNbVotes;
+
+            private final VoteHistogram histogram = new VoteHistogram();
+
+            @Override
+            public void addVote(int vote, float weight)
+            {
+                addVotes(vote, weight, 1);
+            }
+
+            @Override
+            public void addVotes(int vote, float weight, long count)
+            {
+                totalVote += vote * weight * count;
+                // the weights are truncated vote by vote
+                balancedNbVotes += (int) weight * count;
+                nbVotes += count;
+                histogram.add(vote, (int) count);
+            }
+
+            @Override
+            public void store(AverageRating averageRating)
+            {
+                averageRating.setNbVotes(nbVotes);
+                averageRating.setAverageVote((balancedNbVotes == 0) ? 0 : totalVote / balancedNbVotes);
+                AverageRatingState.set(averageRating, histogram.toString());
+            }
+        };
+    }
+
+    @Override
+    public boolean updateVote(AverageRating averageRating, int oldVote, int newVote)
+    {
+        return false;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.Collection;
+
+import org.xwiki.contrib.ratings.ReputationAlgorithm;
+
+/**
+ * Reputation algorithm able to update the reputations after several votes on the documents created by the same
+ * contributor at once. Algorithms opt in by implementing this interface: the votes of the other algorithms are given
+ * to {@link ReputationAlgorithm#updateReputation(String, org.xwiki.contrib.ratings.Rating, int)} one at a time, so
+ * that overriding that method is enough to change how reputations are updated.
+ *
+ * @version $Id$
+ * @see UpdateReputationListener
+ */
+public interface BatchReputationAlgorithm extends ReputationAlgorithm
+{
+    /**
+     * Updates the reputations after several votes. The result must be the same as updating the reputations after
+     * each vote in turn.
+     *
+     * @param contributor the creator of the rated documents
+     * @param updates the votes whose reputation update has not been run yet, in the order they were cast
+     */
+    void updateReputations(String contributor, Collection<ReputationUpdate> updates);
+}
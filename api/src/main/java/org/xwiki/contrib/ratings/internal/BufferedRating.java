@@ -0,0 +1,187 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.Date;
+
+import org.xwiki.contrib.ratings.Rating;
+import org.xwiki.contrib.ratings.RatingsException;
+import org.xwiki.contrib.ratings.RatingsManager;
+
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Rating waiting in the write-behind buffer of the {@link DefaultRatingsManager}, not saved in the document yet.
+ *
+ * @version $Id$
+ * @see Rating
+ */
+public class BufferedRating implements Rating
+{
+    private String documentName;
+
+    private String author;
+
+    private Date date;
+
+    private int vote;
+
+    private DefaultRatingsManager ratingsManager;
+
+    public BufferedRating(String documentName, VoteBuffer.PendingVote pendingVote,
+        DefaultRatingsManager ratingsManager)
+    {
+        this.documentName = documentName;
+        this.author = pendingVote.getAuthor();
+        this.date = pendingVote.getDate();
+        this.vote = pendingVote.getVote();
+        this.ratingsManager = ratingsManager;
+    }
+
+    public String getDocumentName()
+    {
+        return documentName;
+    }
+
+    /**
+     * Builds a rating object holding the values of this rating. Changes made to the object are not saved.
+     */
+    public BaseObject getAsObject()
+    {
+        BaseObject obj = new BaseObject();
+        obj.setClassName(RatingsManager.RATINGS_CLASSNAME);
+        obj.setName(documentName);
+        obj.setStringValue(RatingsManager.RATING_CLASS_FIELDNAME_AUTHOR, author);
+        obj.setDateValue(RatingsManager.RATING_CLASS_FIELDNAME_DATE, date);
+        obj.setIntValue(RatingsManager.RATING_CLASS_FIELDNAME_VOTE, vote);
+        obj.setStringValue(RatingsManager.RATING_CLASS_FIELDNAME_PARENT, documentName);
+        return obj;
+    }
+
+    /**
+     * RatingId represents the ID of the rating. The rating has no object yet, so its ID is empty.
+     */
+    public String getRatingId()
+    {
+        return "";
+    }
+
+    public String getGlobalRatingId()
+    {
+        return "";
+    }
+
+    public String getAuthor()
+    {
+        return author;
+    }
+
+    public void setAuthor(String author)
+    {
+        this.author = author;
+    }
+
+    public Date getDate()
+    {
+        return date;
+    }
+
+    public void setDate(Date date)
+    {
+        this.date = date;
+    }
+
+    public int getVote()
+    {
+        return vote;
+    }
+
+    public void setVote(int vote)
+    {
+        this.vote = vote;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.contrib.ratings.Rating#get(String)
+     */
+    public Object get(String propertyName)
+    {
+        if (RatingsManager.RATING_CLASS_FIELDNAME_AUTHOR.equals(propertyName)) {
+            return author;
+        } else if (RatingsManager.RATING_CLASS_FIELDNAME_DATE.equals(propertyName)) {
+            return date;
+        } else if (RatingsManager.RATING_CLASS_FIELDNAME_VOTE.equals(propertyName)) {
+            return vote;
+        } else if (RatingsManager.RATING_CLASS_FIELDNAME_PARENT.equals(propertyName)) {
+            return documentName;
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.contrib.ratings.Rating#display(String, String)
+     */
+    public String display(String propertyName, String mode)
+    {
+        Object value = get(propertyName);
+        return (value == null) ? "" : value.toString();
+    }
+
+    /**
+     * Puts the vote back in the buffer.
+     */
+    public void save() throws RatingsException
+    {
+        ratingsManager.setRating(documentName, author, vote);
+    }
+
+    /**
+     * Saves the pending votes of the document, then removes the saved rating.
+     */
+    public boolean remove() throws RatingsException
+    {
+        return ratingsManager.removeBufferedRating(this);
+    }
+
+    public String toString()
+    {
+        boolean shouldAddSpace = false;
+        StringBuffer sb = new StringBuffer();
+        if (getAuthor() != null) {
+            sb.append("\nAuthor=").append(getAuthor());
+            shouldAddSpace = true;
+        }
+        if (getDate() != null) {
+            sb.append(shouldAddSpace ? " " : "");
+            sb.append("\nDate=").append(getDate());
+            shouldAddSpace = true;
+        }
+        if (getVote() != 0) {
+            sb.append(shouldAddSpace ? " " : "");
+            sb.append("\nVote=").append(getVote()).append("\n");
+        }
+
+        return sb.toString();
+    }
+}
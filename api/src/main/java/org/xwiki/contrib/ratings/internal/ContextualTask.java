@@ -0,0 +1,80 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.util.XWikiStubContextProvider;
+
+/**
+ * Task run outside of the request which created it, for example by a background thread. The task runs in a new XWiki
+ * context, created from the stub context of the wiki for the wiki and the user of the request, so that it does not use
+ * the request, the response or the documents of a request which may be over.
+ *
+ * @version $Id$
+ */
+public abstract class ContextualTask implements Runnable
+{
+    private final Execution execution;
+
+    private final XWikiStubContextProvider contextProvider;
+
+    private final String wiki;
+
+    private final String user;
+
+    /**
+     * @param execution the execution in which to install the context when running the task
+     * @param contextProvider creates the XWiki context of the task
+     * @param wiki the wiki in which the task runs
+     * @param user the user running the task
+     */
+    public ContextualTask(Execution execution, XWikiStubContextProvider contextProvider, String wiki, String user)
+    {
+        this.execution = execution;
+        this.contextProvider = contextProvider;
+        this.wiki = wiki;
+        this.user = user;
+    }
+
+    @Override
+    public void run()
+    {
+        XWikiContext context = contextProvider.createStubContext();
+        context.setDatabase(wiki);
+        context.setUser(user);
+        ExecutionContext executionContext = new ExecutionContext();
+        executionContext.setProperty("xwikicontext", context);
+        // the task may also run in the thread of a request, whose context must be restored afterwards
+        execution.pushContext(executionContext);
+        try {
+            runInContext();
+        } finally {
+            execution.popContext();
+        }
+    }
+
+    /**
+     * Runs the task, with the XWiki context available from the execution.
+     */
+    protected abstract void runInContext();
+}
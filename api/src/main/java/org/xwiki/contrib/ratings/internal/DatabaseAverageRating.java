@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.Map;
+
+import org.xwiki.contrib.ratings.AverageRating;
+import org.xwiki.contrib.ratings.RatingsException;
+
+/**
+ * Average rating stored as a row of the average ratings table, see {@link DatabaseRatingsManager}.
+ *
+ * @version $Id$
+ * @see AverageRating
+ */
+public class DatabaseAverageRating implements StatefulAverageRating
+{
+    private long id;
+
+    private String documentName;
+
+    private String method;
+
+    private int nbVotes;
+
+    private float averageVote;
+
+    private String state;
+
+    private transient DatabaseRatingsManager ratingsManager;
+
+    /**
+     * Constructor used by Hibernate.
+     */
+    public DatabaseAverageRating()
+    {
+    }
+
+    public DatabaseAverageRating(String documentName, String method, DatabaseRatingsManager ratingsManager)
+    {
+        this.documentName = documentName;
+        this.method = method;
+        this.ratingsManager = ratingsManager;
+    }
+
+    public long getId()
+    {
+        return id;
+    }
+
+    public void setRatingsManager(DatabaseRatingsManager ratingsManager)
+    {
+        this.ratingsManager = ratingsManager;
+    }
+
+    public String getDocumentName()
+    {
+        return documentName;
+    }
+
+    public int getNbVotes()
+    {
+        return nbVotes;
+    }
+
+    public void setNbVotes(int nbVotes)
+    {
+        this.nbVotes = nbVotes;
+    }
+
+    public float getAverageVote()
+    {
+        return averageVote;
+    }
+
+    public void setAverageVote(float averageVote)
+    {
+        this.averageVote = averageVote;
+    }
+
+    public String getMethod()
+    {
+        return method;
+    }
+
+    public void setMethod(String method)
+    {
+        this.method = method;
+    }
+
+    public String getState()
+    {
+        return state;
+    }
+
+    public void setState(String state)
+    {
+        this.state = state;
+    }
+
+    public Map<Integer, Integer> getVoteCounts()
+    {
+        return VoteHistogram.getCounts(getState(), getNbVotes());
+    }
+
+    public void save() throws RatingsException
+    {
+        ratingsManager.saveAverageRating(this);
+    }
+}
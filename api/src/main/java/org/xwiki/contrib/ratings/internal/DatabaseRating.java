@@ -0,0 +1,200 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.Date;
+
+import org.xwiki.contrib.ratings.Rating;
+import org.xwiki.contrib.ratings.RatingsException;
+import org.xwiki.contrib.ratings.RatingsManager;
+
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Rating stored as a row of the ratings table, see {@link DatabaseRatingsManager}.
+ *
+ * @version $Id$
+ * @see Rating
+ */
+public class DatabaseRating implements Rating
+{
+    private long id;
+
+    private String documentName;
+
+    private String author;
+
+    private Date date;
+
+    private int vote;
+
+    private transient DatabaseRatingsManager ratingsManager;
+
+    /**
+     * Constructor used by Hibernate.
+     */
+    public DatabaseRating()
+    {
+    }
+
+    public DatabaseRating(String documentName, String author, int vote, DatabaseRatingsManager ratingsManager)
+    {
+        this.documentName = documentName;
+        this.author = author;
+        this.date = new Date();
+        this.vote = vote;
+        this.ratingsManager = ratingsManager;
+    }
+
+    public long getId()
+    {
+        return id;
+    }
+
+    public void setRatingsManager(DatabaseRatingsManager ratingsManager)
+    {
+        this.ratingsManager = ratingsManager;
+    }
+
+    public String getDocumentName()
+    {
+        return documentName;
+    }
+
+    /**
+     * Builds a rating object holding the values of this rating, for compatibility. Changes made to the object are not
+     * saved.
+     */
+    public BaseObject getAsObject()
+    {
+        BaseObject obj = new BaseObject();
+        obj.setClassName(RatingsManager.RATINGS_CLASSNAME);
+        obj.setName(documentName);
+        obj.setStringValue(RatingsManager.RATING_CLASS_FIELDNAME_AUTHOR, author);
+        obj.setDateValue(RatingsManager.RATING_CLASS_FIELDNAME_DATE, date);
+        obj.setIntValue(RatingsManager.RATING_CLASS_FIELDNAME_VOTE, vote);
+        obj.setStringValue(RatingsManager.RATING_CLASS_FIELDNAME_PARENT, documentName);
+        return obj;
+    }
+
+    /**
+     * RatingId represents the ID of the rating. In this case it is the row identifier, which is unique in the wiki.
+     */
+    public String getRatingId()
+    {
+        return String.valueOf(id);
+    }
+
+    public String getGlobalRatingId()
+    {
+        return getRatingId();
+    }
+
+    public String getAuthor()
+    {
+        return author;
+    }
+
+    public void setAuthor(String author)
+    {
+        this.author = author;
+    }
+
+    public Date getDate()
+    {
+        return date;
+    }
+
+    public void setDate(Date date)
+    {
+        this.date = date;
+    }
+
+    public int getVote()
+    {
+        return vote;
+    }
+
+    public void setVote(int vote)
+    {
+        this.vote = vote;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.contrib.ratings.Rating#get(String)
+     */
+    public Object get(String propertyName)
+    {
+        if (RatingsManager.RATING_CLASS_FIELDNAME_AUTHOR.equals(propertyName)) {
+            return author;
+        } else if (RatingsManager.RATING_CLASS_FIELDNAME_DATE.equals(propertyName)) {
+            return date;
+        } else if (RatingsManager.RATING_CLASS_FIELDNAME_VOTE.equals(propertyName)) {
+            return vote;
+        } else if (RatingsManager.RATING_CLASS_FIELDNAME_PARENT.equals(propertyName)) {
+            return documentName;
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.contrib.ratings.Rating#display(String, String)
+     */
+    public String display(String propertyName, String mode)
+    {
+        Object value = get(propertyName);
+        return (value == null) ? "" : value.toString();
+    }
+
+    public void save() throws RatingsException
+    {
+        ratingsManager.saveRating(this);
+    }
+
+    public boolean remove() throws RatingsException
+    {
+        return ratingsManager.deleteRating(this);
+    }
+
+    public String toString()
+    {
+        boolean shouldAddSpace = false;
+        StringBuffer sb = new StringBuffer();
+        if (getAuthor() != null) {
+            sb.append("\nAuthor=").append(getAuthor());
+            shouldAddSpace = true;
+        }
+        if (getDate() != null) {
+            sb.append(shouldAddSpace ? " " : "");
+            sb.append("\nDate=").append(getDate());
+            shouldAddSpace = true;
+        }
+        if (getVote() != 0) {
+            sb.append(shouldAddSpace ? " " : "");
+            sb.append("\nVote=").append(getVote()).append("\n");
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,938 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.hibernate.LockMode;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.exception.LockAcquisitionException;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.ratings.AverageRating;
+import org.xwiki.contrib.ratings.Rating;
+import org.xwiki.contrib.ratings.RatingAccumulator;
+import org.xwiki.contrib.ratings.RatingRecord;
+import org.xwiki.contrib.ratings.RatingsException;
+import org.xwiki.contrib.ratings.RatingsManager;
+
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+/**
+ * Ratings manager storing the ratings and the average ratings in dedicated tables of the wiki database, instead of
+ * objects in wiki documents. Votes and reads are single row queries, no document is loaded or saved. It is used when
+ * the <code>managerHint</code> of <code>XWiki.RatingsConfig</code> is <code>database</code>.
+ * <p>
+ * The tables are described by the <code>ratings.hbm.xml</code> mapping of this module, which has to be declared in the
+ * <code>hibernate.cfg.xml</code> file of the wiki with <code>&lt;mapping resource="ratings.hbm.xml"/&gt;</code>, so
+ * that they are created along with the other tables when the schema of each wiki is updated.
+ * </p>
+ *
+ * @version $Id$
+ * @see RatingsManager
+ * @see AbstractRatingsManager
+ */
+@Component
+@Singleton
+@Named("database")
+public class DatabaseRatingsManager extends AbstractRatingsManager
+{
+    /**
+     * Reads the ratings of a document, followed by {@link #QUERY_RATINGS_ORDER} with the ordering direction.
+     */
+    private static final String QUERY_RATINGS = "from DatabaseRating as rating where rating.documentName = :parent";
+
+    private static final String QUERY_RATINGS_ORDER = " order by rating.date %1$s, rating.id %1$s";
+
+    /**
+     * Restricts {@link #QUERY_RATINGS} to the ratings following a given (date, id) key, the comparison operator is
+     * inserted, so that reading a page uses the index instead of skipping all the ratings before it.
+     */
+    private static final String QUERY_RATINGS_AFTER =
+        " and (rating.date %1$s :date or (rating.date = :date and rating.id %1$s :id))";
+
+    private static final String QUERY_RATING_BY_AUTHOR =
+        "from DatabaseRating as rating where rating.documentName = :parent and rating.author = :author";
+
+    private static final String QUERY_VOTE_COUNTS = "select rating.vote, count(rating.vote)"
+        + " from DatabaseRating as rating where rating.documentName = :parent group by rating.vote";
+
+    private static final String QUERY_RATINGS_OF_AUTHORS =
+        "from DatabaseRating as rating where rating.documentName = :parent and rating.author in (:authors)";
+
+    private static final String QUERY_RATINGS_OF_AUTHOR =
+        "from DatabaseRating as rating where rating.documentName in (:parents) and rating.author = :author";
+
+    private static final String QUERY_VOTE_COUNTS_OF_DOCUMENTS =
+        "select rating.documentName, rating.vote, count(rating.vote) from DatabaseRating as rating"
+            + " where rating.documentName in (:parents) group by rating.documentName, rating.vote";
+
+    private static final String QUERY_AVERAGE_RATINGS_OF_DOCUMENTS =
+        "from DatabaseAverageRating as average where average.documentName in (:parents)"
+            + " and average.method = :method";
+
+    private static final String QUERY_STORED_AVERAGE_RATINGS =
+        "from DatabaseAverageRating as average where average.method = :method and average.nbVotes > 0";
+
+    private static final String QUERY_STORED_AVERAGE_RATINGS_TOTALS = "select count(*), sum(average.nbVotes),"
+        + " sum(cast(average.nbVotes as double) * average.averageVote) " + QUERY_STORED_AVERAGE_RATINGS;
+
+    /**
+     * Number of times a write transaction is run when it conflicts with the transactions of other cluster nodes.
+     */
+    private static final int WRITE_ATTEMPTS = 5;
+
+    private static final String QUERY_AVERAGE_RATING =
+        "from DatabaseAverageRating as average where average.documentName = :parent and average.method = :method";
+
+    /**
+     * The logger to LOGGER.
+     */
+    @Inject
+    private Logger LOGGER;
+
+    /**
+     * @return the Hibernate store of the wiki
+     */
+    protected XWikiHibernateStore getStore()
+    {
+        return getXWiki().getHibernateStore();
+    }
+
+    protected <T> T executeRead(HibernateCallback<T> callback) throws RatingsException
+    {
+        try {
+            return getStore().executeRead(getXWikiContext(), true, callback);
+        } catch (XWikiException e) {
+            throw new RatingsException(e);
+        }
+    }
+
+    protected <T> T executeWrite(HibernateCallback<T> callback) throws RatingsException
+    {
+        try {
+            return getStore().executeWrite(getXWikiContext(), true, callback);
+        } catch (XWikiException e) {
+            throw new RatingsException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The rating and the average ratings of the document are written in a single transaction, which locks the average
+     * rating rows, so that votes cast at the same time on several cluster nodes are all counted.
+     * </p>
+     *
+     * @see org.xwiki.contrib.ratings.RatingsManager#setRating(String, String, int)
+     */
+    public Rating setRating(String documentName, String author, int vote) throws RatingsException
+    {
+        DatabaseRating rating;
+        int[] oldVote = new int[1];
+        Lock lock = getDocumentLock(documentName);
+        lock.lock();
+        try {
+            rating = writeRating(documentName, author, vote, oldVote);
+        } finally {
+            lock.unlock();
+        }
+
+        // update reputation
+        notifyRatingUpdated(documentName, rating, oldVote[0]);
+        return rating;
+    }
+
+    /**
+     * Creates or updates the rating of an author along with the average ratings of the document, in one transaction.
+     *
+     * @param oldVote receives the previous vote of the author, 0 if the rating is new
+     * @return the rating of the author
+     */
+    private DatabaseRating writeRating(final String documentName, final String author, final int vote,
+        final int[] oldVote) throws RatingsException
+    {
+        DatabaseRating rating = executeConflictingWrite(new HibernateCallback<DatabaseRating>()
+        {
+            public DatabaseRating doInHibernate(Session session) throws XWikiException
+            {
+                // the average ratings are locked first, so that the previous vote read below is the last one
+                Map<String, DatabaseAverageRating> averageRatings = lockAverageRatings(session, documentName);
+                Query query = session.createQuery(QUERY_RATING_BY_AUTHOR);
+                query.setString("parent", documentName);
+                query.setString("author", author);
+                DatabaseRating rating = (DatabaseRating) query.uniqueResult();
+                if (rating == null) {
+                    oldVote[0] = 0;
+                    rating = new DatabaseRating(documentName, author, vote, DatabaseRatingsManager.this);
+                    session.save(rating);
+                } else {
+                    oldVote[0] = rating.getVote();
+                    rating.setVote(vote);
+                    rating.setDate(new Date());
+                }
+                writeAverageRatings(session, documentName, averageRatings, oldVote[0], vote, false);
+                return rating;
+            }
+        });
+        rating.setRatingsManager(this);
+        return rating;
+    }
+
+    /**
+     * Inserts a new rating. The ratings table has a unique key on the document and the author, so that concurrent
+     * votes of the same author, even from different cluster nodes, cannot create two ratings.
+     *
+     * @param rating the new rating
+     * @return false if the author already has a rating on the document
+     * @throws RatingsException when an error occurs while saving the rating
+     */
+    protected boolean insertRating(final DatabaseRating rating) throws RatingsException
+    {
+        try {
+            executeWrite(new HibernateCallback<Object>()
+            {
+                public Object doInHibernate(Session session)
+                {
+                    session.save(rating);
+                    return null;
+                }
+            });
+            return true;
+        } catch (RatingsException e) {
+            if (isConstraintViolation(e)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a write transaction, again when it conflicted with a transaction of another cluster node: when the author
+     * voted, or the first vote on the document was cast, at the same time on another node, the rating or the average
+     * rating now exists and is updated instead, and a transaction rolled back by the database to resolve a deadlock
+     * on the average rating rows is run again.
+     */
+    private <T> T executeConflictingWrite(HibernateCallback<T> callback) throws RatingsException
+    {
+        for (int attempt = 1;; attempt++) {
+            try {
+                return executeWrite(callback);
+            } catch (RatingsException e) {
+                if (attempt >= WRITE_ATTEMPTS || !isWriteConflict(e)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static boolean isWriteConflict(Throwable exception)
+    {
+        return hasCause(exception, ConstraintViolationException.class)
+            || hasCause(exception, LockAcquisitionException.class);
+    }
+
+    private static boolean isConstraintViolation(Throwable exception)
+    {
+        return hasCause(exception, ConstraintViolationException.class);
+    }
+
+    private static boolean hasCause(Throwable exception, Class< ? extends Throwable> type)
+    {
+        for (Throwable cause = exception; cause != null;) {
+            if (type.isInstance(cause)) {
+                return true;
+            }
+            Throwable next = (cause instanceof XWikiException) ? ((XWikiException) cause).getException()
+                : cause.getCause();
+            cause = (next == cause) ? null : next;
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The ratings of the document are written in a single transaction.
+     * </p>
+     */
+    @Override
+    protected int importDocumentRatings(String documentName, Collection<RatingRecord> records)
+        throws RatingsException
+    {
+        for (int attempt = 1;; attempt++) {
+            try {
+                return writeImportedRatings(documentName, records).size();
+            } catch (RatingsException e) {
+                if (attempt >= WRITE_ATTEMPTS || !isWriteConflict(e)) {
+                    throw e;
+                }
+                // some authors voted while the ratings were being imported, their ratings are read again and updated
+            }
+        }
+    }
+
+    private List<DatabaseRating> writeImportedRatings(String documentName, Collection<RatingRecord> records)
+        throws RatingsException
+    {
+        Map<String, DatabaseRating> ratings = getRatingsOfAuthors(documentName, records);
+        final List<DatabaseRating> importedRatings = new ArrayList<DatabaseRating>(records.size());
+        for (RatingRecord record : records) {
+            DatabaseRating rating = ratings.get(record.getAuthor());
+            if (rating == null) {
+                rating = new DatabaseRating(documentName, record.getAuthor(), record.getVote(), this);
+            } else {
+                rating.setVote(record.getVote());
+            }
+            rating.setDate((record.getDate() == null) ? new Date() : record.getDate());
+            importedRatings.add(rating);
+        }
+        executeWrite(new HibernateCallback<Object>()
+        {
+            public Object doInHibernate(Session session)
+            {
+                for (DatabaseRating rating : importedRatings) {
+                    session.saveOrUpdate(rating);
+                }
+                return null;
+            }
+        });
+
+        return importedRatings;
+    }
+
+    /**
+     * @return the existing ratings of the authors of the imported votes, by author, without reading the ratings of the
+     *         other authors of the document
+     */
+    private Map<String, DatabaseRating> getRatingsOfAuthors(final String documentName,
+        Collection<RatingRecord> records) throws RatingsException
+    {
+        List<String> authors = new ArrayList<String>(records.size());
+        for (RatingRecord record : records) {
+            authors.add(record.getAuthor());
+        }
+        Map<String, DatabaseRating> ratings = new HashMap<String, DatabaseRating>();
+        for (final List<String> batch : getBatches(authors)) {
+            List<DatabaseRating> readRatings = executeRead(new HibernateCallback<List<DatabaseRating>>()
+            {
+                @SuppressWarnings("unchecked")
+                public List<DatabaseRating> doInHibernate(Session session)
+                {
+                    Query query = session.createQuery(QUERY_RATINGS_OF_AUTHORS);
+                    query.setString("parent", documentName);
+                    query.setParameterList("authors", batch);
+                    return query.list();
+                }
+            });
+            for (DatabaseRating rating : readRatings) {
+                rating.setRatingsManager(this);
+                ratings.put(rating.getAuthor(), rating);
+            }
+        }
+        return ratings;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.contrib.ratings.RatingsManager#getRatings(String, int, int, boolean)
+     */
+    public List<Rating> getRatings(String documentName, int start, int count, boolean asc) throws RatingsException
+    {
+        return getRatings(documentName, null, start, count, asc);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The page starts after the (date, id) key of the last rating instead of skipping the previous ratings.
+     * </p>
+     */
+    @Override
+    protected List<Rating> getRatingsAfter(String documentName, Rating last, int start, int count, boolean asc)
+        throws RatingsException
+    {
+        if (last instanceof DatabaseRating) {
+            return getRatings(documentName, (DatabaseRating) last, 0, count, asc);
+        }
+        return getRatings(documentName, start, count, asc);
+    }
+
+    private List<Rating> getRatings(final String documentName, final DatabaseRating last, final int start,
+        final int count, final boolean asc) throws RatingsException
+    {
+        List<DatabaseRating> ratings = executeRead(new HibernateCallback<List<DatabaseRating>>()
+        {
+            @SuppressWarnings("unchecked")
+            public List<DatabaseRating> doInHibernate(Session session)
+            {
+                StringBuilder statement = new StringBuilder(QUERY_RATINGS);
+                if (last != null) {
+                    statement.append(String.format(QUERY_RATINGS_AFTER, asc ? ">" : "<"));
+                }
+                statement.append(String.format(QUERY_RATINGS_ORDER, asc ? "asc" : "desc"));
+                Query query = session.createQuery(statement.toString());
+                query.setString("parent", documentName);
+                if (last != null) {
+                    query.setTimestamp("date", last.getDate());
+                    query.setLong("id", last.getId());
+                }
+                query.setFirstResult(start);
+                if (count > 0) {
+                    query.setMaxResults(count);
+                }
+                return query.list();
+            }
+        });
+
+        List<Rating> result = new ArrayList<Rating>(ratings.size());
+        for (DatabaseRating rating : ratings) {
+            rating.setRatingsManager(this);
+            result.add(rating);
+        }
+        return result;
+    }
+
+    public Rating getRating(String ratingId) throws RatingsException
+    {
+        final long id;
+        try {
+            id = Long.parseLong(ratingId);
+        } catch (NumberFormatException e) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS,
+                RatingsException.ERROR_RATINGS_INVALID_RATING_ID, "Invalid rating ID, cannot parse rating id");
+        }
+
+        DatabaseRating rating = executeRead(new HibernateCallback<DatabaseRating>()
+        {
+            public DatabaseRating doInHibernate(Session session)
+            {
+                return (DatabaseRating) session.get(DatabaseRating.class, id);
+            }
+        });
+        if (rating == null) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS,
+                RatingsException.ERROR_RATINGS_INVALID_RATING_ID, "Invalid rating ID, rating does not exist");
+        }
+        rating.setRatingsManager(this);
+        return rating;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.contrib.ratings.RatingsManager#getRating(String, int)
+     */
+    public Rating getRating(String documentName, int id) throws RatingsException
+    {
+        List<Rating> ratings = getRatings(documentName, id, 1, false);
+        return ratings.isEmpty() ? null : ratings.get(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.contrib.ratings.RatingsManager#getRating(String, String)
+     */
+    public Rating getRating(final String documentName, final String author) throws RatingsException
+    {
+        if (author == null) {
+            return null;
+        }
+        DatabaseRating rating = executeRead(new HibernateCallback<DatabaseRating>()
+        {
+            public DatabaseRating doInHibernate(Session session)
+            {
+                Query query = session.createQuery(QUERY_RATING_BY_AUTHOR);
+                query.setString("parent", documentName);
+                query.setString("author", author);
+                return (DatabaseRating) query.uniqueResult();
+            }
+        });
+        if (rating != null) {
+            rating.setRatingsManager(this);
+        }
+        return rating;
+    }
+
+    protected void saveRating(final DatabaseRating rating) throws RatingsException
+    {
+        executeWrite(new HibernateCallback<Object>()
+        {
+            public Object doInHibernate(Session session)
+            {
+                session.saveOrUpdate(rating);
+                return null;
+            }
+        });
+    }
+
+    protected boolean deleteRating(final DatabaseRating rating) throws RatingsException
+    {
+        executeWrite(new HibernateCallback<Object>()
+        {
+            public Object doInHibernate(Session session)
+            {
+                session.delete(rating);
+                return null;
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Saves an average rating. The average ratings table has a unique key on the document and the method: when the
+     * average rating was created at the same time on another cluster node, the existing row is overwritten.
+     *
+     * @param averageRating the average rating to save
+     * @throws RatingsException when an error occurs while saving the average rating
+     */
+    protected void saveAverageRating(final DatabaseAverageRating averageRating) throws RatingsException
+    {
+        try {
+            executeWrite(new HibernateCallback<Object>()
+            {
+                public Object doInHibernate(Session session)
+                {
+                    session.saveOrUpdate(averageRating);
+                    return null;
+                }
+            });
+        } catch (RatingsException e) {
+            if (averageRating.getId() != 0 || !isConstraintViolation(e)) {
+                throw e;
+            }
+            executeWrite(new HibernateCallback<Object>()
+            {
+                public Object doInHibernate(Session session)
+                {
+                    DatabaseAverageRating storedRating = getStoredAverageRating(session,
+                        averageRating.getDocumentName(), averageRating.getMethod(), LockMode.UPGRADE);
+                    copyAverageRating(averageRating, storedRating);
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The average ratings of all the methods are updated in a single transaction.
+     * </p>
+     */
+    @Override
+    protected void updateAverageRatings(String documentName, int oldVote, int newVote) throws RatingsException
+    {
+        if (isAverageRatingStored() && oldVote != newVote) {
+            writeAverageRatings(documentName, oldVote, newVote, false);
+        }
+    }
+
+    @Override
+    public void recalcAverageRatings(String documentName) throws RatingsException
+    {
+        if (isAverageRatingStored()) {
+            writeAverageRatings(documentName, 0, 0, true);
+            invalidateAverageRatings(documentName);
+        }
+    }
+
+    /**
+     * Runs {@link #writeAverageRatings(Session, String, int, int, boolean)} in its own transaction, again when the
+     * average ratings of the document were written at the same time on another cluster node.
+     */
+    private void writeAverageRatings(final String documentName, final int oldVote, final int newVote,
+        final boolean recalc) throws RatingsException
+    {
+        executeConflictingWrite(new HibernateCallback<Object>()
+        {
+            public Object doInHibernate(Session session) throws XWikiException
+            {
+                writeAverageRatings(session, documentName, oldVote, newVote, recalc);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Updates the stored average ratings of a document for all the configured methods in the current transaction.
+     *
+     * @param session the session of the current transaction
+     * @param documentName the rated document
+     * @param oldVote the previous vote, 0 if the vote is new
+     * @param newVote the new vote, 0 if the vote was removed
+     * @param recalc true to recompute all the average ratings from the ratings, which must then be written already
+     * @throws RatingsException when an error occurs while computing the average ratings
+     */
+    private void writeAverageRatings(Session session, String documentName, int oldVote, int newVote, boolean recalc)
+        throws RatingsException
+    {
+        if (!isAverageRatingStored() || (!recalc && oldVote == newVote)) {
+            return;
+        }
+        writeAverageRatings(session, documentName, lockAverageRatings(session, documentName), oldVote, newVote,
+            recalc);
+    }
+
+    /**
+     * Reads the stored average ratings of a document for all the configured methods with an update lock, so that the
+     * transactions updating the averages of the same document on several cluster nodes are serialized. The missing
+     * average ratings are created without being saved yet: a row created at the same time by another transaction
+     * makes this one fail on the unique key instead of creating a duplicate.
+     *
+     * @param session the session of the current transaction
+     * @param documentName the rated document
+     * @return the average ratings by method, empty when the average ratings are not stored
+     */
+    private Map<String, DatabaseAverageRating> lockAverageRatings(Session session, String documentName)
+    {
+        Map<String, DatabaseAverageRating> averageRatings = new LinkedHashMap<String, DatabaseAverageRating>();
+        if (!isAverageRatingStored()) {
+            return averageRatings;
+        }
+        for (String method : getDefaultReputationMethods()) {
+            DatabaseAverageRating averageRating =
+                getStoredAverageRating(session, documentName, method, LockMode.UPGRADE);
+            if (averageRating == null) {
+                averageRating = new DatabaseAverageRating(documentName, method, this);
+            }
+            averageRatings.put(method, averageRating);
+        }
+        return averageRatings;
+    }
+
+    /**
+     * Updates average ratings locked with {@link #lockAverageRatings(Session, String)} in the current transaction.
+     */
+    private void writeAverageRatings(Session session, String documentName,
+        Map<String, DatabaseAverageRating> averageRatings, int oldVote, int newVote, boolean recalc)
+        throws RatingsException
+    {
+        if (averageRatings.isEmpty() || (!recalc && oldVote == newVote)) {
+            return;
+        }
+
+        List<String> recalcMethods = new ArrayList<String>();
+        for (Map.Entry<String, DatabaseAverageRating> averageRating : averageRatings.entrySet()) {
+            String method = averageRating.getKey();
+            if (recalc || averageRating.getValue().getId() == 0
+                || !getAggregator(method).updateVote(averageRating.getValue(), oldVote, newVote)) {
+                recalcMethods.add(method);
+            }
+        }
+        if (!recalcMethods.isEmpty()) {
+            // the ratings written by the current transaction are flushed before being counted
+            session.flush();
+            Map<String, AverageRating> calculatedRatings =
+                calcAverageRatings(documentName, recalcMethods.toArray(new String[recalcMethods.size()]));
+            for (Map.Entry<String, AverageRating> calculated : calculatedRatings.entrySet()) {
+                copyAverageRating(calculated.getValue(), averageRatings.get(calculated.getKey()));
+            }
+        }
+        for (DatabaseAverageRating averageRating : averageRatings.values()) {
+            if (averageRating.getId() == 0) {
+                session.save(averageRating);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * When no method is weighted by reputation, the average ratings are computed from a single aggregate query instead
+     * of reading all the ratings.
+     * </p>
+     */
+    @Override
+    protected Map<String, AverageRating> calcAverageRatings(String documentName, String[] methods)
+        throws RatingsException
+    {
+        for (String method : methods) {
+            if (getAggregator(method).isReputationWeighted()) {
+                return super.calcAverageRatings(documentName, methods);
+            }
+        }
+        List<Object[]> voteCounts = getVoteCounts(documentName);
+        Map<String, AverageRating> averageRatings = new LinkedHashMap<String, AverageRating>();
+        for (String method : methods) {
+            averageRatings.put(method, calcAverageRating(documentName, voteCounts, method));
+        }
+        return averageRatings;
+    }
+
+    /**
+     * Computes the methods which are not weighted by reputation from the number of ratings of each vote, counted by
+     * the database, instead of reading all the ratings.
+     *
+     * @see AbstractRatingsManager#calcAverageRating(String, String)
+     */
+    @Override
+    public AverageRating calcAverageRating(String documentName, String method) throws RatingsException
+    {
+        if (getAggregator(method).isReputationWeighted()) {
+            return super.calcAverageRating(documentName, method);
+        }
+        return calcAverageRating(documentName, getVoteCounts(documentName), method);
+    }
+
+    /**
+     * @param documentName the rated document
+     * @return the vote and the number of ratings of each vote of the document
+     */
+    private List<Object[]> getVoteCounts(final String documentName) throws RatingsException
+    {
+        return executeRead(new HibernateCallback<List<Object[]>>()
+        {
+            @SuppressWarnings("unchecked")
+            public List<Object[]> doInHibernate(Session session)
+            {
+                Query query = session.createQuery(QUERY_VOTE_COUNTS);
+                query.setString("parent", documentName);
+                return query.list();
+            }
+        });
+    }
+
+    private AverageRating calcAverageRating(String documentName, List<Object[]> voteCounts, String method)
+        throws RatingsException
+    {
+        RatingAccumulator accumulator = getAggregator(method).newAccumulator();
+        for (Object[] voteCount : voteCounts) {
+            accumulator.addVotes(((Number) voteCount[0]).intValue(), 1, ((Number) voteCount[1]).longValue());
+        }
+        AverageRating averageRating = new MemoryAverageRating(documentName, 0, 0, method);
+        accumulator.store(averageRating);
+        return averageRating;
+    }
+
+    @Override
+    public AverageRating getAverageRating(String documentName, String method, boolean create)
+        throws RatingsException
+    {
+        if (!isAverageRatingStored()) {
+            return getComputedAverageRating(documentName, method);
+        }
+
+        AverageRating averageRating = getStoredAverageRating(documentName, method);
+        if (averageRating == null) {
+            if (!create) {
+                return calcAverageRating(documentName, method);
+            }
+            averageRating = new DatabaseAverageRating(documentName, method, this);
+        }
+        return averageRating;
+    }
+
+    @Override
+    protected DatabaseAverageRating getStoredAverageRating(final String documentName, final String method)
+        throws RatingsException
+    {
+        return executeRead(new HibernateCallback<DatabaseAverageRating>()
+        {
+            public DatabaseAverageRating doInHibernate(Session session)
+            {
+                return getStoredAverageRating(session, documentName, method, LockMode.NONE);
+            }
+        });
+    }
+
+    /**
+     * @param session the session of the current transaction
+     * @param documentName the rated document
+     * @param method the method of the average rating
+     * @param lockMode the lock to acquire on the average rating row
+     * @return the stored average rating, or null if the document has none for the method
+     */
+    private DatabaseAverageRating getStoredAverageRating(Session session, String documentName, String method,
+        LockMode lockMode)
+    {
+        Query query = session.createQuery(QUERY_AVERAGE_RATING);
+        query.setString("parent", documentName);
+        query.setString("method", method);
+        query.setLockMode("average", lockMode);
+        DatabaseAverageRating averageRating = (DatabaseAverageRating) query.uniqueResult();
+        if (averageRating != null) {
+            averageRating.setRatingsManager(this);
+        }
+        return averageRating;
+    }
+
+    @Override
+    protected List<MemoryAverageRating> getStoredAverageRatings(final String method) throws RatingsException
+    {
+        List<DatabaseAverageRating> storedRatings = executeRead(new HibernateCallback<List<DatabaseAverageRating>>()
+        {
+            @SuppressWarnings("unchecked")
+            public List<DatabaseAverageRating> doInHibernate(Session session)
+            {
+                Query query = session.createQuery(QUERY_STORED_AVERAGE_RATINGS);
+                query.setString("method", method);
+                return query.list();
+            }
+        });
+        List<MemoryAverageRating> averageRatings = new ArrayList<MemoryAverageRating>(storedRatings.size());
+        for (DatabaseAverageRating storedRating : storedRatings) {
+            averageRatings.add(new MemoryAverageRating(storedRating.getDocumentName(), storedRating.getNbVotes(),
+                storedRating.getAverageVote(), method));
+        }
+        return averageRatings;
+    }
+
+    @Override
+    protected double[] getStoredAverageRatingsTotals(final String method) throws RatingsException
+    {
+        return executeRead(new HibernateCallback<double[]>()
+        {
+            public double[] doInHibernate(Session session)
+            {
+                Query query = session.createQuery(QUERY_STORED_AVERAGE_RATINGS_TOTALS);
+                query.setString("method", method);
+                return toTotals((Object[]) query.uniqueResult());
+            }
+        });
+    }
+
+    @Override
+    protected Map<String, AverageRating> getStoredAverageRatings(List<String> documentNames, final String method)
+        throws RatingsException
+    {
+        Map<String, AverageRating> averageRatings = new HashMap<String, AverageRating>();
+        for (final List<String> batch : getBatches(documentNames)) {
+            List<DatabaseAverageRating> storedRatings =
+                executeRead(new HibernateCallback<List<DatabaseAverageRating>>()
+                {
+                    @SuppressWarnings("unchecked")
+                    public List<DatabaseAverageRating> doInHibernate(Session session)
+                    {
+                        Query query = session.createQuery(QUERY_AVERAGE_RATINGS_OF_DOCUMENTS);
+                        query.setParameterList("parents", batch);
+                        query.setString("method", method);
+                        return query.list();
+                    }
+                });
+            for (DatabaseAverageRating storedRating : storedRatings) {
+                MemoryAverageRating averageRating = new MemoryAverageRating(storedRating.getDocumentName(),
+                    storedRating.getNbVotes(), storedRating.getAverageVote(), method);
+                AverageRatingState.copy(storedRating, averageRating);
+                averageRatings.put(storedRating.getDocumentName(), averageRating);
+            }
+        }
+        return averageRatings;
+    }
+
+    /**
+     * Counts the ratings of each vote of all the documents with one query, for the methods which are not weighted by
+     * reputation.
+     */
+    @Override
+    protected Map<String, AverageRating> calcAverageRatings(List<String> documentNames, String method)
+        throws RatingsException
+    {
+        if (getAggregator(method).isReputationWeighted()) {
+            return super.calcAverageRatings(documentNames, method);
+        }
+
+        List<Object[]> voteCounts = new ArrayList<Object[]>();
+        for (final List<String> batch : getBatches(documentNames)) {
+            voteCounts.addAll(executeRead(new HibernateCallback<List<Object[]>>()
+            {
+                @SuppressWarnings("unchecked")
+                public List<Object[]> doInHibernate(Session session)
+                {
+                    Query query = session.createQuery(QUERY_VOTE_COUNTS_OF_DOCUMENTS);
+                    query.setParameterList("parents", batch);
+                    return query.list();
+                }
+            }));
+        }
+        return calcAverageRatings(documentNames, voteCounts, method);
+    }
+
+    @Override
+    protected Map<String, Rating> readRatings(List<String> documentNames, final String author)
+        throws RatingsException
+    {
+        Map<String, Rating> ratings = new HashMap<String, Rating>();
+        for (final List<String> batch : getBatches(documentNames)) {
+            List<DatabaseRating> readRatings = executeRead(new HibernateCallback<List<DatabaseRating>>()
+            {
+                @SuppressWarnings("unchecked")
+                public List<DatabaseRating> doInHibernate(Session session)
+                {
+                    Query query = session.createQuery(QUERY_RATINGS_OF_AUTHOR);
+                    query.setParameterList("parents", batch);
+                    query.setString("author", author);
+                    return query.list();
+                }
+            });
+            for (DatabaseRating rating : readRatings) {
+                rating.setRatingsManager(this);
+                ratings.put(rating.getDocumentName(), rating);
+            }
+        }
+        return ratings;
+    }
+
+    @Override
+    public AverageRating getAverageRatingFromQuery(String fromsql, String wheresql, final String method)
+        throws RatingsException
+    {
+        final String sql =
+            "select sum(average.averageVote), count(average.averageVote) from XWikiDocument as doc " + fromsql
+                + ", DatabaseAverageRating as average " + (wheresql.equals("") ? "where " : wheresql + " and ")
+                + "doc.fullName=average.documentName and average.method=:method";
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Running average rating with sql " + sql);
+        }
+        getXWikiContext().put("lastsql", sql);
+
+        Object[] result = executeRead(new HibernateCallback<Object[]>()
+        {
+            public Object[] doInHibernate(Session session)
+            {
+                Query query = session.createQuery(sql);
+                query.setString("method", method);
+                return (Object[]) query.uniqueResult();
+            }
+        });
+        float vote = (result[0] == null) ? 0 : ((Number) result[0]).floatValue();
+        int nbvotes = (result[1] == null) ? 0 : ((Number) result[1]).intValue();
+
+        return new MemoryAverageRating(null, nbvotes, (nbvotes == 0) ? 0 : vote / (float) nbvotes, method);
+    }
+}
@@ -22,6 +22,7 @@ package org.xwiki.contrib.ratings.internal;
 import java.util.Date;
 
 import org.xwiki.contrib.ratings.Rating;
+import org.xwiki.contrib.ratings.RatingsConfiguration;
 import org.xwiki.contrib.ratings.RatingsException;
 import org.xwiki.contrib.ratings.RatingsManager;
 
@@ -44,26 +45,60 @@ public class DefaultRating implements Rating
     
     private XWikiContext context;
 
-    public DefaultRating(String documentName, String author, int vote, XWikiContext context)
+    private RatingsConfiguration configuration;
+
+    public DefaultRating(String documentName, String author, int vote, XWikiContext context,
+        RatingsConfiguration configuration)
     {
-        this(documentName, author, new Date(), vote, context);
+        this(documentName, author, new Date(), vote, context, configuration);
     }
 
-    public DefaultRating(String documentName, String author, Date date, int vote, XWikiContext context)
+    public DefaultRating(String documentName, String author, Date date, int vote, XWikiContext context,
+        RatingsConfiguration configuration)
     {
         this.context = context;
+        this.configuration = configuration;
         this.documentName = documentName;
         
         createObject(documentName, author, date, vote);
     }
 
-    public DefaultRating(String documentName, BaseObject obj, XWikiContext context)
+    public DefaultRating(String documentName, BaseObject obj, XWikiContext context,
+        RatingsConfiguration configuration)
     {
         this.context = context;
+        this.configuration = configuration;
         this.documentName = documentName;        
         this.document = getDocument();
         this.object = obj;
     }
+
+    /**
+     * Adds a new rating object to an already loaded document, without saving it.
+     */
+    public DefaultRating(XWikiDocument document, String documentName, String author, Date date, int vote,
+        XWikiContext context, RatingsConfiguration configuration)
+    {
+        this.context = context;
+        this.configuration = configuration;
+        this.documentName = documentName;
+        this.document = document;
+
+        createObject(documentName, author, date, vote);
+    }
+
+    /**
+     * Wraps a rating object of an already loaded document.
+     */
+    public DefaultRating(XWikiDocument document, String documentName, BaseObject obj, XWikiContext context,
+        RatingsConfiguration configuration)
+    {
+        this.context = context;
+        this.configuration = configuration;
+        this.documentName = documentName;
+        this.document = document;
+        this.object = obj;
+    }
     
 
     /**
@@ -181,17 +216,7 @@ public class DefaultRating implements Rating
     public void save() throws RatingsException
     {
         try {
-            // Force content dirty to false, so that the content update date is not changed when saving the document.
-            // This should not be handled there, since it is not the responsibility of this plugin to decide if
-            // the content has actually been changed or not since current revision, but the implementation of
-            // this in XWiki core is wrong. See http://jira.xwiki.org/jira/XWIKI-2800 for more details.
-            // There is a draw-back to doing this, being that if the document content is being changed before
-            // the document is rated, the contentUpdateDate will not be modified. Although possible, this is very
-            // unlikely to happen, or to be a use case. The default rating application will use an asynchronous service
-            // to
-            // note a document, which service will only set the rating, so the behavior will be correct.
-            getDocument().setContentDirty(false);
-            context.getWiki().saveDocument(getDocument(), context);
+            RatingsDocumentSaver.save(getDocument(), configuration, context);
         } catch (XWikiException e) {
             throw new RatingsException(e);
         }
@@ -221,7 +246,7 @@ public class DefaultRating implements Rating
             } else {
                 // save is needed to remove effectively
                 if (withSave) {
-                    context.getWiki().saveDocument(doc, context);
+                    RatingsDocumentSaver.save(doc, configuration, context);
                 }
                 return true;
             }
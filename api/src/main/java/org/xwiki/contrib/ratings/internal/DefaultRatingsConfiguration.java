@@ -0,0 +1,336 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.contrib.ratings.RatingsConfiguration;
+import org.xwiki.contrib.ratings.RatingsManager;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.BaseProperty;
+
+/**
+ * Reads the configuration of a wiki once and keeps it until the wiki preferences or the ratings configuration page
+ * of the wiki are modified, see {@link RatingsConfigurationListener}.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultRatingsConfiguration implements RatingsConfiguration
+{
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Execution execution;
+
+    /**
+     * Configuration snapshots, by wiki.
+     */
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<String, Snapshot>();
+
+    /**
+     * Incremented on each invalidation, so that a snapshot read while the configuration was modified is not kept.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Values of the configuration of a wiki.
+     */
+    private static final class Snapshot
+    {
+        private final boolean ratings;
+
+        private final boolean averageRatingStored;
+
+        private final int averageRatingCacheSize;
+
+        private final int averageRatingCacheTimeToLive;
+
+        private final boolean reputationStored;
+
+        private final boolean reputation;
+
+        private final String[] defaultReputationMethods;
+
+        private final boolean writeBehind;
+
+        private final long writeBehindInterval;
+
+        private final int reputationUpdateThreads;
+
+        private final int reputationUpdateQueueSize;
+
+        private final String topRatedScore;
+
+        private final float topRatedPriorVote;
+
+        private final int topRatedPriorWeight;
+
+        private final boolean versioned;
+
+        private final String ratingsManagerHint;
+
+        private final String reputationAlgorithmHint;
+
+        private final String separatePageSpaceName;
+
+        private final boolean separatePageSpacePerSpace;
+
+        private Snapshot(XWikiContext context, BaseObject configObject)
+        {
+            ratings = getBoolean("xwiki.ratings", "ratings", 0, context);
+            averageRatingStored =
+                getBoolean("xwiki.ratings.averagerating.stored", "ratings_averagerating_stored", 1, context);
+            averageRatingCacheSize =
+                (int) context.getWiki().ParamAsLong("xwiki.ratings.averagerating.cache.size", 1000);
+            averageRatingCacheTimeToLive =
+                (int) context.getWiki().ParamAsLong("xwiki.ratings.averagerating.cache.ttl", 300);
+            reputationStored = getBoolean("xwiki.ratings.reputation.stored", "ratings_reputation_stored", 0, context);
+            reputation = getBoolean("xwiki.ratings.reputation", "ratings_reputation", 0, context);
+            defaultReputationMethods = getString("xwiki.ratings.reputation.defaultmethod",
+                "ratings_reputation_defaultmethod", RatingsManager.RATING_REPUTATION_METHOD_DEFAULT, context).split(",");
+            writeBehind = getBoolean("xwiki.ratings.writebehind", "ratings_writebehind", 0, context);
+            writeBehindInterval = context.getWiki().ParamAsLong("xwiki.ratings.writebehind.interval", 10);
+            reputationUpdateThreads = (int) context.getWiki().ParamAsLong("xwiki.ratings.reputation.threads", 1);
+            reputationUpdateQueueSize =
+                (int) context.getWiki().ParamAsLong("xwiki.ratings.reputation.queuesize", 1000);
+            topRatedScore =
+                getString("xwiki.ratings.toprated.score", "ratings_toprated_score", "average", context);
+            topRatedPriorVote = getFloat("xwiki.ratings.toprated.priorvote", 3, context);
+            topRatedPriorWeight = (int) context.getWiki().ParamAsLong("xwiki.ratings.toprated.priorweight", 5);
+            versioned = getBoolean("xwiki.ratings.versioned", "ratings_versioned", 1, context);
+            ratingsManagerHint = getHint(RatingsManager.RATINGS_CONFIG_FIELDNAME_MANAGER_HINT, configObject, context);
+            reputationAlgorithmHint =
+                getHint(RatingsManager.RATINGS_CONFIG_FIELDNAME_REPUTATIONALGORITHM_HINT, configObject, context);
+            separatePageSpaceName = getString("xwiki.ratings.separatepagemanager.spacename",
+                "ratings_separatepagemanager_spacename", "", context);
+            separatePageSpacePerSpace = getBoolean("xwiki.ratings.separatepagemanager.ratingsspaceforeachspace",
+                "ratings_separatepagemanager_ratingsspaceforeachspace", 0, context);
+        }
+
+        private static boolean getBoolean(String param, String preference, int defaultValue, XWikiContext context)
+        {
+            XWiki xwiki = context.getWiki();
+            int result = (int) xwiki.ParamAsLong(param, defaultValue);
+            return (xwiki.getXWikiPreferenceAsInt(preference, result, context) == 1);
+        }
+
+        private static String getString(String param, String preference, String defaultValue, XWikiContext context)
+        {
+            XWiki xwiki = context.getWiki();
+            return xwiki.getXWikiPreference(preference, xwiki.Param(param, defaultValue), context);
+        }
+
+        private static float getFloat(String param, float defaultValue, XWikiContext context)
+        {
+            try {
+                return Float.parseFloat(context.getWiki().Param(param, String.valueOf(defaultValue)));
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
+        private static String getHint(String fieldName, BaseObject configObject, XWikiContext context)
+        {
+            String hint = context.getWiki().Param(RatingsManager.RATINGS_CONFIG_PARAM_PREFIX + fieldName, "default");
+            if (configObject != null) {
+                try {
+                    BaseProperty prop = (BaseProperty) configObject.get(fieldName);
+                    String value = (prop == null) ? null : (String) prop.getValue();
+                    hint = (value == null) ? hint : value;
+                } catch (Exception e) {
+                    // keep the default hint
+                }
+            }
+            return hint;
+        }
+    }
+
+    /**
+     * Drops the configuration snapshot of a wiki, so that it is read again the next time it is needed.
+     *
+     * @param wiki the wiki whose configuration was modified
+     */
+    public void invalidate(String wiki)
+    {
+        synchronized (snapshots) {
+            generation.incrementAndGet();
+            snapshots.remove(wiki);
+        }
+    }
+
+    private XWikiContext getXWikiContext()
+    {
+        return (XWikiContext) execution.getContext().getProperty("xwikicontext");
+    }
+
+    private Snapshot getSnapshot()
+    {
+        XWikiContext context = getXWikiContext();
+        Snapshot snapshot = snapshots.get(context.getDatabase());
+        if (snapshot == null) {
+            long snapshotGeneration = generation.get();
+            BaseObject configObject = null;
+            try {
+                XWikiDocument configDoc = context.getWiki().getDocument(RatingsManager.RATINGS_CONFIG_PAGE, context);
+                if (configDoc != null && !configDoc.isNew()) {
+                    configObject = configDoc.getObject(RatingsManager.RATINGS_CONFIG_CLASSNAME);
+                }
+            } catch (Exception e) {
+                logger.error("Cannot read ratings config", e);
+            }
+            snapshot = new Snapshot(context, configObject);
+            synchronized (snapshots) {
+                if (snapshotGeneration == generation.get()) {
+                    snapshots.put(context.getDatabase(), snapshot);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    @Override
+    public boolean hasRatings()
+    {
+        return getSnapshot().ratings;
+    }
+
+    @Override
+    public boolean isAverageRatingStored()
+    {
+        return getSnapshot().averageRatingStored;
+    }
+
+    @Override
+    public int getAverageRatingCacheSize()
+    {
+        return getSnapshot().averageRatingCacheSize;
+    }
+
+    @Override
+    public int getAverageRatingCacheTimeToLive()
+    {
+        return getSnapshot().averageRatingCacheTimeToLive;
+    }
+
+    @Override
+    public boolean isReputationStored()
+    {
+        return getSnapshot().reputationStored;
+    }
+
+    @Override
+    public boolean hasReputation()
+    {
+        return getSnapshot().reputation;
+    }
+
+    @Override
+    public String[] getDefaultReputationMethods()
+    {
+        return getSnapshot().defaultReputationMethods.clone();
+    }
+
+    @Override
+    public boolean isWriteBehind()
+    {
+        return getSnapshot().writeBehind;
+    }
+
+    @Override
+    public long getWriteBehindInterval()
+    {
+        return getSnapshot().writeBehindInterval;
+    }
+
+    @Override
+    public int getReputationUpdateThreads()
+    {
+        return getSnapshot().reputationUpdateThreads;
+    }
+
+    @Override
+    public int getReputationUpdateQueueSize()
+    {
+        return getSnapshot().reputationUpdateQueueSize;
+    }
+
+    @Override
+    public String getTopRatedScore()
+    {
+        return getSnapshot().topRatedScore;
+    }
+
+    @Override
+    public float getTopRatedPriorVote()
+    {
+        return getSnapshot().topRatedPriorVote;
+    }
+
+    @Override
+    public int getTopRatedPriorWeight()
+    {
+        return getSnapshot().topRatedPriorWeight;
+    }
+
+    @Override
+    public boolean isVersioned()
+    {
+        return getSnapshot().versioned;
+    }
+
+    @Override
+    public String getRatingsManagerHint()
+    {
+        return getSnapshot().ratingsManagerHint;
+    }
+
+    @Override
+    public String getReputationAlgorithmHint()
+    {
+        return getSnapshot().reputationAlgorithmHint;
+    }
+
+    @Override
+    public String getSeparatePageSpaceName()
+    {
+        return getSnapshot().separatePageSpaceName;
+    }
+
+    @Override
+    public boolean hasSeparatePageSpacePerSpace()
+    {
+        return getSnapshot().separatePageSpacePerSpace;
+    }
+}
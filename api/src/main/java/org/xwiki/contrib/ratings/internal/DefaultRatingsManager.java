@@ -20,36 +20,149 @@
 package org.xwiki.contrib.ratings.internal;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.slf4j.Logger;
 
+import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.util.XWikiStubContextProvider;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.ratings.AverageRating;
 import org.xwiki.contrib.ratings.Rating;
+import org.xwiki.contrib.ratings.RatingAggregator;
+import org.xwiki.contrib.ratings.RatingRecord;
 import org.xwiki.contrib.ratings.RatingsException;
-import org.xwiki.contrib.ratings.UpdateRatingEvent;
+import org.xwiki.observation.EventListener;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
 
 /**
  * @version $Id$
  */
 @Component
 @Singleton
-public class DefaultRatingsManager extends AbstractRatingsManager
+public class DefaultRatingsManager extends AbstractRatingsManager implements Initializable, Disposable
 {
     /**
      * The logger to LOGGER.
      */
     @Inject
     private Logger LOGGER;
-    
+
+    /**
+     * Rating objects by author, used to find the vote of a user without going through all the ratings.
+     */
+    @Inject
+    @Named(AuthorRatingsIndex.NAME)
+    private EventListener authorIndexListener;
+
+    private AuthorRatingsIndex authorIndex;
+
+    /**
+     * Counts the rating objects of each vote of a set of documents.
+     */
+    private static final String QUERY_VOTE_COUNTS_OF_DOCUMENTS =
+        "select obj.name, voteprop.value, count(voteprop.value) from BaseObject as obj, IntegerProperty as voteprop"
+        + " where obj.name in (:names) and obj.className=:className"
+        + " and obj.id=voteprop.id.id and voteprop.id.name='" + RATING_CLASS_FIELDNAME_VOTE + "'"
+        + " group by obj.name, voteprop.value";
+
+    /**
+     * Finds the rating objects of an author in a set of documents, the first object of each document first.
+     */
+    private static final String QUERY_RATING_OBJECTS_OF_AUTHOR = "select obj.name, obj.number"
+        + " from BaseObject as obj, StringProperty as authorprop where obj.name in (:names)"
+        + " and obj.className=:className and obj.id=authorprop.id.id and authorprop.id.name='"
+        + RATING_CLASS_FIELDNAME_AUTHOR + "' and authorprop.value=:author order by obj.number";
+
+    /**
+     * Creates the contexts in which the buffered votes are saved.
+     */
+    @Inject
+    private XWikiStubContextProvider stubContextProvider;
+
+    /**
+     * Votes waiting to be saved when the write-behind mode is enabled.
+     */
+    private final VoteBuffer voteBuffer = new VoteBuffer();
+
+    /**
+     * Saves the buffered votes periodically, created with the first buffered vote.
+     */
+    private ScheduledExecutorService flushExecutor;
+
+    /**
+     * Delay in seconds between two saves of the buffered votes, read from the configuration of the wiki of the first
+     * buffered vote when the executor is created, since there is no wiki context when the component is disposed.
+     */
+    private long flushInterval;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        authorIndex = (AuthorRatingsIndex) authorIndexListener;
+    }
+
+    @Override
+    public void dispose()
+    {
+        try {
+            synchronized (this) {
+                if (flushExecutor != null) {
+                    flushExecutor.shutdown();
+                    flushExecutor.awaitTermination(flushInterval, TimeUnit.SECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // the votes left in the buffer are saved even if the running flush could not be awaited
+            flushPendingVotes();
+        }
+    }
+
+    /**
+     * In write-behind mode, votes are kept in memory and saved periodically, with one save per document for all the
+     * votes cast on it since the previous save.
+     *
+     * @return true if the write-behind mode is enabled
+     */
+    public boolean isWriteBehind()
+    {
+        return configuration.isWriteBehind();
+    }
+
+    /**
+     * @return the delay in seconds between two saves of the buffered votes
+     */
+    protected long getWriteBehindInterval()
+    {
+        return configuration.getWriteBehindInterval();
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -58,29 +171,492 @@ public class DefaultRatingsManager extends AbstractRatingsManager
      */
     public Rating setRating(String documentName, String author, int vote) throws RatingsException
     {
-        Rating rating = getRating(documentName, author);
+        if (isWriteBehind()) {
+            return bufferRating(documentName, author, vote);
+        }
+        DefaultRating rating;
         int oldVote;
-        if (rating == null) {
-            oldVote = 0;
-            rating = new DefaultRating(documentName, author, vote, getXWikiContext());
-        } else {
-            oldVote = rating.getVote();
-            rating.setVote(vote);
-            rating.setDate(new Date());
-        }
-        // update rating
-        rating.save();
-        
-        // update average rating count
-        updateAverageRatings(documentName, rating, oldVote);
-        
+        Lock lock = getDocumentLock(documentName);
+        lock.lock();
+        try {
+            if (!voteBuffer.isEmpty()) {
+                // the write-behind mode has been disabled, save the votes left in the buffer first
+                flushPendingVotes(getDocumentKey(documentName));
+            }
+
+            XWikiContext context = getXWikiContext();
+            XWikiDocument doc = getXWiki().getDocument(documentName, context);
+            BaseObject object = authorIndex.getRatingObject(doc, author);
+            if (object == null) {
+                oldVote = 0;
+                rating = new DefaultRating(doc, documentName, author, new Date(), vote, context, configuration);
+                authorIndex.add(doc, rating.getAsObject());
+            } else {
+                rating = new DefaultRating(doc, documentName, object, context, configuration);
+                oldVote = rating.getVote();
+                rating.setVote(vote);
+                rating.setDate(new Date());
+            }
+
+            // update average rating count, in the same document
+            updateAverageRatings(doc, documentName, new int[] {oldVote}, new int[] {vote});
+
+            // save the rating and the average ratings at once
+            saveDocument(doc, context);
+        } catch (XWikiException e) {
+            throw new RatingsException(e);
+        } finally {
+            lock.unlock();
+        }
+
         // update reputation
-        observationManager.notify(new UpdateRatingEvent(documentName, rating, oldVote), null);
+        notifyRatingUpdated(documentName, rating, oldVote);
         return rating;
     }
 
+    /**
+     * Adds a vote to the write-behind buffer. The vote is visible right away through {@link #getRating(String, String)}
+     * and {@link #getAverageRating(String, String, boolean)}, and saved with the next flush of the buffer.
+     */
+    private Rating bufferRating(String documentName, String author, int vote) throws RatingsException
+    {
+        String key = getDocumentKey(documentName);
+        VoteBuffer.PendingVote pendingVote;
+        int oldVote;
+        Lock lock = getDocumentLock(documentName);
+        lock.lock();
+        try {
+            pendingVote = voteBuffer.get(key, author);
+            int persistedVote;
+            if (pendingVote == null) {
+                Rating persistedRating = getPersistedRating(documentName, author);
+                persistedVote = (persistedRating == null) ? 0 : persistedRating.getVote();
+                oldVote = persistedVote;
+            } else {
+                persistedVote = pendingVote.getPersistedVote();
+                oldVote = pendingVote.getVote();
+            }
+            pendingVote =
+                voteBuffer.add(key, documentName, getXWikiContext().getDatabase(), author, persistedVote, vote);
+        } finally {
+            lock.unlock();
+        }
+        scheduleFlush();
+
+        Rating rating = new BufferedRating(documentName, pendingVote, this);
+        // update reputation
+        notifyRatingUpdated(documentName, rating, oldVote);
+        return rating;
+    }
+
+    private synchronized void scheduleFlush()
+    {
+        if (flushExecutor == null) {
+            flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "Ratings write-behind");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            flushInterval = getWriteBehindInterval();
+            flushExecutor.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    flushPendingVotes();
+                }
+            }, flushInterval, flushInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Saves the buffered votes of all the documents, each document in a new context of its wiki, for the author of its
+     * first pending vote.
+     */
+    public void flushPendingVotes()
+    {
+        for (final String key : voteBuffer.getKeys()) {
+            String wiki = voteBuffer.getWiki(key);
+            if (wiki == null) {
+                continue;
+            }
+            new ContextualTask(execution, stubContextProvider, wiki, voteBuffer.getUser(key))
+            {
+                @Override
+                protected void runInContext()
+                {
+                    try {
+                        flushPendingVotes(key);
+                    } catch (Exception e) {
+                        LOGGER.error("Failed to save the pending votes of document " + voteBuffer.getDocumentName(key),
+                            e);
+                    }
+                }
+            }.run();
+        }
+    }
+
+    /**
+     * Saves the buffered votes of a document, along with its average ratings, in a single save.
+     *
+     * @param key the key identifying the document in the buffer
+     * @throws RatingsException when an error occurs while saving the document
+     */
+    private void flushPendingVotes(String key) throws RatingsException
+    {
+        List<VoteBuffer.PendingVote> pendingVotes = voteBuffer.getVotes(key);
+        String documentName = voteBuffer.getDocumentName(key);
+        if (pendingVotes.isEmpty() || documentName == null) {
+            return;
+        }
+
+        Lock lock = getDocumentLock(documentName);
+        lock.lock();
+        try {
+            // votes cast before the lock was acquired are saved too
+            pendingVotes = voteBuffer.getVotes(key);
+            if (pendingVotes.isEmpty()) {
+                return;
+            }
+            XWikiContext context = getXWikiContext();
+            XWikiDocument doc = getXWiki().getDocument(documentName, context);
+            int[] oldVotes = new int[pendingVotes.size()];
+            int[] newVotes = new int[pendingVotes.size()];
+            for (int i = 0; i < pendingVotes.size(); i++) {
+                VoteBuffer.PendingVote pendingVote = pendingVotes.get(i);
+                BaseObject object = authorIndex.getRatingObject(doc, pendingVote.getAuthor());
+                if (object == null) {
+                    oldVotes[i] = 0;
+                    DefaultRating rating = new DefaultRating(doc, documentName, pendingVote.getAuthor(),
+                        pendingVote.getDate(), pendingVote.getVote(), context, configuration);
+                    authorIndex.add(doc, rating.getAsObject());
+                } else {
+                    oldVotes[i] = object.getIntValue(RATING_CLASS_FIELDNAME_VOTE);
+                    object.setIntValue(RATING_CLASS_FIELDNAME_VOTE, pendingVote.getVote());
+                    object.setDateValue(RATING_CLASS_FIELDNAME_DATE, pendingVote.getDate());
+                }
+                newVotes[i] = pendingVote.getVote();
+            }
+            updateAverageRatings(doc, documentName, oldVotes, newVotes);
+
+            saveDocument(doc, context);
+            voteBuffer.removeSaved(key, pendingVotes);
+            invalidateAverageRatings(documentName);
+        } catch (XWikiException e) {
+            throw new RatingsException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saves a rated document after its ratings were changed, keeping its author index, which is already up to date.
+     */
+    private void saveDocument(XWikiDocument doc, XWikiContext context) throws XWikiException
+    {
+        authorIndex.beginSave(doc);
+        try {
+            RatingsDocumentSaver.save(doc, configuration, context);
+        } finally {
+            authorIndex.endSave();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The average ratings of the documents having votes in the write-behind buffer are read one by one, to include
+     * these votes.
+     * </p>
+     */
+    @Override
+    protected Map<String, AverageRating> readAverageRatings(List<String> documentNames, String method)
+        throws RatingsException
+    {
+        List<String> bufferedNames = getBufferedDocumentNames(documentNames);
+        if (bufferedNames.isEmpty()) {
+            return super.readAverageRatings(documentNames, method);
+        }
+        List<String> savedNames = new ArrayList<String>(documentNames);
+        savedNames.removeAll(bufferedNames);
+        Map<String, AverageRating> averageRatings = super.readAverageRatings(savedNames, method);
+        for (String documentName : bufferedNames) {
+            averageRatings.put(documentName, getAverageRating(documentName, method, false));
+        }
+        return averageRatings;
+    }
+
+    /**
+     * Counts the rating objects of each vote of all the documents with one query, for the methods which are not
+     * weighted by reputation.
+     */
+    @Override
+    protected Map<String, AverageRating> calcAverageRatings(List<String> documentNames, String method)
+        throws RatingsException
+    {
+        if (getAggregator(method).isReputationWeighted()) {
+            return super.calcAverageRatings(documentNames, method);
+        }
+        List<String> localNames = getLocalDocumentNames(documentNames);
+        List<String> otherNames = new ArrayList<String>(documentNames);
+        otherNames.removeAll(localNames);
+        try {
+            List<Object[]> voteCounts = new ArrayList<Object[]>();
+            for (List<String> batch : getBatches(localNames)) {
+                List<Object[]> results = queryManager.createQuery(QUERY_VOTE_COUNTS_OF_DOCUMENTS, Query.HQL)
+                    .bindValue("names", batch).bindValue("className", getRatingsClassName()).execute();
+                voteCounts.addAll(results);
+            }
+            Map<String, AverageRating> averageRatings = calcAverageRatings(localNames, voteCounts, method);
+            averageRatings.putAll(super.calcAverageRatings(otherNames, method));
+            return averageRatings;
+        } catch (QueryException e) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS, RatingsException.ERROR_RATINGS_QUERY,
+                "Failed to count the votes of " + localNames.size() + " documents", e);
+        }
+    }
+
     /**
      * {@inheritDoc}
+     * <p>
+     * The rating objects of the author are found with one query, so that only the documents rated by the author are
+     * loaded.
+     * </p>
+     */
+    @Override
+    protected Map<String, Rating> readRatings(List<String> documentNames, String author) throws RatingsException
+    {
+        Map<String, Rating> ratings = new HashMap<String, Rating>();
+        List<String> savedNames = new ArrayList<String>();
+        for (String documentName : documentNames) {
+            VoteBuffer.PendingVote pendingVote =
+                voteBuffer.isEmpty() ? null : voteBuffer.get(getDocumentKey(documentName), author);
+            if (pendingVote != null) {
+                ratings.put(documentName, new BufferedRating(documentName, pendingVote, this));
+            } else if (documentName.indexOf(':') >= 0) {
+                // documents from other wikis are stored in another database
+                Rating rating = getPersistedRating(documentName, author);
+                if (rating != null) {
+                    ratings.put(documentName, rating);
+                }
+            } else {
+                savedNames.add(documentName);
+            }
+        }
+
+        try {
+            XWikiContext context = getXWikiContext();
+            for (List<String> batch : getBatches(savedNames)) {
+                List<Object[]> results = queryManager.createQuery(QUERY_RATING_OBJECTS_OF_AUTHOR, Query.HQL)
+                    .bindValue("names", batch).bindValue("className", getRatingsClassName())
+                    .bindValue("author", author).execute();
+                for (Object[] result : results) {
+                    String documentName = (String) result[0];
+                    if (!ratings.containsKey(documentName)) {
+                        XWikiDocument doc = getXWiki().getDocument(documentName, context);
+                        BaseObject object = doc.getObject(getRatingsClassName(), ((Number) result[1]).intValue());
+                        if (object != null) {
+                            ratings.put(documentName, getDefaultRating(documentName, object));
+                        }
+                    }
+                }
+            }
+        } catch (QueryException e) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS, RatingsException.ERROR_RATINGS_QUERY,
+                "Failed to read the ratings of " + author + " on " + savedNames.size() + " documents", e);
+        } catch (XWikiException e) {
+            throw new RatingsException(e);
+        }
+        return ratings;
+    }
+
+    /**
+     * @param documentNames documents
+     * @return the documents having votes in the write-behind buffer
+     */
+    private List<String> getBufferedDocumentNames(List<String> documentNames)
+    {
+        List<String> bufferedNames = new ArrayList<String>();
+        if (!voteBuffer.isEmpty()) {
+            for (String documentName : documentNames) {
+                if (!voteBuffer.getVotes(getDocumentKey(documentName)).isEmpty()) {
+                    bufferedNames.add(documentName);
+                }
+            }
+        }
+        return bufferedNames;
+    }
+
+    /**
+     * @param documentNames documents
+     * @return the documents of the current wiki, the documents of other wikis being stored in another database
+     */
+    private List<String> getLocalDocumentNames(List<String> documentNames)
+    {
+        List<String> localNames = new ArrayList<String>();
+        for (String documentName : documentNames) {
+            if (documentName.indexOf(':') < 0) {
+                localNames.add(documentName);
+            }
+        }
+        return localNames;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The ratings are written in a single save of the document.
+     * </p>
+     */
+    @Override
+    protected int importDocumentRatings(String documentName, Collection<RatingRecord> records)
+        throws RatingsException
+    {
+        try {
+            XWikiContext context = getXWikiContext();
+            XWikiDocument doc = getXWiki().getDocument(documentName, context);
+            for (RatingRecord record : records) {
+                Date date = (record.getDate() == null) ? new Date() : record.getDate();
+                BaseObject object = authorIndex.getRatingObject(doc, record.getAuthor());
+                if (object == null) {
+                    DefaultRating rating = new DefaultRating(doc, documentName, record.getAuthor(), date,
+                        record.getVote(), context, configuration);
+                    authorIndex.add(doc, rating.getAsObject());
+                } else {
+                    object.setIntValue(RATING_CLASS_FIELDNAME_VOTE, record.getVote());
+                    object.setDateValue(RATING_CLASS_FIELDNAME_DATE, date);
+                }
+            }
+            saveDocument(doc, context);
+            return records.size();
+        } catch (XWikiException e) {
+            throw new RatingsException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The ratings are read from the given document, which may hold ratings which have not been saved yet.
+     * </p>
+     */
+    @Override
+    protected List<Rating> getAllRatings(XWikiDocument doc, String documentName) throws RatingsException
+    {
+        return getRatings(doc, documentName, 0, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The rating object is removed and the average ratings updated in a single save of the document.
+     * </p>
+     */
+    @Override
+    public boolean removeRating(Rating rating) throws RatingsException
+    {
+        Lock lock = getDocumentLock(rating.getDocumentName());
+        lock.lock();
+        try {
+            Rating persistedRating = rating;
+            if (rating instanceof BufferedRating) {
+                flushPendingVotes(getDocumentKey(rating.getDocumentName()));
+                persistedRating = getPersistedRating(rating.getDocumentName(), rating.getAuthor());
+                if (persistedRating == null) {
+                    return false;
+                }
+            }
+            if (!(persistedRating instanceof DefaultRating)) {
+                return super.removeRating(persistedRating);
+            }
+
+            DefaultRating defaultRating = (DefaultRating) persistedRating;
+            int oldVote = defaultRating.getVote();
+            if (!defaultRating.remove(false)) {
+                return false;
+            }
+            updateAverageRatings(defaultRating.getDocument(), defaultRating.getDocumentName(),
+                new int[] {oldVote}, new int[] {0});
+            defaultRating.save();
+            return true;
+        } catch (XWikiException e) {
+            throw new RatingsException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saves the pending votes of the document of a buffered rating, then removes the saved rating.
+     *
+     * @param rating the buffered rating to remove
+     * @return true if the rating was removed
+     * @throws RatingsException when an error occurs while saving or removing the rating
+     */
+    boolean removeBufferedRating(BufferedRating rating) throws RatingsException
+    {
+        Lock lock = getDocumentLock(rating.getDocumentName());
+        lock.lock();
+        try {
+            flushPendingVotes(getDocumentKey(rating.getDocumentName()));
+            Rating persistedRating = getPersistedRating(rating.getDocumentName(), rating.getAuthor());
+            return (persistedRating != null) && persistedRating.remove();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * In write-behind mode, the average rating includes the votes which have not been saved yet.
+     * </p>
+     */
+    @Override
+    public AverageRating getAverageRating(String documentName, String method, boolean create)
+        throws RatingsException
+    {
+        AverageRating averageRating = super.getAverageRating(documentName, method, create);
+        List<VoteBuffer.PendingVote> pendingVotes =
+            voteBuffer.isEmpty() ? null : voteBuffer.getVotes(getDocumentKey(documentName));
+        if (create || averageRating == null || pendingVotes == null || pendingVotes.isEmpty()) {
+            return averageRating;
+        }
+
+        RatingAggregator aggregator = getAggregator(method);
+        AverageRating merged = new MemoryAverageRating(documentName, 0, 0, method);
+        copyAverageRating(averageRating, merged);
+        boolean updated = true;
+        for (int i = 0; updated && i < pendingVotes.size(); i++) {
+            VoteBuffer.PendingVote pendingVote = pendingVotes.get(i);
+            updated = aggregator.updateVote(merged, pendingVote.getPersistedVote(), pendingVote.getVote());
+        }
+        if (updated) {
+            return merged;
+        }
+
+        // compute the average from the saved ratings, replaced or completed by the pending votes
+        Map<String, Rating> ratings = new HashMap<String, Rating>();
+        List<Rating> persistedRatings = getRatings(documentName, 0, 0, true);
+        if (persistedRatings != null) {
+            for (Rating rating : persistedRatings) {
+                ratings.put(rating.getAuthor(), rating);
+            }
+        }
+        for (VoteBuffer.PendingVote pendingVote : pendingVotes) {
+            ratings.put(pendingVote.getAuthor(), new BufferedRating(documentName, pendingVote, this));
+        }
+        return calcAverageRating(documentName, new ArrayList<Rating>(ratings.values()), method);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the saved ratings are returned, votes waiting in the write-behind buffer are not.
+     * </p>
      *
      * @see org.xwiki.contrib.ratings.RatingsManager#getRatings(com.xpn.xwiki.plugin.comments.Container, int, int,
      *      boolean, com.xpn.xwiki.XWikiContext)
@@ -92,33 +668,100 @@ public class DefaultRatingsManager extends AbstractRatingsManager
             LOGGER.debug("Calling default manager code for ratings");
         }
         try {
-            int skipped = 0;
-            int nb = 0;
             XWikiDocument doc = getXWiki().getDocument(documentName, getXWikiContext());
-            List<BaseObject> bobjects = doc.getObjects(getRatingsClassName());
-            if (bobjects != null) {
-                List<Rating> ratings = new ArrayList<Rating>();
-                for (BaseObject bobj : bobjects) {
-                    if (bobj != null) {
-                        if (skipped < start) {
-                            skipped++;
-                        } else {
-                            ratings.add(getDefaultRating(documentName, bobj));
-                            nb++;
-                        }
-                        if ((count != 0) && (nb == count)) {
-                            break;
-                        }
+            return getRatings(doc, documentName, start, count);
+        } catch (XWikiException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * @param doc the rated document
+     * @param documentName the name of the rated document
+     * @param start the number of ratings to skip
+     * @param count the maximum number of ratings to return, 0 for all
+     * @return the ratings of the document, or null if it has no rating object
+     */
+    private List<Rating> getRatings(XWikiDocument doc, String documentName, int start, int count)
+    {
+        int skipped = 0;
+        int nb = 0;
+        List<BaseObject> bobjects = doc.getObjects(getRatingsClassName());
+        if (bobjects != null) {
+            List<Rating> ratings = new ArrayList<Rating>();
+            for (BaseObject bobj : bobjects) {
+                if (bobj != null) {
+                    if (skipped < start) {
+                        skipped++;
+                    } else {
+                        ratings.add(new DefaultRating(doc, documentName, bobj, getXWikiContext(), configuration));
+                        nb++;
+                    }
+                    if ((count != 0) && (nb == count)) {
+                        break;
                     }
                 }
-                return ratings;
             }
-        } catch (XWikiException e) {
-            e.printStackTrace();
+            return ratings;
         }
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The rating objects are loaded with the document: each one is wrapped in a rating only when the iteration reaches
+     * it, in the order of the object numbers. Votes waiting in the write-behind buffer are not returned.
+     * </p>
+     */
+    @Override
+    public Iterator<Rating> getRatings(final String documentName, final boolean asc) throws RatingsException
+    {
+        final XWikiDocument doc;
+        try {
+            doc = getXWiki().getDocument(documentName, getXWikiContext());
+        } catch (XWikiException e) {
+            throw new RatingsException(e);
+        }
+        List<BaseObject> bobjects = doc.getObjects(getRatingsClassName());
+        // copy the object references, since votes may add objects to the cached document while iterating
+        List<BaseObject> objects =
+            (bobjects == null) ? new ArrayList<BaseObject>() : new ArrayList<BaseObject>(bobjects);
+        final ListIterator<BaseObject> objectIterator =
+            asc ? objects.listIterator() : objects.listIterator(objects.size());
+        return new Iterator<Rating>()
+        {
+            private BaseObject nextObject;
+
+            @Override
+            public boolean hasNext()
+            {
+                while (nextObject == null && (asc ? objectIterator.hasNext() : objectIterator.hasPrevious())) {
+                    nextObject = asc ? objectIterator.next() : objectIterator.previous();
+                }
+                return nextObject != null;
+            }
+
+            @Override
+            public Rating next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                BaseObject bobj = nextObject;
+                nextObject = null;
+                return new DefaultRating(doc, documentName, bobj, getXWikiContext(), configuration);
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     public Rating getRating(String ratingId) throws RatingsException
     {
         try {
@@ -145,7 +788,7 @@ public class DefaultRatingsManager extends AbstractRatingsManager
                     RatingsException.ERROR_RATINGS_INVALID_RATING_ID, "Invalid rating ID, could not find rating");
             }
 
-            return new DefaultRating(docName, object, getXWikiContext());
+            return new DefaultRating(docName, object, getXWikiContext(), configuration);
         } catch (XWikiException e) {
             throw new RatingsException(e);
         }
@@ -188,27 +831,38 @@ public class DefaultRatingsManager extends AbstractRatingsManager
      */
     public Rating getRating(String documentName, String author) throws RatingsException
     {
-        try {
-            if (author == null) {
-                return null;
-            }
-            List<Rating> ratings = getRatings(documentName, 0, 0, false);
-            if (ratings == null) {
-                return null;
+        if (author != null && !voteBuffer.isEmpty()) {
+            VoteBuffer.PendingVote pendingVote = voteBuffer.get(getDocumentKey(documentName), author);
+            if (pendingVote != null) {
+                return new BufferedRating(documentName, pendingVote, this);
             }
-            for (Rating rating : ratings) {
-                if (rating != null && author.equals(rating.getAuthor())) {
-                    return rating;
-                }
-            }
-        } catch (XWikiException e) {
+        }
+        return getPersistedRating(documentName, author);
+    }
+
+    /**
+     * @param documentName the rated document
+     * @param author the author of the rating
+     * @return the rating of the author saved in the document, ignoring the votes waiting in the write-behind buffer
+     * @throws RatingsException when an error occurs while reading the document, which must not be taken for a
+     *             document without a rating of the author
+     */
+    private Rating getPersistedRating(String documentName, String author) throws RatingsException
+    {
+        if (author == null) {
             return null;
         }
-        return null;
+        try {
+            XWikiDocument doc = getXWiki().getDocument(documentName, getXWikiContext());
+            BaseObject object = authorIndex.getRatingObject(doc, author);
+            return (object == null) ? null : getDefaultRating(documentName, object);
+        } catch (XWikiException e) {
+            throw new RatingsException(e);
+        }
     }
 
     private DefaultRating getDefaultRating(String documentName, BaseObject bobj)
     {
-        return new DefaultRating(documentName, bobj, getXWikiContext());
+        return new DefaultRating(documentName, bobj, getXWikiContext(), configuration);
     }
 }
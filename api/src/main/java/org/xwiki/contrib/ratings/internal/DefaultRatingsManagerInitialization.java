@@ -101,6 +101,7 @@ public class DefaultRatingsManagerInitialization implements EventListener, Initi
         needsUpdate |= bclass.addNumberField(RatingsManager.AVERAGERATING_CLASS_FIELDNAME_NBVOTES, "Number of Votes", 5, "integer");
         needsUpdate |= bclass.addNumberField(RatingsManager.AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE, "Average Vote", 5, "float");
         needsUpdate |= bclass.addTextField(RatingsManager.AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE_METHOD, "Average Vote method", 10);
+        needsUpdate |= bclass.addTextAreaField(RatingsManager.AVERAGERATING_CLASS_FIELDNAME_STATE, "State", 40, 3);
 
         if (StringUtils.isBlank(doc.getAuthor())) {
             needsUpdate = true;
@@ -19,6 +19,7 @@
  */
 package org.xwiki.contrib.ratings.internal;
 
+import java.util.Collection;
 import java.util.Map;
 
 import javax.inject.Inject;
@@ -162,7 +163,60 @@ public class DefaultReputationAlgorithm implements ReputationAlgorithm
             }
         }
     }
-    
+
+    /**
+     * Updates the reputations after several votes on documents created by the same contributor, without loading the
+     * rated documents. The votes are applied in turn: the reputations computed for a vote are saved before the next
+     * vote is computed, since the reputations are computed from the stored ones.
+     * <p>
+     * This implements {@link BatchReputationAlgorithm#updateReputations(String, Collection)} for the subclasses
+     * which opt in by implementing that interface. This algorithm does not, so that subclasses overriding
+     * {@link #updateReputation(String, Rating, int)} are always given the votes one at a time.
+     * </p>
+     *
+     * @param contributor the creator of the rated documents
+     * @param updates the votes whose reputation update has not been run yet, in the order they were cast
+     */
+    public void updateReputations(String contributor, Collection<ReputationUpdate> updates)
+    {
+        for (ReputationUpdate update : updates) {
+            if (update.getOldVote() == update.getVote()) {
+                continue;
+            }
+            Rating rating = update.getRating();
+            try {
+                storeReputation(update.getAuthor(), calcNewVoterReputation(update.getAuthor(),
+                    update.getDocumentName(), rating, update.getOldVote()));
+            } catch (ReputationException e) {
+                if (e.getCode() != ReputationException.ERROR_REPUTATION_NOT_IMPLEMENTED) {
+                    LOGGER.error("Error while calculating voter reputation " + update.getAuthor() + " for document "
+                        + update.getDocumentName(), e);
+                }
+            }
+            try {
+                storeReputation(contributor, calcNewContributorReputation(contributor, update.getDocumentName(),
+                    rating, update.getOldVote()));
+            } catch (ReputationException e) {
+                if (e.getCode() != ReputationException.ERROR_REPUTATION_NOT_IMPLEMENTED) {
+                    LOGGER.error("Error while calculating author reputation for document "
+                        + update.getDocumentName(), e);
+                }
+            }
+        }
+    }
+
+    private void storeReputation(String username, AverageRating reputation)
+    {
+        if (reputation == null) {
+            return;
+        }
+        try {
+            getRatingsManager().updateUserReputation(username, reputation);
+        } catch (RatingsException e) {
+            LOGGER.error("Error while storing reputation for user " + username, e);
+        }
+    }
+
     /**
      * Not implemented. Voters don't receive reputation
      */
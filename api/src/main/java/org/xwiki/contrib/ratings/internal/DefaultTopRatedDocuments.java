@@ -0,0 +1,687 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.context.Execution;
+import org.xwiki.contrib.ratings.AverageRating;
+import org.xwiki.contrib.ratings.RatingsConfiguration;
+import org.xwiki.contrib.ratings.RatingsException;
+import org.xwiki.contrib.ratings.RatingsImportedEvent;
+import org.xwiki.contrib.ratings.RatingsManager;
+import org.xwiki.contrib.ratings.TopRatedDocuments;
+import org.xwiki.contrib.ratings.UpdateRatingEvent;
+import org.xwiki.environment.Environment;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Keeps, for each wiki and average rating method, the rated documents sorted by score, both for the whole wiki and
+ * for each space. A ranking is updated after each vote and each save of a document holding average ratings, in
+ * logarithmic time.
+ * <p>
+ * Each ranking is backed by an index file in the permanent directory, holding the number of votes and the average
+ * vote of each rated document. Updates are appended to the file, which is rewritten when it holds too many outdated
+ * lines. Rankings are loaded from their file, or from the stored average ratings when there is no file yet or when
+ * the file does not match them anymore.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultTopRatedDocuments implements TopRatedDocuments, Disposable
+{
+    private static final String SCORE_VOTES = "votes";
+
+    private static final String SCORE_BAYESIAN = "bayesian";
+
+    private static final String INDEX_DIRECTORY = "ratings";
+
+    private static final String INDEX_EXTENSION = ".index";
+
+    private static final String INDEX_ENCODING = "UTF-8";
+
+    private static final char FIELD_SEPARATOR = '\t';
+
+    private static final char CURSOR_SEPARATOR = ':';
+
+    /**
+     * Minimum number of lines of an index file before it is rewritten.
+     */
+    private static final int MIN_COMPACTION_SIZE = 1000;
+
+    /**
+     * Relative difference allowed between the weighted votes of an index file and of the stored average ratings,
+     * which are not added up in the same order.
+     */
+    private static final double WEIGHTED_VOTES_TOLERANCE = 1e-9;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private Provider<RatingsManager> ratingsManagerProvider;
+
+    @Inject
+    private RatingsConfiguration configuration;
+
+    /**
+     * Rankings already loaded, by wiki and method.
+     */
+    private final Map<String, Ranking> rankings = new ConcurrentHashMap<String, Ranking>();
+
+    /**
+     * Locks taken while loading a ranking, by wiki and method, so that loading a ranking does not block the readers of
+     * the other rankings.
+     */
+    private final ConcurrentMap<String, Object> loadLocks = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Methods having an index file, by wiki. Their rankings are loaded when they need to be updated.
+     */
+    private final Map<String, Set<String>> indexedMethods = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Average rating of a ranked document, with its score.
+     */
+    private static final class RankedDocument
+    {
+        private final String documentName;
+
+        private final int nbVotes;
+
+        private final float averageVote;
+
+        private final double score;
+
+        private RankedDocument(String documentName, int nbVotes, float averageVote, double score)
+        {
+            this.documentName = documentName;
+            this.nbVotes = nbVotes;
+            this.averageVote = averageVote;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Best score first, then most votes first, then by document name.
+     */
+    private static final Comparator<RankedDocument> RANK_ORDER = new Comparator<RankedDocument>()
+    {
+        public int compare(RankedDocument document1, RankedDocument document2)
+        {
+            int result = Double.compare(document2.score, document1.score);
+            if (result == 0) {
+                result = document2.nbVotes - document1.nbVotes;
+            }
+            return (result == 0) ? document1.documentName.compareTo(document2.documentName) : result;
+        }
+    };
+
+    /**
+     * Rated documents of a wiki for one method, sorted by score, with the index file they are saved to. Accesses are
+     * synchronized on the ranking.
+     */
+    private static final class Ranking
+    {
+        private final String method;
+
+        private final String score;
+
+        private final float priorVote;
+
+        private final int priorWeight;
+
+        private final Map<String, RankedDocument> documents = new HashMap<String, RankedDocument>();
+
+        private final NavigableSet<RankedDocument> wikiRanking = new TreeSet<RankedDocument>(RANK_ORDER);
+
+        private final Map<String, NavigableSet<RankedDocument>> spaceRankings =
+            new HashMap<String, NavigableSet<RankedDocument>>();
+
+        private File indexFile;
+
+        /**
+         * Appends updates to the index file, null if the file cannot be written.
+         */
+        private Writer journal;
+
+        /**
+         * Number of lines of the index file.
+         */
+        private int indexSize;
+
+        private Ranking(String method, RatingsConfiguration configuration)
+        {
+            this.method = method;
+            this.score = configuration.getTopRatedScore();
+            this.priorVote = configuration.getTopRatedPriorVote();
+            this.priorWeight = configuration.getTopRatedPriorWeight();
+        }
+
+        private boolean hasConfiguration(RatingsConfiguration configuration)
+        {
+            return score.equals(configuration.getTopRatedScore())
+                && priorVote == configuration.getTopRatedPriorVote()
+                && priorWeight == configuration.getTopRatedPriorWeight();
+        }
+
+        private RankedDocument newRankedDocument(String documentName, int nbVotes, float averageVote)
+        {
+            double documentScore;
+            if (SCORE_VOTES.equals(score)) {
+                documentScore = nbVotes;
+            } else if (SCORE_BAYESIAN.equals(score)) {
+                documentScore =
+                    ((double) priorWeight * priorVote + (double) nbVotes * averageVote) / (priorWeight + nbVotes);
+            } else {
+                documentScore = averageVote;
+            }
+            return new RankedDocument(documentName, nbVotes, averageVote, documentScore);
+        }
+
+        private static String getSpace(String documentName)
+        {
+            int index = documentName.indexOf('.');
+            return (index < 0) ? "" : documentName.substring(0, index);
+        }
+
+        /**
+         * @return false if the document already had these values
+         */
+        private boolean update(String documentName, int nbVotes, float averageVote)
+        {
+            RankedDocument current = documents.get(documentName);
+            if ((current == null) ? (nbVotes <= 0)
+                : (current.nbVotes == nbVotes && current.averageVote == averageVote)) {
+                return false;
+            }
+            String space = getSpace(documentName);
+            NavigableSet<RankedDocument> spaceRanking = spaceRankings.get(space);
+            if (current != null) {
+                documents.remove(documentName);
+                wikiRanking.remove(current);
+                spaceRanking.remove(current);
+            }
+            if (nbVotes > 0) {
+                RankedDocument document = newRankedDocument(documentName, nbVotes, averageVote);
+                documents.put(documentName, document);
+                wikiRanking.add(document);
+                if (spaceRanking == null) {
+                    spaceRanking = new TreeSet<RankedDocument>(RANK_ORDER);
+                    spaceRankings.put(space, spaceRanking);
+                }
+                spaceRanking.add(document);
+            } else if (spaceRanking.isEmpty()) {
+                spaceRankings.remove(space);
+            }
+            return true;
+        }
+
+        /**
+         * @param totals the number of documents, of votes and of weighted votes of the stored average ratings
+         * @return true if the ranked documents have the same totals
+         */
+        private boolean hasTotals(double[] totals)
+        {
+            long totalVotes = 0;
+            double weightedVotes = 0;
+            for (RankedDocument document : documents.values()) {
+                totalVotes += document.nbVotes;
+                weightedVotes += (double) document.nbVotes * document.averageVote;
+            }
+            return totals[0] == documents.size() && totals[1] == totalVotes
+                && Math.abs(totals[2] - weightedVotes) <= WEIGHTED_VOTES_TOLERANCE * Math.max(1, weightedVotes);
+        }
+
+        private Map<String, AverageRating> getPage(String space, RankedDocument after, int count)
+        {
+            Map<String, AverageRating> page = new LinkedHashMap<String, AverageRating>();
+            NavigableSet<RankedDocument> ranking =
+                StringUtils.isEmpty(space) ? wikiRanking : spaceRankings.get(space);
+            if (ranking != null) {
+                for (RankedDocument document : (after == null) ? ranking : ranking.tailSet(after, false)) {
+                    if (page.size() >= count) {
+                        break;
+                    }
+                    page.put(document.documentName, new MemoryAverageRating(document.documentName,
+                        document.nbVotes, document.averageVote, method));
+                }
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Updates the loaded or indexed rankings of the current wiki after a vote, an import or a save, see
+     * {@link TopRatedDocumentsListener}.
+     *
+     * @param event the event
+     * @param source the rated or saved document, for document events
+     */
+    public void onEvent(Event event, Object source)
+    {
+        Set<String> methods = getIndexedMethods();
+        if (methods.isEmpty()) {
+            return;
+        }
+        try {
+            if (event instanceof UpdateRatingEvent) {
+                onVote(((UpdateRatingEvent) event).getDocumentName(), methods);
+            } else if (event instanceof RatingsImportedEvent) {
+                onVote(((RatingsImportedEvent) event).getDocumentName(), methods);
+            } else if (event instanceof DocumentDeletedEvent) {
+                onDelete((XWikiDocument) source, methods);
+            } else {
+                onSave((XWikiDocument) source, methods);
+            }
+        } catch (RatingsException e) {
+            logger.error("Failed to update the rated documents index", e);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        for (Ranking ranking : rankings.values()) {
+            synchronized (ranking) {
+                closeJournal(ranking);
+            }
+        }
+    }
+
+    private XWikiContext getXWikiContext()
+    {
+        return (XWikiContext) execution.getContext().getProperty("xwikicontext");
+    }
+
+    @Override
+    public Map<String, AverageRating> getTopRated(String space, int count, String method) throws RatingsException
+    {
+        return getRatedDocuments(space, null, count, method);
+    }
+
+    @Override
+    public Map<String, AverageRating> getRatedDocuments(String space, String after, int count, String method)
+        throws RatingsException
+    {
+        Ranking ranking = getRanking(method);
+        if (ranking == null) {
+            return null;
+        }
+        synchronized (ranking) {
+            return ranking.getPage(space, parseCursor(ranking, after), count);
+        }
+    }
+
+    @Override
+    public String getCursor(String documentName, AverageRating averageRating)
+    {
+        return averageRating.getNbVotes() + String.valueOf(CURSOR_SEPARATOR) + averageRating.getAverageVote()
+            + CURSOR_SEPARATOR + documentName;
+    }
+
+    private RankedDocument parseCursor(Ranking ranking, String cursor) throws RatingsException
+    {
+        if (StringUtils.isEmpty(cursor)) {
+            return null;
+        }
+        int index1 = cursor.indexOf(CURSOR_SEPARATOR);
+        int index2 = cursor.indexOf(CURSOR_SEPARATOR, index1 + 1);
+        try {
+            if (index1 > 0 && index2 > index1) {
+                return ranking.newRankedDocument(cursor.substring(index2 + 1),
+                    Integer.parseInt(cursor.substring(0, index1)), Float.parseFloat(cursor.substring(index1 + 1,
+                        index2)));
+            }
+        } catch (NumberFormatException e) {
+            // invalid cursor
+        }
+        throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS,
+            RatingsException.ERROR_RATINGS_INVALID_CURSOR, "Invalid rated documents cursor " + cursor);
+    }
+
+    /**
+     * @param method the method used to compute the average ratings
+     * @return the ranking of the current wiki for the method, loaded if needed, or null if average ratings are not
+     *         stored
+     * @throws RatingsException when an error occurs while reading the stored average ratings
+     */
+    private Ranking getRanking(String method) throws RatingsException
+    {
+        if (!configuration.isAverageRatingStored()) {
+            return null;
+        }
+        String wiki = getXWikiContext().getDatabase();
+        String key = wiki + ":" + method;
+        Ranking ranking = rankings.get(key);
+        if (ranking != null && ranking.hasConfiguration(configuration)) {
+            return ranking;
+        }
+
+        Object lock = loadLocks.get(key);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = loadLocks.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        synchronized (lock) {
+            ranking = rankings.get(key);
+            if (ranking == null || !ranking.hasConfiguration(configuration)) {
+                if (ranking != null) {
+                    synchronized (ranking) {
+                        closeJournal(ranking);
+                    }
+                }
+                ranking = loadRanking(getIndexFile(wiki, method), method);
+                if (ranking == null) {
+                    return null;
+                }
+                rankings.put(key, ranking);
+                getIndexedMethods().add(method);
+            }
+        }
+        return ranking;
+    }
+
+    /**
+     * Loads a ranking from its index file, unless the file does not match the stored average ratings anymore, for
+     * instance because updates were lost or made by another cluster member. The number of ranked documents, their
+     * total number of votes and the sum of their votes weighted by their average vote are used as a watermark: they
+     * are computed from the entries of the file and compared with the stored average ratings, so that a changed vote
+     * is noticed even when the numbers of votes are the same. The ranking is rebuilt from the stored average ratings
+     * when they differ.
+     */
+    private Ranking loadRanking(File indexFile, String method) throws RatingsException
+    {
+        RatingsManager ratingsManager = ratingsManagerProvider.get();
+        if (!(ratingsManager instanceof AbstractRatingsManager)) {
+            return null;
+        }
+        AbstractRatingsManager storedRatingsManager = (AbstractRatingsManager) ratingsManager;
+
+        if (indexFile.exists()) {
+            Ranking ranking = new Ranking(method, configuration);
+            if (readIndex(ranking, indexFile)) {
+                if (ranking.hasTotals(storedRatingsManager.getStoredAverageRatingsTotals(method))) {
+                    openJournal(ranking, indexFile);
+                    return ranking;
+                }
+                logger.warn("The rated documents index " + indexFile + " does not match the stored average ratings,"
+                    + " rebuilding it");
+            }
+        }
+
+        Ranking ranking = new Ranking(method, configuration);
+        for (MemoryAverageRating averageRating : storedRatingsManager.getStoredAverageRatings(method)) {
+            ranking.update(averageRating.getDocumentName(), averageRating.getNbVotes(),
+                averageRating.getAverageVote());
+        }
+        ranking.indexFile = indexFile;
+        writeIndex(ranking);
+        openJournal(ranking, indexFile);
+        return ranking;
+    }
+
+    /**
+     * @return the methods of the current wiki whose rankings are loaded or saved in an index file
+     */
+    private Set<String> getIndexedMethods()
+    {
+        String wiki = getXWikiContext().getDatabase();
+        Set<String> methods = indexedMethods.get(wiki);
+        if (methods == null) {
+            methods = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            for (String method : configuration.getDefaultReputationMethods()) {
+                if (getIndexFile(wiki, method).exists()) {
+                    methods.add(method);
+                }
+            }
+            indexedMethods.put(wiki, methods);
+        }
+        return methods;
+    }
+
+    private File getIndexFile(String wiki, String method)
+    {
+        File directory = new File(new File(environment.getPermanentDirectory(), INDEX_DIRECTORY), toFileName(wiki));
+        return new File(directory, toFileName(method) + INDEX_EXTENSION);
+    }
+
+    private static String toFileName(String name)
+    {
+        return name.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+
+    private void update(Ranking ranking, String documentName, int nbVotes, float averageVote)
+    {
+        synchronized (ranking) {
+            if (ranking.update(documentName, nbVotes, averageVote) && ranking.journal != null) {
+                try {
+                    writeEntry(ranking.journal, documentName, nbVotes, averageVote);
+                    ranking.journal.flush();
+                    ranking.indexSize++;
+                    if (ranking.indexSize > Math.max(MIN_COMPACTION_SIZE, 2 * ranking.documents.size())) {
+                        closeJournal(ranking);
+                        writeIndex(ranking);
+                        openJournal(ranking, ranking.indexFile);
+                    }
+                } catch (IOException e) {
+                    logger.error("Failed to write the rated documents index " + ranking.indexFile, e);
+                    closeJournal(ranking);
+                    deleteIndex(ranking.indexFile);
+                }
+            }
+        }
+    }
+
+    private void onVote(String documentName, Set<String> methods) throws RatingsException
+    {
+        for (String method : methods) {
+            Ranking ranking = getRanking(method);
+            if (ranking != null) {
+                AverageRating averageRating = ratingsManagerProvider.get().getAverageRating(documentName, method);
+                if (averageRating != null) {
+                    update(ranking, documentName, averageRating.getNbVotes(), averageRating.getAverageVote());
+                }
+            }
+        }
+    }
+
+    private void onSave(XWikiDocument doc, Set<String> methods) throws RatingsException
+    {
+        List<BaseObject> objects = doc.getObjects(RatingsManager.AVERAGE_RATINGS_CLASSNAME);
+        if (objects == null) {
+            return;
+        }
+        for (BaseObject object : objects) {
+            String method = (object == null) ? null
+                : object.getStringValue(RatingsManager.AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE_METHOD);
+            if (methods.contains(method)) {
+                Ranking ranking = getRanking(method);
+                if (ranking != null) {
+                    update(ranking, doc.getFullName(),
+                        object.getIntValue(RatingsManager.AVERAGERATING_CLASS_FIELDNAME_NBVOTES),
+                        object.getFloatValue(RatingsManager.AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE));
+                }
+            }
+        }
+    }
+
+    private void onDelete(XWikiDocument doc, Set<String> methods) throws RatingsException
+    {
+        for (String method : methods) {
+            Ranking ranking = getRanking(method);
+            if (ranking != null) {
+                update(ranking, doc.getFullName(), 0, 0);
+            }
+        }
+    }
+
+    /**
+     * Reads an index file, in which later lines replace the earlier lines of the same document.
+     *
+     * @return false if the file cannot be read
+     */
+    private boolean readIndex(Ranking ranking, File indexFile)
+    {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), INDEX_ENCODING));
+            int indexSize = 0;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                int index1 = line.indexOf(FIELD_SEPARATOR);
+                int index2 = line.indexOf(FIELD_SEPARATOR, index1 + 1);
+                if (index1 <= 0 || index2 <= index1) {
+                    logger.warn("Invalid line in the rated documents index " + indexFile + ", rebuilding it");
+                    return false;
+                }
+                ranking.update(line.substring(index2 + 1), Integer.parseInt(line.substring(0, index1)),
+                    Float.parseFloat(line.substring(index1 + 1, index2)));
+                indexSize++;
+            }
+            ranking.indexFile = indexFile;
+            ranking.indexSize = indexSize;
+            return true;
+        } catch (Exception e) {
+            logger.warn("Failed to read the rated documents index " + indexFile + ", rebuilding it", e);
+            return false;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Writes all the documents of a ranking to its index file, replacing the previous content of the file.
+     */
+    private void writeIndex(Ranking ranking)
+    {
+        File indexFile = ranking.indexFile;
+        File newIndexFile = new File(indexFile.getParentFile(), indexFile.getName() + ".new");
+        Writer writer = null;
+        try {
+            indexFile.getParentFile().mkdirs();
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(newIndexFile), INDEX_ENCODING));
+            for (RankedDocument document : ranking.documents.values()) {
+                writeEntry(writer, document.documentName, document.nbVotes, document.averageVote);
+            }
+            writer.close();
+            writer = null;
+            if ((indexFile.exists() && !indexFile.delete()) || !newIndexFile.renameTo(indexFile)) {
+                throw new IOException("Cannot replace " + indexFile);
+            }
+            ranking.indexSize = ranking.documents.size();
+        } catch (IOException e) {
+            logger.error("Failed to write the rated documents index " + indexFile, e);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private void openJournal(Ranking ranking, File indexFile)
+    {
+        ranking.indexFile = indexFile;
+        try {
+            indexFile.getParentFile().mkdirs();
+            ranking.journal =
+                new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), INDEX_ENCODING));
+        } catch (IOException e) {
+            logger.error("Failed to open the rated documents index " + indexFile, e);
+            deleteIndex(indexFile);
+        }
+    }
+
+    /**
+     * Deletes an index file which cannot be kept up to date anymore, so that it is not loaded again once outdated.
+     */
+    private void deleteIndex(File indexFile)
+    {
+        if (indexFile.exists() && !indexFile.delete()) {
+            logger.error("Failed to delete the outdated rated documents index " + indexFile
+                + ", it must be deleted before the wiki is restarted");
+        }
+    }
+
+    private void closeJournal(Ranking ranking)
+    {
+        closeQuietly(ranking.journal);
+        ranking.journal = null;
+    }
+
+    private static void writeEntry(Writer writer, String documentName, int nbVotes, float averageVote)
+        throws IOException
+    {
+        writer.write(nbVotes + String.valueOf(FIELD_SEPARATOR) + averageVote + FIELD_SEPARATOR + documentName);
+        writer.write('\n');
+    }
+
+    private void closeQuietly(Closeable closeable)
+    {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close the rated documents index", e);
+            }
+        }
+    }
+}
@@ -19,6 +19,8 @@
  */
 package org.xwiki.contrib.ratings.internal;
 
+import java.util.Map;
+
 import org.xwiki.contrib.ratings.AverageRating;
 import org.xwiki.contrib.ratings.RatingsException;
 
@@ -28,7 +30,7 @@ import com.xpn.xwiki.XWikiContext;
  * @version $Id$
  * @see AverageRating
  */
-public class MemoryAverageRating implements AverageRating
+public class MemoryAverageRating implements StatefulAverageRating
 {
     private String documentName;
 
@@ -38,6 +40,8 @@ public class MemoryAverageRating implements AverageRating
 
     private String method;
 
+    private String state;
+
     public MemoryAverageRating(String documentName, int nbVotes, float averageVote, String method)
     {
         this.documentName = documentName;
@@ -86,6 +90,21 @@ public class MemoryAverageRating implements AverageRating
         this.method = method;
     }
 
+    public String getState()
+    {
+        return state;
+    }
+
+    public void setState(String state)
+    {
+        this.state = state;
+    }
+
+    public Map<Integer, Integer> getVoteCounts()
+    {
+        return VoteHistogram.getCounts(getState(), getNbVotes());
+    }
+
     public void save() throws RatingsException
     {
     }
@@ -0,0 +1,120 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.xwiki.contrib.ratings.Rating;
+import org.xwiki.contrib.ratings.RatingsException;
+import org.xwiki.contrib.ratings.RatingsIterationException;
+
+/**
+ * Iterates over ratings read one page at a time, so that only the current page is kept in memory. The next page is
+ * read when the current one is exhausted, starting after the last rating of the current page, and the iteration stops
+ * after a page shorter than the page size.
+ *
+ * @version $Id$
+ */
+public abstract class PagedRatingsIterator implements Iterator<Rating>
+{
+    private final int pageSize;
+
+    /**
+     * Ratings of the current page.
+     */
+    private List<Rating> page = Collections.emptyList();
+
+    /**
+     * Position of the next rating in the current page.
+     */
+    private int position;
+
+    /**
+     * Number of ratings read before the next page.
+     */
+    private int start;
+
+    /**
+     * Last rating of the previous page, null before the first page.
+     */
+    private Rating last;
+
+    private boolean lastPage;
+
+    /**
+     * @param pageSize the number of ratings read at once
+     */
+    public PagedRatingsIterator(int pageSize)
+    {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param last the last rating of the previous page, after which the page starts, null for the first page
+     * @param start the number of ratings already read, for the storages which cannot start after a given rating
+     * @param count the maximum number of ratings to read
+     * @return the ratings of the page, null or empty when there are no more ratings
+     * @throws RatingsException when an error occurs while reading the ratings
+     */
+    protected abstract List<Rating> getPage(Rating last, int start, int count) throws RatingsException;
+
+    @Override
+    public boolean hasNext()
+    {
+        if (position < page.size()) {
+            return true;
+        }
+        if (lastPage) {
+            return false;
+        }
+        List<Rating> nextPage;
+        try {
+            nextPage = getPage(last, start, pageSize);
+        } catch (RatingsException e) {
+            throw new RatingsIterationException(e);
+        }
+        page = (nextPage == null) ? Collections.<Rating>emptyList() : nextPage;
+        position = 0;
+        start += page.size();
+        lastPage = page.size() < pageSize;
+        if (!page.isEmpty()) {
+            last = page.get(page.size() - 1);
+        }
+        return !page.isEmpty();
+    }
+
+    @Override
+    public Rating next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.get(position++);
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
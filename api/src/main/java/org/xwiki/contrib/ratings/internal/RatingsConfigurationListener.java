@@ -0,0 +1,85 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.ratings.RatingsConfiguration;
+import org.xwiki.contrib.ratings.RatingsManager;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Drops the configuration snapshot of a wiki when its preferences or its ratings configuration page are modified.
+ *
+ * @version $Id$
+ * @see DefaultRatingsConfiguration
+ */
+@Component
+@Named(RatingsConfigurationListener.NAME)
+@Singleton
+public class RatingsConfigurationListener implements EventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "ratings.configuration";
+
+    private static final String PREFERENCES_PAGE = "XWiki.XWikiPreferences";
+
+    @Inject
+    private RatingsConfiguration configuration;
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(),
+            new DocumentDeletedEvent());
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        XWikiDocument doc = (XWikiDocument) source;
+        String fullName = doc.getFullName();
+        if ((PREFERENCES_PAGE.equals(fullName) || RatingsManager.RATINGS_CONFIG_PAGE.equals(fullName))
+            && configuration instanceof DefaultRatingsConfiguration) {
+            ((DefaultRatingsConfiguration) configuration)
+                .invalidate(doc.getDocumentReference().getWikiReference().getName());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import org.xwiki.contrib.ratings.RatingsConfiguration;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Saves the documents holding ratings and average ratings.
+ *
+ * @version $Id$
+ */
+public final class RatingsDocumentSaver
+{
+    private RatingsDocumentSaver()
+    {
+    }
+
+    /**
+     * Saves a document after ratings or average ratings were changed in it. When ratings are not versioned, see
+     * {@link RatingsConfiguration#isVersioned()}, existing documents are saved without creating a new revision, so
+     * that votes do not fill the history of rated pages and user profiles.
+     * <p>
+     * The document is usually the instance cached by the wiki, which is not cloned: any other pending change made to
+     * it, by another request holding the same instance, is saved along with the ratings and, when ratings are not
+     * versioned, without a new revision either. Callers must only change ratings and average ratings in the document,
+     * under the lock of the rated document.
+     * </p>
+     *
+     * @param doc the document to save
+     * @param configuration the configuration of the ratings of the wiki of the document
+     * @param context the XWiki context
+     * @throws XWikiException when an error occurs while saving the document
+     */
+    public static void save(XWikiDocument doc, RatingsConfiguration configuration, XWikiContext context)
+        throws XWikiException
+    {
+        // Force content dirty to false, so that the content update date is not changed when saving the document.
+        // This should not be handled there, since it is not the responsibility of this plugin to decide if
+        // the content has actually been changed or not since current revision, but the implementation of
+        // this in XWiki core is wrong. See http://jira.xwiki.org/jira/XWIKI-2800 for more details.
+        // There is a draw-back to doing this, being that if the document content is being changed before
+        // the document is rated, the contentUpdateDate will not be modified. Although possible, this is very
+        // unlikely to happen, or to be a use case. The default rating application will use an asynchronous service
+        // to note a document, which service will only set the rating, so the behavior will be correct.
+        doc.setContentDirty(false);
+        if (!doc.isNew() && !configuration.isVersioned()) {
+            // the store only increments the version and updates the archive of dirty documents
+            doc.setMetaDataDirty(false);
+            context.getWiki().saveDocument(doc, "", true, context);
+        } else {
+            context.getWiki().saveDocument(doc, context);
+        }
+    }
+}
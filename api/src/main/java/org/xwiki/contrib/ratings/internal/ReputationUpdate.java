@@ -0,0 +1,235 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.Date;
+
+import org.xwiki.contrib.ratings.Rating;
+import org.xwiki.contrib.ratings.RatingsException;
+import org.xwiki.contrib.ratings.RatingsManager;
+
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * A vote whose reputation update has not been run yet. When the voter votes again on the document before the update
+ * is run, the update keeps the first previous vote and takes the new vote.
+ * <p>
+ * Updates may wait in the queue after the end of the request of the vote, so they only hold the values of the vote
+ * and not the rating, which may reference the document and the context of the request.
+ * </p>
+ *
+ * @version $Id$
+ * @see UpdateReputationListener
+ */
+public class ReputationUpdate
+{
+    private final String documentName;
+
+    private final String author;
+
+    private final int oldVote;
+
+    private int vote;
+
+    private Date date;
+
+    /**
+     * @param documentName the rated document
+     * @param rating the rating set by the voter
+     * @param oldVote the previous vote of the voter
+     */
+    public ReputationUpdate(String documentName, Rating rating, int oldVote)
+    {
+        this.documentName = documentName;
+        this.author = rating.getAuthor();
+        this.oldVote = oldVote;
+        setRating(rating);
+    }
+
+    /**
+     * @return the rated document
+     */
+    public String getDocumentName()
+    {
+        return documentName;
+    }
+
+    /**
+     * @return the voter
+     */
+    public String getAuthor()
+    {
+        return author;
+    }
+
+    /**
+     * @return the latest vote of the voter
+     */
+    public int getVote()
+    {
+        return vote;
+    }
+
+    /**
+     * @return a rating holding the latest vote of the voter, which is not attached to any document
+     */
+    public Rating getRating()
+    {
+        return new UpdatedRating(documentName, author, date, vote);
+    }
+
+    /**
+     * @param rating the new rating set by the voter
+     */
+    public void setRating(Rating rating)
+    {
+        this.vote = rating.getVote();
+        this.date = rating.getDate();
+    }
+
+    /**
+     * @return the vote of the voter before the first of the merged votes
+     */
+    public int getOldVote()
+    {
+        return oldVote;
+    }
+
+    /**
+     * Rating given to the reputation algorithms, built from the values of the update. It cannot be saved.
+     */
+    private static class UpdatedRating implements Rating
+    {
+        private final String documentName;
+
+        private String author;
+
+        private Date date;
+
+        private int vote;
+
+        public UpdatedRating(String documentName, String author, Date date, int vote)
+        {
+            this.documentName = documentName;
+            this.author = author;
+            this.date = date;
+            this.vote = vote;
+        }
+
+        public String getDocumentName()
+        {
+            return documentName;
+        }
+
+        /**
+         * Builds a rating object holding the values of this rating. Changes made to the object are not saved.
+         */
+        public BaseObject getAsObject()
+        {
+            BaseObject obj = new BaseObject();
+            obj.setClassName(RatingsManager.RATINGS_CLASSNAME);
+            obj.setName(documentName);
+            obj.setStringValue(RatingsManager.RATING_CLASS_FIELDNAME_AUTHOR, author);
+            obj.setDateValue(RatingsManager.RATING_CLASS_FIELDNAME_DATE, date);
+            obj.setIntValue(RatingsManager.RATING_CLASS_FIELDNAME_VOTE, vote);
+            obj.setStringValue(RatingsManager.RATING_CLASS_FIELDNAME_PARENT, documentName);
+            return obj;
+        }
+
+        public String getRatingId()
+        {
+            return "";
+        }
+
+        public String getGlobalRatingId()
+        {
+            return "";
+        }
+
+        public String getAuthor()
+        {
+            return author;
+        }
+
+        public void setAuthor(String author)
+        {
+            this.author = author;
+        }
+
+        public Date getDate()
+        {
+            return date;
+        }
+
+        public void setDate(Date date)
+        {
+            this.date = date;
+        }
+
+        public int getVote()
+        {
+            return vote;
+        }
+
+        public void setVote(int vote)
+        {
+            this.vote = vote;
+        }
+
+        public Object get(String propertyName)
+        {
+            if (RatingsManager.RATING_CLASS_FIELDNAME_AUTHOR.equals(propertyName)) {
+                return author;
+            } else if (RatingsManager.RATING_CLASS_FIELDNAME_DATE.equals(propertyName)) {
+                return date;
+            } else if (RatingsManager.RATING_CLASS_FIELDNAME_VOTE.equals(propertyName)) {
+                return vote;
+            } else if (RatingsManager.RATING_CLASS_FIELDNAME_PARENT.equals(propertyName)) {
+                return documentName;
+            }
+            return null;
+        }
+
+        public String display(String propertyName, String mode)
+        {
+            Object value = get(propertyName);
+            return (value == null) ? "" : value.toString();
+        }
+
+        public void save() throws RatingsException
+        {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS,
+                RatingsException.ERROR_RATINGS_INVALID_RATING_ID,
+                "The rating of a reputation update cannot be saved");
+        }
+
+        public boolean remove() throws RatingsException
+        {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS,
+                RatingsException.ERROR_RATINGS_INVALID_RATING_ID,
+                "The rating of a reputation update cannot be removed");
+        }
+
+        public String toString()
+        {
+            return "\nAuthor=" + author + " \nDate=" + date + " \nVote=" + vote + "\n";
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.contrib.ratings.AverageRating;
+import org.xwiki.contrib.ratings.Rating;
+
+/**
+ * Ratings already read during the current request, so that rendering a page displaying the rating of the same
+ * document several times reads it only once. The entries of a document are dropped when the request modifies its
+ * ratings. The cache is kept in the execution context and is not shared between threads.
+ *
+ * @version $Id$
+ */
+public class RequestRatingsCache
+{
+    /**
+     * Execution context property holding the cache of the request.
+     */
+    private static final String CONTEXT_PROPERTY = "ratings.request";
+
+    /**
+     * Cached entries, by wiki and document.
+     */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Average ratings by method and ratings by author of a document. Null ratings are cached too.
+     */
+    private static class Entry
+    {
+        private final Map<String, MemoryAverageRating> averageRatings = new HashMap<String, MemoryAverageRating>();
+
+        private final Map<String, Rating> ratings = new HashMap<String, Rating>();
+    }
+
+    /**
+     * @param execution the execution
+     * @return the cache of the current request, or null if there is no execution context
+     */
+    public static RequestRatingsCache get(Execution execution)
+    {
+        ExecutionContext executionContext = execution.getContext();
+        if (executionContext == null) {
+            return null;
+        }
+        RequestRatingsCache cache = (RequestRatingsCache) executionContext.getProperty(CONTEXT_PROPERTY);
+        if (cache == null) {
+            cache = new RequestRatingsCache();
+            executionContext.setProperty(CONTEXT_PROPERTY, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * @param key the key identifying the document in its wiki
+     * @param method the method used to compute the average rating
+     * @return a copy of the cached average rating, or null if it is not cached
+     */
+    public AverageRating getAverageRating(String key, String method)
+    {
+        Entry entry = entries.get(key);
+        MemoryAverageRating averageRating = (entry == null) ? null : entry.averageRatings.get(method);
+        if (averageRating == null) {
+            return null;
+        }
+        return AverageRatingState.copy(averageRating.getDocumentName(), averageRating);
+    }
+
+    /**
+     * @param key the key identifying the document in its wiki
+     * @param documentName the rated document
+     * @param averageRating the average rating to cache, copied so that changes made by callers are not cached
+     */
+    public void putAverageRating(String key, String documentName, AverageRating averageRating)
+    {
+        MemoryAverageRating copy = AverageRatingState.copy(documentName, averageRating);
+        getEntry(key).averageRatings.put(averageRating.getMethod(), copy);
+    }
+
+    /**
+     * @param key the key identifying the document in its wiki
+     * @param author the author of the rating
+     * @return true if the rating of the author is cached, even if it is null
+     */
+    public boolean hasRating(String key, String author)
+    {
+        Entry entry = entries.get(key);
+        return entry != null && entry.ratings.containsKey(author);
+    }
+
+    /**
+     * @param key the key identifying the document in its wiki
+     * @param author the author of the rating
+     * @return the cached rating, or null if it is not cached or the author did not rate the document
+     */
+    public Rating getRating(String key, String author)
+    {
+        Entry entry = entries.get(key);
+        return (entry == null) ? null : entry.ratings.get(author);
+    }
+
+    /**
+     * @param key the key identifying the document in its wiki
+     * @param author the author of the rating
+     * @param rating the rating to cache, null if the author did not rate the document
+     */
+    public void putRating(String key, String author, Rating rating)
+    {
+        getEntry(key).ratings.put(author, rating);
+    }
+
+    /**
+     * Drops the cached ratings and average ratings of a document.
+     *
+     * @param key the key identifying the document in its wiki
+     */
+    public void invalidate(String key)
+    {
+        entries.remove(key);
+    }
+
+    private Entry getEntry(String key)
+    {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+}
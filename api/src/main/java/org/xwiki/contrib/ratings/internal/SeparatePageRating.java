@@ -45,7 +45,17 @@ public class SeparatePageRating implements Rating
     private XWikiContext context;
 
     private SeparatePageRatingsManager ratingsManager;
-    
+
+    /**
+     * Name of the rating page, when the rating was read by a query and its document is not loaded yet.
+     */
+    private String pageName;
+
+    /**
+     * Values of the rating read by a query, used until the rating page is loaded.
+     */
+    private BaseObject values;
+
     public SeparatePageRating(String documentName, String author, int vote, XWikiContext context, SeparatePageRatingsManager ratingsManager) throws RatingsException
     {
         this(documentName, author, new Date(), vote, context, ratingsManager);
@@ -67,12 +77,31 @@ public class SeparatePageRating implements Rating
         this.document = doc;
     }
 
+    /**
+     * Rating read by a query. The rating page is only loaded when the rating is modified or displayed.
+     */
+    public SeparatePageRating(String documentName, String pageName, String author, Date date, int vote,
+        XWikiContext context, SeparatePageRatingsManager ratingsManager)
+    {
+        this.context = context;
+        this.ratingsManager = ratingsManager;
+        this.documentName = documentName;
+        this.pageName = pageName;
+        this.values = new BaseObject();
+        values.setClassName(RatingsManager.RATINGS_CLASSNAME);
+        values.setName(pageName);
+        values.setStringValue(RatingsManager.RATING_CLASS_FIELDNAME_AUTHOR, author);
+        values.setDateValue(RatingsManager.RATING_CLASS_FIELDNAME_DATE, date);
+        values.setIntValue(RatingsManager.RATING_CLASS_FIELDNAME_VOTE, vote);
+        values.setStringValue(RatingsManager.RATING_CLASS_FIELDNAME_PARENT, documentName);
+    }
+
     /**
      * RatingId represent the ID of the rating In this case it is the page name
      */
     public String getRatingId()
     {
-        return getDocument().getFullName();
+        return (document == null && pageName != null) ? pageName : getDocument().getFullName();
     }
 
     public String getGlobalRatingId()
@@ -80,7 +109,21 @@ public class SeparatePageRating implements Rating
         return getRatingId();
     }
 
+    /**
+     * When the rating page is not loaded yet, changes made to the returned object are not saved.
+     */
     public BaseObject getAsObject()
+    {
+        if (document == null && values != null) {
+            return values;
+        }
+        return getRatingObject();
+    }
+
+    /**
+     * @return the rating object of the rating page, loading the page if needed
+     */
+    private BaseObject getRatingObject()
     {
         return getDocument().getObject(RatingsManager.RATINGS_CLASSNAME);
     }
@@ -89,7 +132,9 @@ public class SeparatePageRating implements Rating
     {
         if (document == null) {
             try {
-                document = context.getWiki().getDocument(getPageName(this.documentName), context);
+                String name = (pageName != null) ? pageName : getPageName(this.documentName);
+                document = context.getWiki().getDocument(name, context);
+                values = null;
             } catch (XWikiException e) {
                 return null;
             }
@@ -120,12 +165,12 @@ public class SeparatePageRating implements Rating
      */
     public void setAuthor(String author)
     {
-        getAsObject().setStringValue(RatingsManager.RATING_CLASS_FIELDNAME_AUTHOR, author);
+        getRatingObject().setStringValue(RatingsManager.RATING_CLASS_FIELDNAME_AUTHOR, author);
     }
 
     public void setDate(Date date)
     {
-        getAsObject().setDateValue(RatingsManager.RATING_CLASS_FIELDNAME_DATE, date);
+        getRatingObject().setDateValue(RatingsManager.RATING_CLASS_FIELDNAME_DATE, date);
     }
 
     /**
@@ -145,7 +190,7 @@ public class SeparatePageRating implements Rating
      */
     public void setVote(int vote)
     {
-        getAsObject().setIntValue(RatingsManager.RATING_CLASS_FIELDNAME_VOTE, vote);
+        getRatingObject().setIntValue(RatingsManager.RATING_CLASS_FIELDNAME_VOTE, vote);
     }
 
     /**
@@ -169,7 +214,7 @@ public class SeparatePageRating implements Rating
      */
     public String display(String propertyName, String mode)
     {
-        return document.display(propertyName, mode, getAsObject(), context);
+        return getDocument().display(propertyName, mode, getRatingObject(), context);
     }
 
     /**
@@ -180,22 +225,12 @@ public class SeparatePageRating implements Rating
     public void save() throws RatingsException
     {
         try {
-            if (document == null) {
+            if (getDocument() == null) {
                 throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS,
                     RatingsException.ERROR_RATINGS_SAVERATING_NULLDOCUMENT,
                     "Cannot save invalid separate page rating, the rating document is null");
             }
-            // Force content dirty to false, so that the content update date is not changed when saving the document.
-            // This should not be handled there, since it is not the responsibility of this plugin to decide if
-            // the content has actually been changed or not since current revision, but the implementation of
-            // this in XWiki core is wrong. See http://jira.xwiki.org/jira/XWIKI-2800 for more details.
-            // There is a draw-back to doing this, being that if the document content is being changed before
-            // the document is rated, the contentUpdateDate will not be modified. Although possible, this is very
-            // unlikely to happen, or to be a use case. The default rating application will use an asynchronous service
-            // to
-            // note a document, which service will only set the rating, so the behavior will be correct.
-            document.setContentDirty(false);
-            context.getWiki().saveDocument(getDocument(), context);
+            RatingsDocumentSaver.save(getDocument(), ratingsManager.getConfiguration(), context);
         } catch (XWikiException e) {
             throw new RatingsException(e);
         }
@@ -238,14 +273,11 @@ public class SeparatePageRating implements Rating
     }
 
     private String getUniquePageName(String space, String name, String postfix, boolean forcepostfix)
+        throws RatingsException
     {
         String pageName = context.getWiki().clearName(name, context);
         if (forcepostfix || context.getWiki().exists(space + "." + pageName, context)) {
-            int i = 1;
-            while (context.getWiki().exists(space + "." + pageName + postfix + i, context)) {
-                i++;
-            }
-            return pageName + postfix + i;
+            return pageName + postfix + ratingsManager.getNextRatingPageNumber(space, pageName + postfix);
         }
         return pageName;
     }
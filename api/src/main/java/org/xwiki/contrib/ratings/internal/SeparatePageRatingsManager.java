@@ -20,13 +20,21 @@
 package org.xwiki.contrib.ratings.internal;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.inject.Named;
 
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,11 +43,18 @@ import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.ratings.AverageRating;
 import org.xwiki.contrib.ratings.Rating;
+import org.xwiki.contrib.ratings.RatingRecord;
 import org.xwiki.contrib.ratings.RatingsException;
 import org.xwiki.contrib.ratings.RatingsManager;
-import org.xwiki.contrib.ratings.UpdateRatingEvent;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
 
 /**
  * @version $Id$
@@ -55,12 +70,102 @@ public class SeparatePageRatingsManager extends AbstractRatingsManager
     public static final String RATINGS_CONFIG_FIELDNAME_SEPARATEPAGE_SPACE = "space";
     public static final String RATINGS_CONFIG_FIELDNAME_SEPARATEPAGE_RATINGS_SPACE_PER_SPACE = "ratingsSpacePerSpace";
 
+    /**
+     * Excludes the ratings which are moderated or refused.
+     */
+    private static final String QUERY_RATINGS_NOT_MODERATED = " and not exists (select statusprop.id.id"
+        + " from StringProperty as statusprop where statusprop.id.id=obj.id and statusprop.id.name='status'"
+        + " and statusprop.value in ('moderated', 'refused'))";
+
+    /**
+     * Joins the rating objects with their properties, the selected columns are prepended. The ratings are ordered by
+     * their date property, which all the rating pages created by this manager have: rating pages without a date, which
+     * could only be created by hand, are ignored.
+     */
+    private static final String QUERY_RATINGS_FROM =
+        " from XWikiDocument as doc, BaseObject as obj, StringProperty as parentprop, StringProperty as authorprop,"
+        + " IntegerProperty as voteprop, DateProperty as dateprop"
+        + " where doc.fullName=obj.name and obj.className=:className"
+        + " and obj.id=parentprop.id.id and parentprop.id.name='" + RATING_CLASS_FIELDNAME_PARENT + "'"
+        + " and obj.id=authorprop.id.id and authorprop.id.name='" + RATING_CLASS_FIELDNAME_AUTHOR + "'"
+        + " and obj.id=voteprop.id.id and voteprop.id.name='" + RATING_CLASS_FIELDNAME_VOTE + "'"
+        + " and obj.id=dateprop.id.id and dateprop.id.name='" + RATING_CLASS_FIELDNAME_DATE + "'"
+        + QUERY_RATINGS_NOT_MODERATED;
+
+    /**
+     * Selects the ratings of a document which are not moderated or refused, without loading the rating pages. The
+     * statements do not depend on the document, so that they can be cached.
+     */
+    private static final String QUERY_RATINGS_SELECT = "select doc.fullName, authorprop.value, voteprop.value,"
+        + " dateprop.value" + QUERY_RATINGS_FROM + " and parentprop.value=:parent";
+
+    /**
+     * Orders the ratings by date then page name, with the ordering direction. All the queries use this ordering, so
+     * that the latest rating of an author is the first one of the listing in descending order.
+     */
+    private static final String QUERY_RATINGS_ORDER = " order by dateprop.value %1$s, doc.fullName %1$s";
+
+    /**
+     * Restricts {@link #QUERY_RATINGS_SELECT} to the ratings following a given (date, page name) key, the comparison
+     * operator is inserted, so that reading a page does not skip all the ratings before it.
+     */
+    private static final String QUERY_RATINGS_AFTER =
+        " and (dateprop.value %1$s :date or (dateprop.value = :date and doc.fullName %1$s :pageName))";
+
+    /**
+     * Reads the ratings of an author on a document, the most recent first.
+     */
+    private static final String QUERY_RATING_BY_AUTHOR =
+        QUERY_RATINGS_SELECT + " and authorprop.value=:author" + String.format(QUERY_RATINGS_ORDER, "desc");
+
+    /**
+     * Reads the ratings of a set of authors on a document, the most recent first.
+     */
+    private static final String QUERY_RATINGS_OF_AUTHORS =
+        QUERY_RATINGS_SELECT + " and authorprop.value in (:authors)" + String.format(QUERY_RATINGS_ORDER, "desc");
+
+    /**
+     * Reads the ratings of an author on a set of documents, the most recent first.
+     */
+    private static final String QUERY_RATINGS_OF_AUTHOR = "select doc.fullName, authorprop.value, voteprop.value,"
+        + " dateprop.value, parentprop.value" + QUERY_RATINGS_FROM
+        + " and parentprop.value in (:parents) and authorprop.value=:author"
+        + String.format(QUERY_RATINGS_ORDER, "desc");
+
+    /**
+     * Counts the ratings of each vote of a set of documents.
+     */
+    private static final String QUERY_VOTE_COUNTS_OF_DOCUMENTS =
+        "select parentprop.value, voteprop.value, count(voteprop.value)"
+        + " from BaseObject as obj, StringProperty as parentprop, IntegerProperty as voteprop"
+        + " where obj.className=:className"
+        + " and obj.id=parentprop.id.id and parentprop.id.name='" + RATING_CLASS_FIELDNAME_PARENT + "'"
+        + " and parentprop.value in (:parents)"
+        + " and obj.id=voteprop.id.id and voteprop.id.name='" + RATING_CLASS_FIELDNAME_VOTE + "'"
+        + QUERY_RATINGS_NOT_MODERATED + " group by parentprop.value, voteprop.value";
+
     /**
      * The logger to LOGGER.
      */
     @Inject
     private Logger LOGGER;
-  
+
+    /**
+     * Maximum number of page name prefixes for which the last rating page number is kept in memory.
+     */
+    private static final int RATING_PAGE_COUNTERS_SIZE = 1000;
+
+    /**
+     * Last number used to name the rating pages, by wiki, space and page name prefix. The least recently used
+     * counters are evicted and read again from the database when needed.
+     */
+    private Cache<AtomicInteger> ratingPageCounters;
+
+    /**
+     * Whether the creation of the rating page counters cache has been attempted.
+     */
+    private boolean ratingPageCountersCreated;
+
     public SeparatePageRatingsManager()
     {
         super();
@@ -68,16 +173,115 @@ public class SeparatePageRatingsManager extends AbstractRatingsManager
 
     public String getRatingsSpaceName()
     {
-        String ratingsSpaceName = getXWiki().Param("xwiki.ratings.separatepagemanager.spacename", "");
-        ratingsSpaceName =
-            getXWiki().getXWikiPreference("ratings_separatepagemanager_spacename", ratingsSpaceName, getXWikiContext());
-        return ratingsSpaceName;
+        return configuration.getSeparatePageSpaceName();
     }
 
     public boolean hasRatingsSpaceForeachSpace()
     {
-        int result = (int) getXWiki().ParamAsLong("xwiki.ratings.separatepagemanager.ratingsspaceforeachspace", 0);
-        return (getXWiki().getXWikiPreferenceAsInt("ratings_separatepagemanager_ratingsspaceforeachspace", result, getXWikiContext()) == 1);
+        return configuration.hasSeparatePageSpacePerSpace();
+    }
+
+    /**
+     * Rating pages are named by appending a number to a prefix. The last number used is read from the database the
+     * first time a prefix is used in a space, then kept in a bounded cache, so that naming a new rating page does not
+     * require checking the existence of all the previous ones.
+     *
+     * @param space the space of the rating page
+     * @param prefix the name of the rating page, without the number
+     * @return the number to append to the prefix to get the name of a new rating page
+     * @throws RatingsException when an error occurs while reading the existing rating pages
+     */
+    public int getNextRatingPageNumber(String space, String prefix) throws RatingsException
+    {
+        String key = getXWikiContext().getDatabase() + ":" + space + "." + prefix;
+        AtomicInteger counter = getRatingPageCounter(key);
+        if (counter == null) {
+            counter = putRatingPageCounter(key, new AtomicInteger(getLastRatingPageNumber(space, prefix)));
+        }
+
+        int number = counter.incrementAndGet();
+        if (getXWiki().exists(space + "." + prefix + number, getXWikiContext())) {
+            // the page has been created without this manager, for example by another cluster member
+            int last = getLastRatingPageNumber(space, prefix);
+            synchronized (counter) {
+                if (counter.get() < last) {
+                    counter.set(last);
+                }
+            }
+            number = counter.incrementAndGet();
+        }
+        return number;
+    }
+
+    /**
+     * @return the cache of the rating page counters, or null if it could not be created
+     */
+    private synchronized Cache<AtomicInteger> getRatingPageCounters()
+    {
+        if (!ratingPageCountersCreated) {
+            ratingPageCountersCreated = true;
+            CacheConfiguration cacheConfiguration = new CacheConfiguration();
+            cacheConfiguration.setConfigurationId("ratings.separatepage.counters");
+            LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+            lru.setMaxEntries(RATING_PAGE_COUNTERS_SIZE);
+            cacheConfiguration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+            try {
+                ratingPageCounters = cacheManager.createNewLocalCache(cacheConfiguration);
+            } catch (CacheException e) {
+                LOGGER.error("Failed to create the rating page counters cache, the last rating page number will be"
+                    + " read from the database each time", e);
+            }
+        }
+        return ratingPageCounters;
+    }
+
+    private synchronized AtomicInteger getRatingPageCounter(String key)
+    {
+        Cache<AtomicInteger> counters = getRatingPageCounters();
+        return counters != null ? counters.get(key) : null;
+    }
+
+    /**
+     * @return the counter already cached for the key if any, otherwise the given counter
+     */
+    private synchronized AtomicInteger putRatingPageCounter(String key, AtomicInteger counter)
+    {
+        Cache<AtomicInteger> counters = getRatingPageCounters();
+        if (counters == null) {
+            return counter;
+        }
+        AtomicInteger existing = counters.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        counters.set(key, counter);
+        return counter;
+    }
+
+    private int getLastRatingPageNumber(String space, String prefix) throws RatingsException
+    {
+        try {
+            List<String> names = queryManager
+                .createQuery("select doc.name from XWikiDocument as doc where doc.space = :space"
+                    + " and doc.name like :prefix", Query.HQL)
+                .bindValue("space", space).bindValue("prefix", prefix + "%").execute();
+            int last = 0;
+            for (String name : names) {
+                // the pattern does not escape '_' and '%', and some databases compare names without case
+                if (!name.startsWith(prefix)) {
+                    continue;
+                }
+                String suffix = name.substring(prefix.length());
+                if (suffix.length() > 0 && suffix.length() < 10 && StringUtils.isNumeric(suffix)) {
+                    last = Math.max(last, Integer.parseInt(suffix));
+                }
+            }
+            return last;
+        } catch (QueryException e) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS,
+                RatingsException.ERROR_RATINGS_QUERY,
+                "Failed to find the existing rating pages in space " + space, e);
+        }
     }
 
     protected void saveRating(Rating rating) throws RatingsException
@@ -105,25 +309,32 @@ public class SeparatePageRatingsManager extends AbstractRatingsManager
      */
     public Rating setRating(String documentName, String author, int vote) throws RatingsException
     {
-        Rating rating = getRating(documentName, author);
+        Rating rating;
         int oldVote;
-        if (rating == null) {
-            oldVote = 0;
-            rating = new SeparatePageRating(documentName, author, vote, getXWikiContext(), this);
-        } else {
-            oldVote = rating.getVote();
-            rating.setVote(vote);
-            rating.setDate(new Date());
+        Lock lock = getDocumentLock(documentName);
+        lock.lock();
+        try {
+            rating = getRating(documentName, author);
+            if (rating == null) {
+                oldVote = 0;
+                rating = new SeparatePageRating(documentName, author, vote, getXWikiContext(), this);
+            } else {
+                oldVote = rating.getVote();
+                rating.setVote(vote);
+                rating.setDate(new Date());
+            }
+
+            // savin rating
+            rating.save();
+
+            // update the average rating
+            updateAverageRatings(documentName, rating, oldVote);
+        } finally {
+            lock.unlock();
         }
-        
-        // savin rating
-        rating.save();
-       
-        // update the average rating
-        updateAverageRatings(documentName, rating, oldVote);
 
         // update reputation
-        observationManager.notify(new UpdateRatingEvent(documentName, rating, oldVote), null);
+        notifyRatingUpdated(documentName, rating, oldVote);
         return rating;
     }
 
@@ -139,32 +350,64 @@ public class SeparatePageRatingsManager extends AbstractRatingsManager
             LOGGER.debug("Calling separate page manager code for ratings");
         }
 
-        String sql =
-            ", BaseObject as obj, StringProperty as parentprop where doc.fullName=obj.name and obj.className='"
-                + getRatingsClassName()
-                + "' and obj.id=parentprop.id.id and parentprop.id.name='"
-                + RATING_CLASS_FIELDNAME_PARENT
-                + "' and parentprop.value='"
-                + documentName
-                +
-                "' and obj.name not in (select obj2.name from BaseObject as obj2, StringProperty as statusprop where obj2.className='"
-                + getRatingsClassName()
-                +
-                "' and obj2.id=statusprop.id.id and statusprop.id.name='status' and (statusprop.value='moderated' or statusprop.value='refused') and obj.id=obj2.id) order by doc.date "
-                + (asc ? "asc" : "desc");
-        List<Rating> ratings = new ArrayList<Rating>();
-        try {
-            List<String> ratingPageNameList =
-                getXWiki().getStore().searchDocumentsNames(sql, count, start, getXWikiContext());
+        return getRatings(documentName, null, start, count, asc);
+    }
 
-            for (String ratingPageName : ratingPageNameList) {
-                ratings.add(new SeparatePageRatingsManager().getRatingFromDocument(documentName, getXWiki()
-                    .getDocument(ratingPageName, getXWikiContext())));
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The page starts after the (date, page name) key of the last rating instead of skipping the previous ratings.
+     * </p>
+     */
+    @Override
+    protected List<Rating> getRatingsAfter(String documentName, Rating last, int start, int count, boolean asc)
+        throws RatingsException
+    {
+        if (last instanceof SeparatePageRating) {
+            return getRatings(documentName, (SeparatePageRating) last, 0, count, asc);
+        }
+        return getRatings(documentName, start, count, asc);
+    }
+
+    private List<Rating> getRatings(String documentName, SeparatePageRating last, int start, int count, boolean asc)
+        throws RatingsException
+    {
+        try {
+            StringBuilder statement = new StringBuilder(QUERY_RATINGS_SELECT);
+            if (last != null) {
+                statement.append(String.format(QUERY_RATINGS_AFTER, asc ? ">" : "<"));
             }
-        } catch (XWikiException e) {
-            throw new RatingsException(e);
+            statement.append(String.format(QUERY_RATINGS_ORDER, asc ? "asc" : "desc"));
+            Query query = queryManager.createQuery(statement.toString(), Query.HQL)
+                .bindValue("className", getRatingsClassName()).bindValue("parent", documentName).setOffset(start);
+            if (last != null) {
+                query.bindValue("date", last.getDate()).bindValue("pageName", last.getRatingId());
+            }
+            if (count > 0) {
+                query.setLimit(count);
+            }
+            return getRatings(documentName, query);
+        } catch (QueryException e) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS, RatingsException.ERROR_RATINGS_QUERY,
+                "Failed to get the ratings of document " + documentName, e);
         }
+    }
 
+    /**
+     * @param documentName the rated document
+     * @param query a query selecting ratings of the document with {@link #QUERY_RATINGS_SELECT}
+     * @return the ratings selected by the query
+     * @throws QueryException when an error occurs while running the query
+     */
+    private List<Rating> getRatings(String documentName, Query query) throws QueryException
+    {
+        List<Rating> ratings = new ArrayList<Rating>();
+        List<Object[]> rows = query.execute();
+        for (Object[] row : rows) {
+            int vote = (row[2] == null) ? 0 : ((Number) row[2]).intValue();
+            ratings.add(new SeparatePageRating(documentName, (String) row[0], (String) row[1], (Date) row[3], vote,
+                getXWikiContext(), this));
+        }
         return ratings;
     }
 
@@ -176,29 +419,8 @@ public class SeparatePageRatingsManager extends AbstractRatingsManager
      */
     public Rating getRating(String documentName, int id) throws RatingsException
     {
-        String sql =
-            ", BaseObject as obj, StringProperty as parentprop where doc.fullName=obj.name and obj.className='"
-                + getRatingsClassName()
-                + "' and obj.id=parentprop.id.id and parentprop.id.name='"
-                + RATING_CLASS_FIELDNAME_PARENT
-                + "' and parentprop.value='"
-                + documentName
-                +
-                "' and obj.name not in (select obj2.name from BaseObject as obj2, StringProperty as statusprop where obj2.className='"
-                + getRatingsClassName()
-                +
-                "' and obj2.id=statusprop.id.id and statusprop.id.name='status' and (statusprop.value='moderated' or statusprop.value='refused') and obj.id=obj2.id) order by doc.date desc";
-        try {
-            List<String> ratingPageNameList = getXWiki().getStore().searchDocumentsNames(sql, 1, id, getXWikiContext());
-            if ((ratingPageNameList == null) || (ratingPageNameList.size() == 0)) {
-                return null;
-            } else {
-                return new SeparatePageRatingsManager().getRatingFromDocument(documentName, getXWiki()
-                    .getDocument(ratingPageNameList.get(0), getXWikiContext()));
-            }
-        } catch (XWikiException e) {
-            throw new RatingsException(e);
-        }
+        List<Rating> ratings = getRatings(documentName, id, 1, false);
+        return ratings.isEmpty() ? null : ratings.get(0);
     }
 
     /**
@@ -209,16 +431,157 @@ public class SeparatePageRatingsManager extends AbstractRatingsManager
      */
     public Rating getRating(String documentName, String author) throws RatingsException
     {
+        if (author == null) {
+            return null;
+        }
+        try {
+            Query query = queryManager.createQuery(QUERY_RATING_BY_AUTHOR, Query.HQL)
+                .bindValue("className", getRatingsClassName()).bindValue("parent", documentName)
+                .bindValue("author", author).setLimit(1);
+            List<Rating> ratings = getRatings(documentName, query);
+            return ratings.isEmpty() ? null : ratings.get(0);
+        } catch (QueryException e) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS, RatingsException.ERROR_RATINGS_QUERY,
+                "Failed to get the rating of " + author + " on document " + documentName, e);
+        }
+    }
+
+    @Override
+    protected Map<String, Rating> readRatings(List<String> documentNames, String author) throws RatingsException
+    {
+        Map<String, Rating> ratings = new HashMap<String, Rating>();
         try {
-            for (Rating rating : getRatings(documentName, 0, 0, false)) {
-                if (author.equals(rating.getAuthor())) {
-                    return rating;
+            for (List<String> batch : getBatches(documentNames)) {
+                List<Object[]> rows = queryManager.createQuery(QUERY_RATINGS_OF_AUTHOR, Query.HQL)
+                    .bindValue("className", getRatingsClassName()).bindValue("parents", batch)
+                    .bindValue("author", author).execute();
+                for (Object[] row : rows) {
+                    String documentName = (String) row[4];
+                    if (!ratings.containsKey(documentName)) {
+                        int vote = (row[2] == null) ? 0 : ((Number) row[2]).intValue();
+                        ratings.put(documentName, new SeparatePageRating(documentName, (String) row[0],
+                            (String) row[1], (Date) row[3], vote, getXWikiContext(), this));
+                    }
                 }
             }
-        } catch (XWikiException e) {
-            return null;
+        } catch (QueryException e) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS, RatingsException.ERROR_RATINGS_QUERY,
+                "Failed to read the ratings of " + author + " on " + documentNames.size() + " documents", e);
+        }
+        return ratings;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * When no method is weighted by reputation, the average ratings are computed from a single aggregate query instead
+     * of reading all the ratings.
+     * </p>
+     */
+    @Override
+    protected Map<String, AverageRating> calcAverageRatings(String documentName, String[] methods)
+        throws RatingsException
+    {
+        for (String method : methods) {
+            if (getAggregator(method).isReputationWeighted()) {
+                return super.calcAverageRatings(documentName, methods);
+            }
         }
-        return null;
+        List<String> documentNames = Collections.singletonList(documentName);
+        try {
+            List<Object[]> voteCounts = queryManager.createQuery(QUERY_VOTE_COUNTS_OF_DOCUMENTS, Query.HQL)
+                .bindValue("className", getRatingsClassName()).bindValue("parents", documentNames).execute();
+            Map<String, AverageRating> averageRatings = new LinkedHashMap<String, AverageRating>();
+            for (String method : methods) {
+                averageRatings.put(method, calcAverageRatings(documentNames, voteCounts, method).get(documentName));
+            }
+            return averageRatings;
+        } catch (QueryException e) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS, RatingsException.ERROR_RATINGS_QUERY,
+                "Failed to count the votes of document " + documentName, e);
+        }
+    }
+
+    /**
+     * Counts the ratings of each vote of all the documents with one query, for the methods which are not weighted by
+     * reputation.
+     */
+    @Override
+    protected Map<String, AverageRating> calcAverageRatings(List<String> documentNames, String method)
+        throws RatingsException
+    {
+        if (getAggregator(method).isReputationWeighted()) {
+            return super.calcAverageRatings(documentNames, method);
+        }
+        try {
+            List<Object[]> voteCounts = new ArrayList<Object[]>();
+            for (List<String> batch : getBatches(documentNames)) {
+                List<Object[]> rows = queryManager.createQuery(QUERY_VOTE_COUNTS_OF_DOCUMENTS, Query.HQL)
+                    .bindValue("className", getRatingsClassName()).bindValue("parents", batch).execute();
+                voteCounts.addAll(rows);
+            }
+            return calcAverageRatings(documentNames, voteCounts, method);
+        } catch (QueryException e) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS, RatingsException.ERROR_RATINGS_QUERY,
+                "Failed to count the votes of " + documentNames.size() + " documents", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each rating has its own page, so that each imported vote is a save. The average ratings are computed and saved
+     * once, after all the votes of the document in the batch.
+     * </p>
+     */
+    @Override
+    protected int importDocumentRatings(String documentName, Collection<RatingRecord> records)
+        throws RatingsException
+    {
+        Map<String, Rating> ratings = getRatingsOfAuthors(documentName, records);
+        for (RatingRecord record : records) {
+            Date date = (record.getDate() == null) ? new Date() : record.getDate();
+            Rating rating = ratings.get(record.getAuthor());
+            if (rating == null) {
+                rating = new SeparatePageRating(documentName, record.getAuthor(), date, record.getVote(),
+                    getXWikiContext(), this);
+            } else {
+                rating.setVote(record.getVote());
+                rating.setDate(date);
+            }
+            rating.save();
+        }
+        return records.size();
+    }
+
+    /**
+     * @return the most recent existing rating of each author of the imported votes, by author, without reading the
+     *         ratings of the other authors of the document
+     */
+    private Map<String, Rating> getRatingsOfAuthors(String documentName, Collection<RatingRecord> records)
+        throws RatingsException
+    {
+        List<String> authors = new ArrayList<String>(records.size());
+        for (RatingRecord record : records) {
+            authors.add(record.getAuthor());
+        }
+        Map<String, Rating> ratings = new HashMap<String, Rating>();
+        try {
+            for (List<String> batch : getBatches(authors)) {
+                Query query = queryManager.createQuery(QUERY_RATINGS_OF_AUTHORS, Query.HQL)
+                    .bindValue("className", getRatingsClassName()).bindValue("parent", documentName)
+                    .bindValue("authors", batch);
+                for (Rating rating : getRatings(documentName, query)) {
+                    if (!ratings.containsKey(rating.getAuthor())) {
+                        ratings.put(rating.getAuthor(), rating);
+                    }
+                }
+            }
+        } catch (QueryException e) {
+            throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS, RatingsException.ERROR_RATINGS_QUERY,
+                "Failed to read the ratings of " + authors.size() + " authors on document " + documentName, e);
+        }
+        return ratings;
     }
 
     public Rating getRating(String ratingId) throws RatingsException
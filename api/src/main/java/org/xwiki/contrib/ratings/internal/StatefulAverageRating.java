@@ -0,0 +1,46 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import org.xwiki.contrib.ratings.AverageRating;
+import org.xwiki.contrib.ratings.RatingAggregator;
+import org.xwiki.contrib.ratings.VoteDistribution;
+
+/**
+ * Average rating which keeps the data of the {@link RatingAggregator} of its method, so that it can be updated without
+ * reading all the votes. Implemented by the average ratings of the built-in ratings managers, whose vote counts are
+ * read from the {@link VoteHistogram} kept in the state.
+ *
+ * @version $Id$
+ * @see AverageRatingState
+ */
+public interface StatefulAverageRating extends AverageRating, VoteDistribution
+{
+    /**
+     * @return the data kept by the {@link RatingAggregator} of the method to update this average rating without
+     *         reading all the votes, null if it does not need any
+     */
+    String getState();
+
+    /**
+     * @param state the data kept by the {@link RatingAggregator} of the method
+     */
+    void setState(String state);
+}
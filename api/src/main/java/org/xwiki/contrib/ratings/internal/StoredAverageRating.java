@@ -19,7 +19,11 @@
  */
 package org.xwiki.contrib.ratings.internal;
 
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
 import org.xwiki.contrib.ratings.AverageRating;
+import org.xwiki.contrib.ratings.RatingsConfiguration;
 import org.xwiki.contrib.ratings.RatingsException;
 import org.xwiki.contrib.ratings.RatingsManager;
 
@@ -35,18 +39,22 @@ import com.xpn.xwiki.objects.BaseObject;
  * @version $Id$
  * @see AverageRating
  */
-public class StoredAverageRating implements AverageRating
+public class StoredAverageRating implements StatefulAverageRating
 {
     private XWikiDocument document;
 
     private BaseObject object;
 
     private XWikiContext context;
+
+    private RatingsConfiguration configuration;
     
-    public StoredAverageRating(XWikiDocument document, BaseObject ratingObject, XWikiContext context)
+    public StoredAverageRating(XWikiDocument document, BaseObject ratingObject, XWikiContext context,
+        RatingsConfiguration configuration)
     {
         this.document = document;
         this.context = context;
+        this.configuration = configuration;
         this.object = ratingObject;
     }
     
@@ -80,20 +88,26 @@ public class StoredAverageRating implements AverageRating
         object.setStringValue(RatingsManager.AVERAGERATING_CLASS_FIELDNAME_AVERAGEVOTE_METHOD, method);
     }
 
+    public String getState()
+    {
+        String state = object.getLargeStringValue(RatingsManager.AVERAGERATING_CLASS_FIELDNAME_STATE);
+        return StringUtils.isEmpty(state) ? null : state;
+    }
+
+    public void setState(String state)
+    {
+        object.setLargeStringValue(RatingsManager.AVERAGERATING_CLASS_FIELDNAME_STATE, (state == null) ? "" : state);
+    }
+
+    public Map<Integer, Integer> getVoteCounts()
+    {
+        return VoteHistogram.getCounts(getState(), getNbVotes());
+    }
+
     public void save() throws RatingsException
     {
         try {
-            // Force content dirty to false, so that the content update date is not changed when saving the document.
-            // This should not be handled there, since it is not the responsibility of this plugin to decide if
-            // the content has actually been changed or not since current revision, but the implementation of
-            // this in XWiki core is wrong. See http://jira.xwiki.org/jira/XWIKI-2800 for more details.
-            // There is a draw-back to doing this, being that if the document content is being changed before
-            // the document is rated, the contentUpdateDate will not be modified. Although possible, this is very
-            // unlikely to happen, or to be a use case. The default rating application will use an asynchronous service
-            // to
-            // note a document, which service will only set the rating, so the behavior will be correct.
-            document.setContentDirty(false);
-            context.getWiki().saveDocument(document, context);
+            RatingsDocumentSaver.save(document, configuration, context);
         } catch (XWikiException e) {
             throw new RatingsException(e);
         }
@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.ratings.RatingsImportedEvent;
+import org.xwiki.contrib.ratings.TopRatedDocuments;
+import org.xwiki.contrib.ratings.UpdateRatingEvent;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Updates the rankings of the rated documents after each vote, import, save or deletion of a document.
+ *
+ * @version $Id$
+ * @see DefaultTopRatedDocuments
+ */
+@Component
+@Named(TopRatedDocumentsListener.NAME)
+@Singleton
+public class TopRatedDocumentsListener implements EventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "ratings.toprated";
+
+    @Inject
+    private TopRatedDocuments topRatedDocuments;
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new UpdateRatingEvent(), new RatingsImportedEvent(), new DocumentUpdatedEvent(),
+            new DocumentDeletedEvent());
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (topRatedDocuments instanceof DefaultTopRatedDocuments) {
+            ((DefaultTopRatedDocuments) topRatedDocuments).onEvent(event, source);
+        }
+    }
+}
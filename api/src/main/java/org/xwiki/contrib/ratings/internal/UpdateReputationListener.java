@@ -1,29 +1,133 @@
 package org.xwiki.contrib.ratings.internal;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
-import javax.inject.Singleton;
+import javax.inject.Singleton;
 import javax.inject.Named;
 
-import org.xwiki.bridge.event.WikiReadyEvent;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.context.Execution;
+import org.xwiki.contrib.ratings.RatingsConfiguration;
 import org.xwiki.contrib.ratings.ReputationAlgorithm;
 import org.xwiki.contrib.ratings.UpdateRatingEvent;
 import org.xwiki.observation.EventListener;
 import org.xwiki.observation.event.Event;
 
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.util.XWikiStubContextProvider;
 
+/**
+ * Updates the reputations after each vote. Updates are queued and run by background threads, so that votes do not
+ * wait for them. Queued updates for the documents created by the same user are merged into a single task, and
+ * successive votes of a voter on the same document into a single update.
+ * <p>
+ * The reputation of a voter may be updated by the votes on the documents of several users at the same time, so the
+ * updates hold the locks of the reputations they modify. These locks only exist in the current JVM.
+ * </p>
+ *
+ * @version $Id$
+ */
 @Component
-@Named("updatereputation")
+@Named(UpdateReputationListener.NAME)
 @Singleton
-public class UpdateReputationListener implements EventListener
+public class UpdateReputationListener implements EventListener, Disposable
 {
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "updatereputation";
+
+    /**
+     * Maximum time to wait for the queued updates when shutting down, in seconds.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 60;
+
+    /**
+     * Number of locks shared by the reputations of the users.
+     */
+    private static final int REPUTATION_LOCK_STRIPES = 64;
+
     @Inject
     Provider<ReputationAlgorithm> reputationAlgorithm;
 
+    @Inject
+    Execution execution;
+
+    @Inject
+    RatingsConfiguration configuration;
+
+    @Inject
+    XWikiStubContextProvider stubContextProvider;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Updates waiting to be run, by wiki and creator of the rated documents.
+     */
+    private final Map<String, PendingUpdate> pendingUpdates = new HashMap<String, PendingUpdate>();
+
+    private final Lock[] reputationLocks = createReputationLocks();
+
+    private ThreadPoolExecutor executor;
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong ranByCaller = new AtomicLong();
+
+    /**
+     * Reputation updates of the votes on the documents created by the same user, by document and voter.
+     */
+    private static class PendingUpdate
+    {
+        private final String wiki;
+
+        private final String contributor;
+
+        private final Map<String, ReputationUpdate> updates = new LinkedHashMap<String, ReputationUpdate>();
+
+        public PendingUpdate(String wiki, String contributor)
+        {
+            this.wiki = wiki;
+            this.contributor = contributor;
+        }
+    }
+
+    private static Lock[] createReputationLocks()
+    {
+        Lock[] locks = new Lock[REPUTATION_LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
     @Override
     public List<Event> getEvents()
     {
@@ -33,14 +137,191 @@ public class UpdateReputationListener implements EventListener
     @Override
     public String getName()
     {
-        return "updatereputation";
+        return NAME;
     }
 
     @Override
     public void onEvent(Event event, Object arg1, Object arg2)
     {
-       UpdateRatingEvent ratingEvent = (UpdateRatingEvent) event;
-       reputationAlgorithm.get().updateReputation(ratingEvent.getDocumentName(), ratingEvent.getNewRating(), ratingEvent.getOldRating());
+        UpdateRatingEvent ratingEvent = (UpdateRatingEvent) event;
+        XWikiContext context = (XWikiContext) execution.getContext().getProperty("xwikicontext");
+        String contributor;
+        try {
+            contributor = context.getWiki().getDocument(ratingEvent.getDocumentName(), context).getCreator();
+        } catch (XWikiException e) {
+            logger.error("Failed to read the creator of " + ratingEvent.getDocumentName(), e);
+            return;
+        }
+
+        ThreadPoolExecutor updateExecutor = getExecutor();
+        if (updateExecutor == null) {
+            PendingUpdate pendingUpdate = new PendingUpdate(context.getDatabase(), contributor);
+            pendingUpdate.updates.put(ratingEvent.getDocumentName(), new ReputationUpdate(
+                ratingEvent.getDocumentName(), ratingEvent.getNewRating(), ratingEvent.getOldRating()));
+            updateReputations(pendingUpdate);
+            return;
+        }
+
+        // the reputations are updated by subject, the creator of the rated documents, so that several votes on
+        // the documents of a user lead to a single update of the reputation of the user
+        final String key = context.getDatabase() + ":" + contributor;
+        String voteKey = ratingEvent.getDocumentName() + ":" + ratingEvent.getNewRating().getAuthor();
+        synchronized (pendingUpdates) {
+            PendingUpdate pendingUpdate = pendingUpdates.get(key);
+            if (pendingUpdate != null) {
+                ReputationUpdate update = pendingUpdate.updates.get(voteKey);
+                if (update != null) {
+                    update.setRating(ratingEvent.getNewRating());
+                } else {
+                    pendingUpdate.updates.put(voteKey, new ReputationUpdate(ratingEvent.getDocumentName(),
+                        ratingEvent.getNewRating(), ratingEvent.getOldRating()));
+                }
+                coalesced.incrementAndGet();
+                return;
+            }
+            pendingUpdate = new PendingUpdate(context.getDatabase(), contributor);
+            pendingUpdate.updates.put(voteKey, new ReputationUpdate(ratingEvent.getDocumentName(),
+                ratingEvent.getNewRating(), ratingEvent.getOldRating()));
+            pendingUpdates.put(key, pendingUpdate);
+        }
+
+        submitted.incrementAndGet();
+        updateExecutor.execute(new ContextualTask(execution, stubContextProvider, context.getDatabase(),
+            context.getUser())
+        {
+            @Override
+            protected void runInContext()
+            {
+                PendingUpdate pendingUpdate;
+                synchronized (pendingUpdates) {
+                    pendingUpdate = pendingUpdates.remove(key);
+                }
+                if (pendingUpdate == null) {
+                    return;
+                }
+                try {
+                    updateReputations(pendingUpdate);
+                    completed.incrementAndGet();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    logger.error("Failed to update the reputations after votes on the documents of "
+                        + pendingUpdate.contributor, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the merged updates of a user, holding the locks of all the reputations they may modify. Only the
+     * algorithms implementing {@link BatchReputationAlgorithm} are given all the votes at once, the others are given
+     * each vote in turn.
+     */
+    private void updateReputations(PendingUpdate pendingUpdate)
+    {
+        // the locks are taken in the order of their stripes, so that two updates cannot wait for each other
+        SortedSet<Integer> stripes = new TreeSet<Integer>();
+        stripes.add(getReputationStripe(pendingUpdate.wiki, pendingUpdate.contributor));
+        for (ReputationUpdate update : pendingUpdate.updates.values()) {
+            stripes.add(getReputationStripe(pendingUpdate.wiki, update.getAuthor()));
+        }
+        List<Lock> locks = new ArrayList<Lock>();
+        try {
+            for (Integer stripe : stripes) {
+                Lock lock = reputationLocks[stripe];
+                lock.lock();
+                locks.add(lock);
+            }
+            ReputationAlgorithm algorithm = reputationAlgorithm.get();
+            if (algorithm instanceof BatchReputationAlgorithm) {
+                ((BatchReputationAlgorithm) algorithm).updateReputations(pendingUpdate.contributor,
+                    pendingUpdate.updates.values());
+            } else {
+                for (ReputationUpdate update : pendingUpdate.updates.values()) {
+                    algorithm.updateReputation(update.getDocumentName(), update.getRating(), update.getOldVote());
+                }
+            }
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).unlock();
+            }
+        }
+    }
+
+    private int getReputationStripe(String wiki, String username)
+    {
+        int hash = (wiki + ":" + username).hashCode();
+        return (hash & Integer.MAX_VALUE) % reputationLocks.length;
+    }
+
+    /**
+     * @return the executor running the updates, or null if updates are run synchronously
+     */
+    private synchronized ThreadPoolExecutor getExecutor()
+    {
+        if (executor == null) {
+            int threads = configuration.getReputationUpdateThreads();
+            if (threads <= 0) {
+                return null;
+            }
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, configuration.getReputationUpdateQueueSize())),
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "Ratings reputation update");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new RejectedExecutionHandler()
+                {
+                    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor rejectingExecutor)
+                    {
+                        // the queue is full: slow down voters by running the update in their thread
+                        ranByCaller.incrementAndGet();
+                        runnable.run();
+                    }
+                });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * @return the counters of the update queue
+     */
+    public Map<String, Long> getStatistics()
+    {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("submitted", submitted.get());
+        statistics.put("coalesced", coalesced.get());
+        statistics.put("completed", completed.get());
+        statistics.put("failed", failed.get());
+        statistics.put("ranByCaller", ranByCaller.get());
+        synchronized (this) {
+            statistics.put("queued", (executor == null) ? 0L : (long) executor.getQueue().size());
+            statistics.put("active", (executor == null) ? 0L : (long) executor.getActiveCount());
+        }
+        return statistics;
+    }
+
+    @Override
+    public void dispose()
+    {
+        ThreadPoolExecutor updateExecutor;
+        synchronized (this) {
+            updateExecutor = executor;
+        }
+        if (updateExecutor != null) {
+            // queued updates are still run
+            updateExecutor.shutdown();
+            try {
+                if (!updateExecutor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                    logger.warn("Reputation updates still running after " + SHUTDOWN_TIMEOUT + " seconds");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
-  
 }
@@ -0,0 +1,225 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Votes not saved yet, grouped by document. Successive votes of an author on the same document are coalesced, so that
+ * only the last one is saved.
+ *
+ * @version $Id$
+ */
+public class VoteBuffer
+{
+    private final Map<String, DocumentVotes> documents = new HashMap<String, DocumentVotes>();
+
+    /**
+     * Vote of an author on a document, not saved yet.
+     */
+    public static class PendingVote
+    {
+        private final String author;
+
+        private final int persistedVote;
+
+        private final int vote;
+
+        private final Date date;
+
+        public PendingVote(String author, int persistedVote, int vote, Date date)
+        {
+            this.author = author;
+            this.persistedVote = persistedVote;
+            this.vote = vote;
+            this.date = date;
+        }
+
+        public String getAuthor()
+        {
+            return author;
+        }
+
+        /**
+         * @return the vote of the author currently saved in the document, 0 if there is none
+         */
+        public int getPersistedVote()
+        {
+            return persistedVote;
+        }
+
+        public int getVote()
+        {
+            return vote;
+        }
+
+        public Date getDate()
+        {
+            return date;
+        }
+    }
+
+    /**
+     * Pending votes of a document, along with its wiki and the author of the first one, used to save them.
+     */
+    private static class DocumentVotes
+    {
+        private final String documentName;
+
+        private final String wiki;
+
+        private final String user;
+
+        private final Map<String, PendingVote> votes = new LinkedHashMap<String, PendingVote>();
+
+        public DocumentVotes(String documentName, String wiki, String user)
+        {
+            this.documentName = documentName;
+            this.wiki = wiki;
+            this.user = user;
+        }
+    }
+
+    /**
+     * Adds a vote to the buffer, replacing the pending vote of the same author on the document if any.
+     *
+     * @param key the key identifying the document in the buffer
+     * @param documentName the rated document
+     * @param wiki the wiki of the document
+     * @param author the author of the vote
+     * @param persistedVote the vote of the author currently saved in the document, 0 if there is none
+     * @param vote the new vote
+     * @return the pending vote
+     */
+    public synchronized PendingVote add(String key, String documentName, String wiki, String author,
+        int persistedVote, int vote)
+    {
+        DocumentVotes documentVotes = documents.get(key);
+        if (documentVotes == null) {
+            documentVotes = new DocumentVotes(documentName, wiki, author);
+            documents.put(key, documentVotes);
+        }
+        PendingVote previous = documentVotes.votes.get(author);
+        PendingVote pendingVote =
+            new PendingVote(author, (previous == null) ? persistedVote : previous.getPersistedVote(), vote, new Date());
+        documentVotes.votes.put(author, pendingVote);
+        return pendingVote;
+    }
+
+    /**
+     * @param key the key identifying the document in the buffer
+     * @param author the author of the vote
+     * @return the pending vote of the author on the document, or null if there is none
+     */
+    public synchronized PendingVote get(String key, String author)
+    {
+        DocumentVotes documentVotes = documents.get(key);
+        return (documentVotes == null) ? null : documentVotes.votes.get(author);
+    }
+
+    /**
+     * @param key the key identifying the document in the buffer
+     * @return the pending votes of the document, in the order in which the authors first voted
+     */
+    public synchronized List<PendingVote> getVotes(String key)
+    {
+        DocumentVotes documentVotes = documents.get(key);
+        if (documentVotes == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<PendingVote>(documentVotes.votes.values());
+    }
+
+    /**
+     * @param key the key identifying the document in the buffer
+     * @return the name of the document, or null if it has no pending vote
+     */
+    public synchronized String getDocumentName(String key)
+    {
+        DocumentVotes documentVotes = documents.get(key);
+        return (documentVotes == null) ? null : documentVotes.documentName;
+    }
+
+    /**
+     * @param key the key identifying the document in the buffer
+     * @return the wiki of the document, or null if it has no pending vote
+     */
+    public synchronized String getWiki(String key)
+    {
+        DocumentVotes documentVotes = documents.get(key);
+        return (documentVotes == null) ? null : documentVotes.wiki;
+    }
+
+    /**
+     * @param key the key identifying the document in the buffer
+     * @return the user saving the document, the author of its first pending vote, or null if it has no pending vote
+     */
+    public synchronized String getUser(String key)
+    {
+        DocumentVotes documentVotes = documents.get(key);
+        return (documentVotes == null) ? null : documentVotes.user;
+    }
+
+    /**
+     * @return the keys of the documents having pending votes
+     */
+    public synchronized List<String> getKeys()
+    {
+        return new ArrayList<String>(documents.keySet());
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return documents.isEmpty();
+    }
+
+    /**
+     * Removes votes which have been saved. Votes cast while the document was being saved are kept, and now replace the
+     * saved ones.
+     *
+     * @param key the key identifying the document in the buffer
+     * @param savedVotes the votes which have been saved, as returned by {@link #getVotes(String)}
+     */
+    public synchronized void removeSaved(String key, List<PendingVote> savedVotes)
+    {
+        DocumentVotes documentVotes = documents.get(key);
+        if (documentVotes == null) {
+            return;
+        }
+        for (PendingVote savedVote : savedVotes) {
+            PendingVote current = documentVotes.votes.get(savedVote.getAuthor());
+            if (current == savedVote) {
+                documentVotes.votes.remove(savedVote.getAuthor());
+            } else if (current != null) {
+                documentVotes.votes.put(current.getAuthor(), new PendingVote(current.getAuthor(),
+                    savedVote.getVote(), current.getVote(), current.getDate()));
+            }
+        }
+        if (documentVotes.votes.isEmpty()) {
+            documents.remove(key);
+        }
+    }
+}
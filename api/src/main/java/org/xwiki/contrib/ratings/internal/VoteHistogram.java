@@ -0,0 +1,173 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Number of votes for each vote value of a document. It is kept in the state of the average ratings computed by the
+ * built-in aggregators, serialized as <code>vote:count</code> pairs separated by commas, e.g. <code>1:2,4:7,5:3</code>.
+ *
+ * @version $Id$
+ */
+public class VoteHistogram
+{
+    private static final String PAIR_SEPARATOR = ",";
+
+    private static final char VALUE_SEPARATOR = ':';
+
+    private final SortedMap<Integer, Integer> counts = new TreeMap<Integer, Integer>();
+
+    /**
+     * Creates an empty histogram.
+     */
+    public VoteHistogram()
+    {
+    }
+
+    /**
+     * @param state the state of an average rating
+     * @return the histogram serialized in the state, or null if the state does not hold a histogram
+     */
+    public static VoteHistogram parse(String state)
+    {
+        if (state == null) {
+            return null;
+        }
+        VoteHistogram histogram = new VoteHistogram();
+        for (String pair : StringUtils.split(state, PAIR_SEPARATOR)) {
+            int index = pair.indexOf(VALUE_SEPARATOR);
+            if (index < 0) {
+                return null;
+            }
+            try {
+                int count = Integer.parseInt(pair.substring(index + 1).trim());
+                if (count < 0) {
+                    return null;
+                }
+                histogram.counts.put(Integer.valueOf(pair.substring(0, index).trim()), count);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @param state the state of an average rating
+     * @param nbVotes the number of votes of the average rating
+     * @return the number of votes for each vote value counted in the state, or null if the state does not hold a
+     *         histogram
+     */
+    public static Map<Integer, Integer> getCounts(String state, int nbVotes)
+    {
+        VoteHistogram histogram = parse(state);
+        if (histogram == null && nbVotes == 0) {
+            histogram = new VoteHistogram();
+        }
+        return (histogram == null) ? null : histogram.getCounts();
+    }
+
+    /**
+     * @param vote a vote to count
+     */
+    public void add(int vote)
+    {
+        add(vote, 1);
+    }
+
+    /**
+     * @param vote a vote to count
+     * @param count the number of times the vote is counted
+     */
+    public void add(int vote, int count)
+    {
+        Integer previous = counts.get(vote);
+        counts.put(vote, (previous == null) ? count : previous + count);
+    }
+
+    /**
+     * @param vote a counted vote to remove
+     * @return false if the vote was not counted
+     */
+    public boolean remove(int vote)
+    {
+        Integer count = counts.get(vote);
+        if (count == null || count == 0) {
+            return false;
+        }
+        if (count == 1) {
+            counts.remove(vote);
+        } else {
+            counts.put(vote, count - 1);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of votes, by vote value, in increasing order of vote
+     */
+    public Map<Integer, Integer> getCounts()
+    {
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * @return the number of counted votes
+     */
+    public int getNbVotes()
+    {
+        int nbVotes = 0;
+        for (int count : counts.values()) {
+            nbVotes += count;
+        }
+        return nbVotes;
+    }
+
+    /**
+     * @return the sum of the counted votes
+     */
+    public long getTotal()
+    {
+        long total = 0;
+        for (Map.Entry<Integer, Integer> count : counts.entrySet()) {
+            total += (long) count.getKey() * count.getValue();
+        }
+        return total;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder state = new StringBuilder();
+        for (Map.Entry<Integer, Integer> count : counts.entrySet()) {
+            if (state.length() > 0) {
+                state.append(PAIR_SEPARATOR);
+            }
+            state.append(count.getKey()).append(VALUE_SEPARATOR).append(count.getValue());
+        }
+        return state.toString();
+    }
+}
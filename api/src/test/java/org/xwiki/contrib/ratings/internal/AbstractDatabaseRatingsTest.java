@@ -0,0 +1,199 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.dialect.HSQLDialect;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.After;
+import org.junit.Before;
+import org.slf4j.LoggerFactory;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.internal.DefaultExecution;
+import org.xwiki.contrib.ratings.RatingAggregator;
+import org.xwiki.contrib.ratings.RatingsConfiguration;
+import org.xwiki.contrib.ratings.RatingsException;
+import org.xwiki.contrib.ratings.RatingsManager;
+import org.xwiki.observation.ObservationManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+
+/**
+ * Runs {@link DatabaseRatingsManager} instances against an in-memory HSQLDB database created from the
+ * <code>ratings.hbm.xml</code> mapping, instead of the Hibernate store of a wiki. Average ratings are stored and
+ * computed with the "average" method.
+ *
+ * @version $Id$
+ */
+public abstract class AbstractDatabaseRatingsTest
+{
+    protected static final String WIKI = "xwiki";
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    protected final Mockery mockery = new JUnit4Mockery();
+
+    protected SessionFactory sessionFactory;
+
+    protected Execution execution;
+
+    protected RatingsConfiguration configuration;
+
+    protected ObservationManager observationManager;
+
+    protected ComponentManager componentManager;
+
+    /**
+     * Ratings manager executing its queries in its own sessions of the test database. Several instances behave like
+     * the ratings managers of several cluster nodes sharing the same database. Like the Hibernate store of a wiki, a
+     * query executed while a transaction is open in the current thread joins it.
+     */
+    protected class TestDatabaseRatingsManager extends DatabaseRatingsManager
+    {
+        private final ThreadLocal<Session> currentSession = new ThreadLocal<Session>();
+
+        public TestDatabaseRatingsManager()
+        {
+            this.execution = AbstractDatabaseRatingsTest.this.execution;
+            this.configuration = AbstractDatabaseRatingsTest.this.configuration;
+            this.observationManager = AbstractDatabaseRatingsTest.this.observationManager;
+            this.componentManager = AbstractDatabaseRatingsTest.this.componentManager;
+            ReflectionUtils.setFieldValue(this, "LOGGER", LoggerFactory.getLogger(DatabaseRatingsManager.class));
+        }
+
+        @Override
+        protected <T> T executeRead(HibernateCallback<T> callback) throws RatingsException
+        {
+            return execute(callback);
+        }
+
+        @Override
+        protected <T> T executeWrite(HibernateCallback<T> callback) throws RatingsException
+        {
+            return execute(callback);
+        }
+
+        private <T> T execute(HibernateCallback<T> callback) throws RatingsException
+        {
+            if (currentSession.get() != null) {
+                try {
+                    return callback.doInHibernate(currentSession.get());
+                } catch (Exception e) {
+                    throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS,
+                        RatingsException.ERROR_RATINGS_QUERY, "Failed to access the ratings tables", e);
+                }
+            }
+            Session session = sessionFactory.openSession();
+            currentSession.set(session);
+            Transaction transaction = session.beginTransaction();
+            try {
+                T result = callback.doInHibernate(session);
+                transaction.commit();
+                return result;
+            } catch (Exception e) {
+                transaction.rollback();
+                throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS,
+                    RatingsException.ERROR_RATINGS_QUERY, "Failed to access the ratings tables", e);
+            } finally {
+                currentSession.remove();
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * The HSQLDB dialect of Hibernate ignores the update locks, while the ratings managers of several cluster nodes
+     * rely on them to serialize the updates of the same average rating. The database uses the locking transaction
+     * model, since rows read for update are not locked by the MVCC model of HSQLDB.
+     */
+    public static class LockingHSQLDialect extends HSQLDialect
+    {
+        @Override
+        public String getForUpdateString()
+        {
+            return " for update";
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Configuration hibernateConfiguration = new Configuration();
+        hibernateConfiguration.setProperty(Environment.DIALECT, LockingHSQLDialect.class.getName());
+        hibernateConfiguration.setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+        hibernateConfiguration.setProperty(Environment.URL,
+            "jdbc:hsqldb:mem:ratings" + DATABASES.incrementAndGet() + ";hsqldb.tx=locks");
+        hibernateConfiguration.setProperty(Environment.USER, "sa");
+        hibernateConfiguration.setProperty(Environment.HBM2DDL_AUTO, "create-drop");
+        hibernateConfiguration.addResource("ratings.hbm.xml");
+        sessionFactory = hibernateConfiguration.buildSessionFactory();
+
+        execution = new DefaultExecution();
+        configuration = mockery.mock(RatingsConfiguration.class);
+        observationManager = mockery.mock(ObservationManager.class);
+        componentManager = mockery.mock(ComponentManager.class);
+        mockery.checking(new Expectations()
+        {
+            {
+                allowing(configuration).isAverageRatingStored();
+                will(returnValue(true));
+                allowing(configuration).getDefaultReputationMethods();
+                will(returnValue(new String[] {RatingsManager.RATING_REPUTATION_METHOD_AVERAGE}));
+                ignoring(configuration);
+                allowing(componentManager).getInstance(RatingAggregator.class,
+                    RatingsManager.RATING_REPUTATION_METHOD_AVERAGE);
+                will(returnValue(new AverageRatingAggregator()));
+                ignoring(observationManager);
+            }
+        });
+        initContext();
+    }
+
+    @After
+    public void tearDown()
+    {
+        execution.removeContext();
+        sessionFactory.close();
+    }
+
+    /**
+     * Starts a new request in the current thread.
+     */
+    protected void initContext()
+    {
+        XWikiContext context = new XWikiContext();
+        context.setDatabase(WIKI);
+        ExecutionContext executionContext = new ExecutionContext();
+        executionContext.setProperty("xwikicontext", context);
+        execution.setContext(executionContext);
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Before;
+import org.slf4j.LoggerFactory;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.contrib.ratings.RatingAggregator;
+import org.xwiki.contrib.ratings.RatingsConfiguration;
+import org.xwiki.contrib.ratings.RatingsManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.test.AbstractBridgedComponentTestCase;
+
+/**
+ * Runs the ratings managers storing ratings in documents, {@link DefaultRatingsManager} and
+ * {@link SeparatePageRatingsManager}, against an in-memory wiki instead of the store of a wiki. Documents are copied
+ * when they are loaded and saved, like they are by a store, and the queries of the separate page ratings are answered
+ * from the saved documents. Average ratings are stored and computed with the "average" method.
+ *
+ * @version $Id$
+ */
+public abstract class AbstractDocumentRatingsTest extends AbstractBridgedComponentTestCase
+{
+    protected final Mockery mockery = new JUnit4Mockery();
+
+    protected MemoryWiki wiki;
+
+    protected Execution execution;
+
+    protected RatingsConfiguration configuration;
+
+    protected ObservationManager observationManager;
+
+    protected ComponentManager componentManager;
+
+    /**
+     * Wiki keeping its documents in memory. Only the methods used by the ratings managers are supported.
+     */
+    protected static class MemoryWiki extends XWiki
+    {
+        private final Map<DocumentReference, XWikiDocument> documents =
+            new HashMap<DocumentReference, XWikiDocument>();
+
+        @Override
+        public synchronized XWikiDocument getDocument(XWikiDocument doc, XWikiContext context)
+        {
+            XWikiDocument savedDocument = documents.get(doc.getDocumentReference());
+            return (savedDocument == null) ? doc : savedDocument.clone();
+        }
+
+        @Override
+        public void saveDocument(XWikiDocument doc, XWikiContext context)
+        {
+            saveDocument(doc, "", false, context);
+        }
+
+        @Override
+        public synchronized void saveDocument(XWikiDocument doc, String comment, boolean isMinorEdit,
+            XWikiContext context)
+        {
+            doc.setNew(false);
+            documents.put(doc.getDocumentReference(), doc.clone());
+        }
+
+        @Override
+        public synchronized boolean exists(DocumentReference documentReference, XWikiContext context)
+        {
+            return documents.containsKey(documentReference);
+        }
+
+        @Override
+        public String clearName(String name, XWikiContext context)
+        {
+            return name;
+        }
+
+        /**
+         * @return the saved documents, which must not be modified
+         */
+        public synchronized List<XWikiDocument> getDocuments()
+        {
+            return new ArrayList<XWikiDocument>(documents.values());
+        }
+    }
+
+    /**
+     * Query answering the few statements of {@link SeparatePageRatingsManager} needed to vote, from the rating pages
+     * saved in the wiki, recognized by their bound parameters.
+     */
+    private class MemoryQuery implements InvocationHandler
+    {
+        private final String statement;
+
+        private final Map<String, Object> values = new HashMap<String, Object>();
+
+        private int offset;
+
+        private int limit;
+
+        MemoryQuery(String statement)
+        {
+            this.statement = statement;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(this, args);
+            }
+            String name = method.getName();
+            if (name.equals("bindValue") && args[0] instanceof String) {
+                values.put((String) args[0], args[1]);
+            } else if (name.equals("setOffset")) {
+                offset = (Integer) args[0];
+            } else if (name.equals("setLimit")) {
+                limit = (Integer) args[0];
+            } else if (name.equals("getStatement")) {
+                return statement;
+            } else if (name.equals("execute")) {
+                return execute();
+            }
+            return method.getReturnType().isInstance(proxy) ? proxy : null;
+        }
+
+        private List<Object> execute()
+        {
+            List<Object> results = new ArrayList<Object>();
+            if (values.containsKey("prefix")) {
+                // names of the existing rating pages
+                String prefix = ((String) values.get("prefix")).replace("%", "");
+                for (XWikiDocument doc : wiki.getDocuments()) {
+                    if (doc.getSpace().equals(values.get("space")) && doc.getName().startsWith(prefix)) {
+                        results.add(doc.getName());
+                    }
+                }
+            } else if (statement.contains("count(")) {
+                // number of ratings of each vote of the documents
+                Map<String, Map<Integer, Long>> voteCounts = new HashMap<String, Map<Integer, Long>>();
+                for (BaseObject rating : getRatingObjects((Collection< ? >) values.get("parents"))) {
+                    String parent = rating.getStringValue(RatingsManager.RATING_CLASS_FIELDNAME_PARENT);
+                    if (!voteCounts.containsKey(parent)) {
+                        voteCounts.put(parent, new HashMap<Integer, Long>());
+                    }
+                    Integer vote = rating.getIntValue(RatingsManager.RATING_CLASS_FIELDNAME_VOTE);
+                    Long count = voteCounts.get(parent).get(vote);
+                    voteCounts.get(parent).put(vote, (count == null) ? 1L : count + 1);
+                }
+                for (Map.Entry<String, Map<Integer, Long>> parent : voteCounts.entrySet()) {
+                    for (Map.Entry<Integer, Long> voteCount : parent.getValue().entrySet()) {
+                        results.add(new Object[] {parent.getKey(), voteCount.getKey(), voteCount.getValue()});
+                    }
+                }
+            } else if (values.containsKey("parent")) {
+                // ratings of a document, optionally of a given author
+                for (BaseObject rating : getRatingObjects(Collections.singleton(values.get("parent")))) {
+                    String author = rating.getStringValue(RatingsManager.RATING_CLASS_FIELDNAME_AUTHOR);
+                    if (!values.containsKey("author") || author.equals(values.get("author"))) {
+                        results.add(new Object[] {rating.getName(), author,
+                            rating.getIntValue(RatingsManager.RATING_CLASS_FIELDNAME_VOTE),
+                            rating.getDateValue(RatingsManager.RATING_CLASS_FIELDNAME_DATE)});
+                    }
+                }
+                sortByDate(results, statement.endsWith("desc"));
+            } else {
+                throw new UnsupportedOperationException("Unsupported query: " + statement);
+            }
+            int end = (limit > 0) ? Math.min(results.size(), offset + limit) : results.size();
+            return (offset < end) ? results.subList(offset, end) : new ArrayList<Object>();
+        }
+
+        private List<BaseObject> getRatingObjects(Collection< ? > parents)
+        {
+            List<BaseObject> ratings = new ArrayList<BaseObject>();
+            for (XWikiDocument doc : wiki.getDocuments()) {
+                BaseObject rating = doc.getObject(RatingsManager.RATINGS_CLASSNAME);
+                if (rating != null
+                    && parents.contains(rating.getStringValue(RatingsManager.RATING_CLASS_FIELDNAME_PARENT))) {
+                    ratings.add(rating);
+                }
+            }
+            return ratings;
+        }
+
+        private void sortByDate(List<Object> rows, final boolean desc)
+        {
+            Collections.sort(rows, new Comparator<Object>()
+            {
+                public int compare(Object row1, Object row2)
+                {
+                    Object[] values1 = (Object[]) row1;
+                    Object[] values2 = (Object[]) row2;
+                    int result = ((Date) values1[3]).compareTo((Date) values2[3]);
+                    if (result == 0) {
+                        result = ((String) values1[0]).compareTo((String) values2[0]);
+                    }
+                    return desc ? -result : result;
+                }
+            });
+        }
+    }
+
+    /**
+     * Cache keeping all its entries in memory, used for the author index and the rating page counters.
+     */
+    private static class MemoryCache implements InvocationHandler
+    {
+        private final Map<Object, Object> entries = new ConcurrentHashMap<Object, Object>();
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(this, args);
+            }
+            String name = method.getName();
+            if (name.equals("set")) {
+                entries.put(args[0], args[1]);
+            } else if (name.equals("get")) {
+                return entries.get(args[0]);
+            } else if (name.equals("remove")) {
+                entries.remove(args[0]);
+            } else if (name.equals("removeAll")) {
+                entries.clear();
+            }
+            return null;
+        }
+    }
+
+    @Override
+    @Before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+
+        wiki = new MemoryWiki();
+        getContext().setWiki(wiki);
+        execution = getComponentManager().getInstance(Execution.class);
+        configuration = mockery.mock(RatingsConfiguration.class);
+        observationManager = mockery.mock(ObservationManager.class);
+        componentManager = mockery.mock(ComponentManager.class);
+        mockery.checking(new Expectations()
+        {
+            {
+                allowing(configuration).isAverageRatingStored();
+                will(returnValue(true));
+                allowing(configuration).getDefaultReputationMethods();
+                will(returnValue(new String[] {RatingsManager.RATING_REPUTATION_METHOD_AVERAGE}));
+                allowing(configuration).getSeparatePageSpaceName();
+                will(returnValue("Ratings"));
+                ignoring(configuration);
+                allowing(componentManager).getInstance(RatingAggregator.class,
+                    RatingsManager.RATING_REPUTATION_METHOD_AVERAGE);
+                will(returnValue(new AverageRatingAggregator()));
+                ignoring(observationManager);
+            }
+        });
+    }
+
+    /**
+     * Starts a new request in the current thread, with its own context.
+     */
+    protected void initContext()
+    {
+        XWikiContext context = new XWikiContext();
+        context.setDatabase(getContext().getDatabase());
+        context.setMainXWiki(getContext().getMainXWiki());
+        context.setWiki(wiki);
+        context.put(ComponentManager.class.getName(), getComponentManager());
+        ExecutionContext executionContext = new ExecutionContext();
+        executionContext.setProperty("xwikicontext", context);
+        execution.setContext(executionContext);
+    }
+
+    /**
+     * @return a ratings manager storing each rating as an object of the rated document
+     */
+    protected DefaultRatingsManager newDefaultRatingsManager() throws Exception
+    {
+        AuthorRatingsIndex authorIndex = new AuthorRatingsIndex();
+        ReflectionUtils.setFieldValue(authorIndex, "logger", LoggerFactory.getLogger(AuthorRatingsIndex.class));
+        ReflectionUtils.setFieldValue(authorIndex, "cacheManager", newCacheManager());
+        authorIndex.initialize();
+
+        DefaultRatingsManager ratingsManager = new DefaultRatingsManager();
+        initRatingsManager(ratingsManager);
+        ReflectionUtils.setFieldValue(ratingsManager, "LOGGER", LoggerFactory.getLogger(DefaultRatingsManager.class));
+        ReflectionUtils.setFieldValue(ratingsManager, "authorIndexListener", authorIndex);
+        ratingsManager.initialize();
+        return ratingsManager;
+    }
+
+    /**
+     * @return a ratings manager storing each rating in its own page
+     */
+    protected SeparatePageRatingsManager newSeparatePageRatingsManager()
+    {
+        SeparatePageRatingsManager ratingsManager = new SeparatePageRatingsManager();
+        initRatingsManager(ratingsManager);
+        ReflectionUtils.setFieldValue(ratingsManager, "LOGGER",
+            LoggerFactory.getLogger(SeparatePageRatingsManager.class));
+        return ratingsManager;
+    }
+
+    private void initRatingsManager(AbstractRatingsManager ratingsManager)
+    {
+        ratingsManager.execution = execution;
+        ratingsManager.configuration = configuration;
+        ratingsManager.observationManager = observationManager;
+        ratingsManager.componentManager = componentManager;
+        ratingsManager.cacheManager = newCacheManager();
+        ratingsManager.queryManager = newQueryManager();
+    }
+
+    private CacheManager newCacheManager()
+    {
+        return newProxy(CacheManager.class, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                if (method.getDeclaringClass() == Object.class) {
+                    return method.invoke(this, args);
+                }
+                return newProxy(Cache.class, new MemoryCache());
+            }
+        });
+    }
+
+    private QueryManager newQueryManager()
+    {
+        return newProxy(QueryManager.class, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                if (method.getDeclaringClass() == Object.class) {
+                    return method.invoke(this, args);
+                }
+                return newProxy(Query.class, new MemoryQuery((String) args[0]));
+            }
+        });
+    }
+
+    private static <T> T newProxy(Class<T> role, InvocationHandler handler)
+    {
+        return role.cast(Proxy.newProxyInstance(role.getClassLoader(), new Class< ? >[] {role}, handler));
+    }
+}
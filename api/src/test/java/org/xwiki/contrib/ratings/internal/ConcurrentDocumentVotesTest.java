@@ -0,0 +1,140 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.contrib.ratings.AverageRating;
+import org.xwiki.contrib.ratings.Rating;
+import org.xwiki.contrib.ratings.RatingsManager;
+
+/**
+ * Stress test of concurrent votes on the same document, with the ratings managers storing ratings in documents.
+ *
+ * @version $Id$
+ */
+public class ConcurrentDocumentVotesTest extends AbstractDocumentRatingsTest
+{
+    private static final String DOCUMENT = "Main.WebHome";
+
+    private static final int THREADS = 32;
+
+    private static final int VOTES_PER_THREAD = 10;
+
+    /**
+     * Number of distinct voters, so that threads often vote for the same author at the same time.
+     */
+    private static final int AUTHORS = 8;
+
+    /**
+     * All the votes are saved in the rated document, so that votes cast at the same time must not overwrite each
+     * other's rating objects or average rating.
+     */
+    @Test
+    public void testConcurrentVotesWithDefaultRatingsManager() throws Exception
+    {
+        RatingsManager ratingsManager = newDefaultRatingsManager();
+        vote(ratingsManager);
+
+        assertAverageOfTheRatings(ratingsManager);
+    }
+
+    /**
+     * Each rating has its own page, whose name is taken from a counter, so that votes cast at the same time must not
+     * get the same rating page, nor create two rating pages for the same author.
+     */
+    @Test
+    public void testConcurrentVotesWithSeparatePageRatingsManager() throws Exception
+    {
+        RatingsManager ratingsManager = newSeparatePageRatingsManager();
+        vote(ratingsManager);
+
+        assertAverageOfTheRatings(ratingsManager);
+    }
+
+    /**
+     * Checks that the document has one rating per author and that its stored average rating counts all of them.
+     */
+    private void assertAverageOfTheRatings(RatingsManager ratingsManager) throws Exception
+    {
+        initContext();
+        List<Rating> ratings = ratingsManager.getRatings(DOCUMENT, 0, 0, true);
+        Set<String> authors = new HashSet<String>();
+        int total = 0;
+        for (Rating rating : ratings) {
+            Assert.assertTrue("Duplicate rating of " + rating.getAuthor(), authors.add(rating.getAuthor()));
+            total += rating.getVote();
+        }
+        Assert.assertEquals(AUTHORS, authors.size());
+
+        AverageRating averageRating =
+            ratingsManager.getAverageRating(DOCUMENT, RatingsManager.RATING_REPUTATION_METHOD_AVERAGE);
+        Assert.assertEquals(AUTHORS, averageRating.getNbVotes());
+        Assert.assertEquals((float) total / AUTHORS, averageRating.getAverageVote(), 0.0001);
+    }
+
+    /**
+     * Runs the voting threads, all starting at the same time, each in its own request.
+     */
+    private void vote(final RatingsManager ratingsManager) throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final int threadNumber = i;
+            Thread thread = new Thread("Voter " + threadNumber)
+            {
+                @Override
+                public void run()
+                {
+                    initContext();
+                    try {
+                        start.await();
+                        for (int j = 0; j < VOTES_PER_THREAD; j++) {
+                            String author = "XWiki.User" + ((threadNumber + j) % AUTHORS);
+                            ratingsManager.setRating(DOCUMENT, author, 1 + (threadNumber * j) % 5);
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    } finally {
+                        execution.removeContext();
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.size() + " voters failed, first with " + failures.get(0));
+        }
+    }
+}
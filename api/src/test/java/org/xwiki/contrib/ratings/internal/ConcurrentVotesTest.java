@@ -0,0 +1,152 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.contrib.ratings.AverageRating;
+import org.xwiki.contrib.ratings.Rating;
+import org.xwiki.contrib.ratings.RatingsManager;
+
+/**
+ * Stress test of concurrent votes on the same document, with {@link DatabaseRatingsManager} on an HSQLDB database.
+ *
+ * @version $Id$
+ */
+public class ConcurrentVotesTest extends AbstractDatabaseRatingsTest
+{
+    private static final String DOCUMENT = "Main.WebHome";
+
+    private static final int THREADS = 64;
+
+    private static final int VOTES_PER_THREAD = 20;
+
+    /**
+     * Number of distinct voters, so that threads often vote for the same author at the same time.
+     */
+    private static final int AUTHORS = 16;
+
+    @Test
+    public void testConcurrentVotesOnTheSameDocument() throws Exception
+    {
+        DatabaseRatingsManager ratingsManager = new TestDatabaseRatingsManager();
+        vote(Collections.<DatabaseRatingsManager>nCopies(THREADS, ratingsManager));
+
+        // votes on the same document are serialized by its lock, so that no update of the average is lost
+        assertAverageOfTheRatings(ratingsManager);
+    }
+
+    /**
+     * The document locks are local to each ratings manager, like they are local to each node of a cluster. The
+     * unique keys of the tables still prevent duplicate ratings and average ratings, and the lock on the average
+     * rating rows keeps the updates of the average from several nodes from overwriting each other.
+     */
+    @Test
+    public void testConcurrentVotesFromSeveralNodes() throws Exception
+    {
+        List<DatabaseRatingsManager> nodes = new ArrayList<DatabaseRatingsManager>();
+        for (int i = 0; i < 4; i++) {
+            nodes.add(new TestDatabaseRatingsManager());
+        }
+        List<DatabaseRatingsManager> ratingsManagers = new ArrayList<DatabaseRatingsManager>();
+        for (int i = 0; i < THREADS; i++) {
+            ratingsManagers.add(nodes.get(i % nodes.size()));
+        }
+        vote(ratingsManagers);
+
+        assertAverageOfTheRatings(nodes.get(0));
+    }
+
+    /**
+     * Checks that the document has one rating per author and that its stored average rating counts all of them.
+     */
+    private void assertAverageOfTheRatings(RatingsManager ratingsManager) throws Exception
+    {
+        List<Rating> ratings = ratingsManager.getRatings(DOCUMENT, 0, 0, true);
+        assertOneRatingPerAuthor(ratings);
+
+        int total = 0;
+        for (Rating rating : ratings) {
+            total += rating.getVote();
+        }
+        AverageRating averageRating =
+            ratingsManager.getAverageRating(DOCUMENT, RatingsManager.RATING_REPUTATION_METHOD_AVERAGE);
+        Assert.assertEquals(AUTHORS, averageRating.getNbVotes());
+        Assert.assertEquals((float) total / AUTHORS, averageRating.getAverageVote(), 0.0001);
+    }
+
+    /**
+     * Runs one voting thread per ratings manager, all starting at the same time.
+     */
+    private void vote(List<DatabaseRatingsManager> ratingsManagers) throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < ratingsManagers.size(); i++) {
+            final int threadNumber = i;
+            final DatabaseRatingsManager ratingsManager = ratingsManagers.get(i);
+            Thread thread = new Thread("Voter " + threadNumber)
+            {
+                @Override
+                public void run()
+                {
+                    initContext();
+                    try {
+                        start.await();
+                        for (int j = 0; j < VOTES_PER_THREAD; j++) {
+                            String author = "XWiki.User" + ((threadNumber + j) % AUTHORS);
+                            ratingsManager.setRating(DOCUMENT, author, 1 + (threadNumber * j) % 5);
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    } finally {
+                        execution.removeContext();
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.size() + " voters failed, first with " + failures.get(0));
+        }
+    }
+
+    private void assertOneRatingPerAuthor(List<Rating> ratings)
+    {
+        Set<String> authors = new HashSet<String>();
+        for (Rating rating : ratings) {
+            Assert.assertTrue("Duplicate rating of " + rating.getAuthor(), authors.add(rating.getAuthor()));
+        }
+        Assert.assertEquals(AUTHORS, authors.size());
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.exception.ConstraintViolationException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.contrib.ratings.AverageRating;
+import org.xwiki.contrib.ratings.Rating;
+import org.xwiki.contrib.ratings.RatingRecord;
+import org.xwiki.contrib.ratings.RatingsException;
+import org.xwiki.contrib.ratings.RatingsImportReport;
+import org.xwiki.contrib.ratings.RatingsManager;
+
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+
+/**
+ * Unit tests for {@link DatabaseRatingsManager}, on an HSQLDB database.
+ *
+ * @version $Id$
+ */
+public class DatabaseRatingsManagerTest extends AbstractDatabaseRatingsTest
+{
+    private static final String DOCUMENT = "Main.WebHome";
+
+    private static final String ALICE = "XWiki.Alice";
+
+    private static final String BOB = "XWiki.Bob";
+
+    private static final String CAROL = "XWiki.Carol";
+
+    @Test
+    public void testVoteAgainUpdatesTheRatingOfTheAuthor() throws Exception
+    {
+        DatabaseRatingsManager ratingsManager = new TestDatabaseRatingsManager();
+        Rating first = ratingsManager.setRating(DOCUMENT, ALICE, 2);
+        Rating second = ratingsManager.setRating(DOCUMENT, ALICE, 5);
+
+        Assert.assertEquals(first.getRatingId(), second.getRatingId());
+        List<Rating> ratings = ratingsManager.getRatings(DOCUMENT, 0, 0, true);
+        Assert.assertEquals(1, ratings.size());
+        Assert.assertEquals(5, ratings.get(0).getVote());
+        Assert.assertEquals(5, ratingsManager.getRating(DOCUMENT, ALICE).getVote());
+    }
+
+    @Test
+    public void testStoredAverageRatingFollowsTheVotes() throws Exception
+    {
+        DatabaseRatingsManager ratingsManager = new TestDatabaseRatingsManager();
+        ratingsManager.setRating(DOCUMENT, ALICE, 2);
+        ratingsManager.setRating(DOCUMENT, BOB, 4);
+        ratingsManager.setRating(DOCUMENT, CAROL, 5);
+        ratingsManager.setRating(DOCUMENT, ALICE, 5);
+
+        AverageRating storedRating =
+            ratingsManager.getStoredAverageRating(DOCUMENT, RatingsManager.RATING_REPUTATION_METHOD_AVERAGE);
+        Assert.assertEquals(3, storedRating.getNbVotes());
+        Assert.assertEquals(14f / 3, storedRating.getAverageVote(), 0.0001);
+
+        initContext();
+        AverageRating averageRating =
+            ratingsManager.getAverageRating(DOCUMENT, RatingsManager.RATING_REPUTATION_METHOD_AVERAGE);
+        Assert.assertEquals(3, averageRating.getNbVotes());
+        Assert.assertEquals(14f / 3, averageRating.getAverageVote(), 0.0001);
+    }
+
+    @Test
+    public void testStoredAverageRatingsTotalsCountTheRatedDocuments() throws Exception
+    {
+        DatabaseRatingsManager ratingsManager = new TestDatabaseRatingsManager();
+        String method = RatingsManager.RATING_REPUTATION_METHOD_AVERAGE;
+        Assert.assertArrayEquals(new double[] {0, 0, 0}, ratingsManager.getStoredAverageRatingsTotals(method), 0);
+
+        ratingsManager.setRating(DOCUMENT, ALICE, 2);
+        ratingsManager.setRating(DOCUMENT, BOB, 4);
+        ratingsManager.setRating("Main.Other", ALICE, 5);
+
+        Assert.assertArrayEquals(new double[] {2, 3, 11}, ratingsManager.getStoredAverageRatingsTotals(method), 0.0001);
+        Assert.assertEquals(2, ratingsManager.getStoredAverageRatings(method).size());
+    }
+
+    @Test
+    public void testAverageRatingsAreComputedForDocumentsWithoutStoredAverage() throws Exception
+    {
+        DatabaseRatingsManager ratingsManager = new TestDatabaseRatingsManager();
+        ratingsManager.setRating(DOCUMENT, ALICE, 2);
+        // ratings saved without their average rating
+        ratingsManager.insertRating(new DatabaseRating("Main.Other", ALICE, 4, ratingsManager));
+        ratingsManager.insertRating(new DatabaseRating("Main.Other", BOB, 5, ratingsManager));
+
+        Map<String, AverageRating> averageRatings = ratingsManager.getAverageRatings(
+            Arrays.asList(DOCUMENT, "Main.Other", "Main.Unrated"), RatingsManager.RATING_REPUTATION_METHOD_AVERAGE);
+        Assert.assertEquals(1, averageRatings.get(DOCUMENT).getNbVotes());
+        Assert.assertEquals(2, averageRatings.get("Main.Other").getNbVotes());
+        Assert.assertEquals(4.5f, averageRatings.get("Main.Other").getAverageVote(), 0.0001);
+        Assert.assertEquals(0, averageRatings.get("Main.Unrated").getNbVotes());
+    }
+
+    @Test
+    public void testDatabaseRejectsASecondRatingOfTheSameAuthor() throws Exception
+    {
+        DatabaseRatingsManager ratingsManager = new TestDatabaseRatingsManager();
+        ratingsManager.setRating(DOCUMENT, ALICE, 3);
+
+        Assert.assertFalse(ratingsManager.insertRating(new DatabaseRating(DOCUMENT, ALICE, 4, ratingsManager)));
+        Assert.assertTrue(ratingsManager.insertRating(new DatabaseRating("Main.Other", ALICE, 4, ratingsManager)));
+        Assert.assertEquals(1, ratingsManager.getRatings(DOCUMENT, 0, 0, true).size());
+    }
+
+    @Test
+    public void testConcurrentFirstVoteUpdatesTheRatingSavedMeanwhile() throws Exception
+    {
+        final DatabaseRatingsManager otherNode = new TestDatabaseRatingsManager();
+        DatabaseRatingsManager ratingsManager = new TestDatabaseRatingsManager()
+        {
+            private boolean conflict = true;
+
+            @Override
+            protected <T> T executeWrite(HibernateCallback<T> callback) throws RatingsException
+            {
+                if (conflict) {
+                    // the same author votes on another cluster node, the transaction fails on the unique key
+                    conflict = false;
+                    otherNode.setRating(DOCUMENT, ALICE, 1);
+                    throw new RatingsException(RatingsException.MODULE_PLUGIN_RATINGS,
+                        RatingsException.ERROR_RATINGS_QUERY, "Failed to insert the rating",
+                        new ConstraintViolationException("Duplicate rating", null, "RAT_PARENT_AUTHOR"));
+                }
+                return super.executeWrite(callback);
+            }
+        };
+        ratingsManager.setRating(DOCUMENT, ALICE, 4);
+
+        List<Rating> ratings = ratingsManager.getRatings(DOCUMENT, 0, 0, true);
+        Assert.assertEquals(1, ratings.size());
+        Assert.assertEquals(4, ratings.get(0).getVote());
+        AverageRating storedRating =
+            ratingsManager.getStoredAverageRating(DOCUMENT, RatingsManager.RATING_REPUTATION_METHOD_AVERAGE);
+        Assert.assertEquals(1, storedRating.getNbVotes());
+        Assert.assertEquals(4, storedRating.getAverageVote(), 0);
+    }
+
+    @Test
+    public void testAverageRatingCreatedOnAnotherNodeIsOverwritten() throws Exception
+    {
+        DatabaseRatingsManager ratingsManager = new TestDatabaseRatingsManager();
+        ratingsManager.setRating(DOCUMENT, ALICE, 3);
+
+        DatabaseAverageRating averageRating =
+            new DatabaseAverageRating(DOCUMENT, RatingsManager.RATING_REPUTATION_METHOD_AVERAGE, ratingsManager);
+        averageRating.setNbVotes(2);
+        averageRating.setAverageVote(4);
+        averageRating.save();
+
+        Map<String, AverageRating> storedRatings = ratingsManager.getStoredAverageRatings(Arrays.asList(DOCUMENT),
+            RatingsManager.RATING_REPUTATION_METHOD_AVERAGE);
+        Assert.assertEquals(2, storedRatings.get(DOCUMENT).getNbVotes());
+        Assert.assertArrayEquals(new double[] {1, 2, 8},
+            ratingsManager.getStoredAverageRatingsTotals(RatingsManager.RATING_REPUTATION_METHOD_AVERAGE), 0);
+    }
+
+    @Test
+    public void testRatingsArePagedInDateOrder() throws Exception
+    {
+        DatabaseRatingsManager ratingsManager = new TestDatabaseRatingsManager();
+        List<String> authors = Arrays.asList(ALICE, BOB, CAROL, "XWiki.Dave", "XWiki.Eve");
+        for (String author : authors) {
+            ratingsManager.setRating(DOCUMENT, author, 3);
+        }
+
+        Assert.assertEquals(authors.subList(0, 2), getAuthors(ratingsManager.getRatings(DOCUMENT, 0, 2, true)));
+        Assert.assertEquals(authors.subList(2, 4), getAuthors(ratingsManager.getRatings(DOCUMENT, 2, 2, true)));
+        Assert.assertEquals(authors.subList(4, 5), getAuthors(ratingsManager.getRatings(DOCUMENT, 4, 2, true)));
+        Assert.assertEquals(Arrays.asList("XWiki.Eve", "XWiki.Dave"),
+            getAuthors(ratingsManager.getRatings(DOCUMENT, 0, 2, false)));
+    }
+
+    @Test
+    public void testRatingsWithTheSameDateArePagedAfterTheLastRating() throws Exception
+    {
+        DatabaseRatingsManager ratingsManager = new TestDatabaseRatingsManager();
+        List<String> authors = Arrays.asList(ALICE, BOB, CAROL, "XWiki.Dave", "XWiki.Eve");
+        Date date = new Date();
+        RatingRecord[] records = new RatingRecord[authors.size()];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = new RatingRecord(DOCUMENT, authors.get(i), 3, date);
+        }
+        ratingsManager.importRatings(Arrays.asList(records).iterator());
+
+        List<Rating> page = ratingsManager.getRatingsAfter(DOCUMENT, null, 0, 2, true);
+        Assert.assertEquals(authors.subList(0, 2), getAuthors(page));
+        page = ratingsManager.getRatingsAfter(DOCUMENT, page.get(1), 2, 2, true);
+        Assert.assertEquals(authors.subList(2, 4), getAuthors(page));
+        page = ratingsManager.getRatingsAfter(DOCUMENT, page.get(1), 4, 2, true);
+        Assert.assertEquals(authors.subList(4, 5), getAuthors(page));
+
+        page = ratingsManager.getRatingsAfter(DOCUMENT, null, 0, 2, false);
+        page = ratingsManager.getRatingsAfter(DOCUMENT, page.get(1), 2, 2, false);
+        Assert.assertEquals(Arrays.asList(CAROL, BOB), getAuthors(page));
+    }
+
+    @Test
+    public void testImportReplacesTheVotesOfTheAuthors() throws Exception
+    {
+        DatabaseRatingsManager ratingsManager = new TestDatabaseRatingsManager();
+        ratingsManager.setRating(DOCUMENT, ALICE, 1);
+
+        Date date = new Date();
+        RatingsImportReport report = ratingsManager.importRatings(Arrays.asList(
+            new RatingRecord(DOCUMENT, ALICE, 5, date), new RatingRecord(DOCUMENT, BOB, 3, date),
+            new RatingRecord(DOCUMENT, null, 3, date), new RatingRecord("Main.Other", CAROL, 2, date)).iterator());
+
+        Assert.assertEquals(4, report.getRecordCount());
+        Assert.assertEquals(1, report.getSkippedRecordCount());
+        Assert.assertEquals(3, report.getImportedRatingCount());
+        Assert.assertTrue(report.getFailedDocuments().isEmpty());
+        Assert.assertEquals(2, ratingsManager.getRatings(DOCUMENT, 0, 0, true).size());
+        Assert.assertEquals(5, ratingsManager.getRating(DOCUMENT, ALICE).getVote());
+        AverageRating storedRating =
+            ratingsManager.getStoredAverageRating(DOCUMENT, RatingsManager.RATING_REPUTATION_METHOD_AVERAGE);
+        Assert.assertEquals(2, storedRating.getNbVotes());
+        Assert.assertEquals(4, storedRating.getAverageVote(), 0);
+    }
+
+    @Test
+    public void testImportStoppedByTheRecordsKeepsTheAverageRatingsOfTheReadRecords() throws Exception
+    {
+        DatabaseRatingsManager ratingsManager = new TestDatabaseRatingsManager();
+        Date date = new Date();
+        final Iterator<RatingRecord> records = Arrays.asList(new RatingRecord(DOCUMENT, ALICE, 5, date),
+            new RatingRecord(DOCUMENT, BOB, 2, date)).iterator();
+        RatingsImportReport report = ratingsManager.importRatings(new Iterator<RatingRecord>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return true;
+            }
+
+            @Override
+            public RatingRecord next()
+            {
+                if (!records.hasNext()) {
+                    throw new IllegalStateException("Unreadable record");
+                }
+                return records.next();
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        });
+
+        Assert.assertEquals("Unreadable record", report.getFailure());
+        Assert.assertEquals(2, report.getImportedRatingCount());
+        Assert.assertEquals(2, report.getResumePosition());
+        AverageRating storedRating =
+            ratingsManager.getStoredAverageRating(DOCUMENT, RatingsManager.RATING_REPUTATION_METHOD_AVERAGE);
+        Assert.assertEquals(2, storedRating.getNbVotes());
+        Assert.assertEquals(3.5, storedRating.getAverageVote(), 0);
+    }
+
+    private static List<String> getAuthors(List<Rating> ratings)
+    {
+        String[] authors = new String[ratings.size()];
+        for (int i = 0; i < authors.length; i++) {
+            authors[i] = ratings.get(i).getAuthor();
+        }
+        return Arrays.asList(authors);
+    }
+}
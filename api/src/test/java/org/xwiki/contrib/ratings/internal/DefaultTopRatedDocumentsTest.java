@@ -0,0 +1,208 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratings.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Provider;
+
+import org.jmock.Expectations;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.contrib.ratings.AverageRating;
+import org.xwiki.contrib.ratings.RatingsException;
+import org.xwiki.contrib.ratings.RatingsManager;
+import org.xwiki.contrib.ratings.UpdateRatingEvent;
+import org.xwiki.environment.Environment;
+
+/**
+ * Unit tests for {@link DefaultTopRatedDocuments}, ranking the average ratings stored by a
+ * {@link DatabaseRatingsManager}.
+ *
+ * @version $Id$
+ */
+public class DefaultTopRatedDocumentsTest extends AbstractDatabaseRatingsTest
+{
+    private static final String METHOD = RatingsManager.RATING_REPUTATION_METHOD_AVERAGE;
+
+    private static final String ALICE = "XWiki.Alice";
+
+    private static final String BOB = "XWiki.Bob";
+
+    @Rule
+    public TemporaryFolder permanentDirectory = new TemporaryFolder();
+
+    private DatabaseRatingsManager ratingsManager;
+
+    private Environment environment;
+
+    @Before
+    public void setUpRatings() throws Exception
+    {
+        environment = mockery.mock(Environment.class);
+        mockery.checking(new Expectations()
+        {
+            {
+                allowing(environment).getPermanentDirectory();
+                will(returnValue(permanentDirectory.getRoot()));
+            }
+        });
+
+        ratingsManager = new TestDatabaseRatingsManager();
+        ratingsManager.setRating("Main.A", ALICE, 5);
+        ratingsManager.setRating("Main.B", ALICE, 3);
+        ratingsManager.setRating("Main.B", BOB, 3);
+        ratingsManager.setRating("Other.C", ALICE, 4);
+        ratingsManager.setRating("Main.D", ALICE, 5);
+        ratingsManager.setRating("Main.D", BOB, 5);
+    }
+
+    /**
+     * @return a ranking component, which reads the index files left by the previous ones like after a restart
+     */
+    private DefaultTopRatedDocuments newTopRatedDocuments()
+    {
+        DefaultTopRatedDocuments topRatedDocuments = new DefaultTopRatedDocuments();
+        ReflectionUtils.setFieldValue(topRatedDocuments, "logger",
+            LoggerFactory.getLogger(DefaultTopRatedDocuments.class));
+        ReflectionUtils.setFieldValue(topRatedDocuments, "execution", execution);
+        ReflectionUtils.setFieldValue(topRatedDocuments, "environment", environment);
+        ReflectionUtils.setFieldValue(topRatedDocuments, "configuration", configuration);
+        ReflectionUtils.setFieldValue(topRatedDocuments, "ratingsManagerProvider", new Provider<RatingsManager>()
+        {
+            public RatingsManager get()
+            {
+                return ratingsManager;
+            }
+        });
+        return topRatedDocuments;
+    }
+
+    @Test
+    public void testDocumentsAreRankedByScoreThenVotesThenName() throws Exception
+    {
+        DefaultTopRatedDocuments topRatedDocuments = newTopRatedDocuments();
+
+        Assert.assertEquals(Arrays.asList("Main.D", "Main.A", "Other.C", "Main.B"),
+            getNames(topRatedDocuments.getTopRated(null, 10, METHOD)));
+        Assert.assertEquals(Arrays.asList("Main.D", "Main.A"),
+            getNames(topRatedDocuments.getTopRated(null, 2, METHOD)));
+        AverageRating averageRating = topRatedDocuments.getTopRated(null, 1, METHOD).get("Main.D");
+        Assert.assertEquals(2, averageRating.getNbVotes());
+        Assert.assertEquals(5, averageRating.getAverageVote(), 0);
+    }
+
+    @Test
+    public void testSpacesHaveTheirOwnRanking() throws Exception
+    {
+        DefaultTopRatedDocuments topRatedDocuments = newTopRatedDocuments();
+
+        Assert.assertEquals(Arrays.asList("Main.D", "Main.A", "Main.B"),
+            getNames(topRatedDocuments.getTopRated("Main", 10, METHOD)));
+        Assert.assertEquals(Arrays.asList("Other.C"), getNames(topRatedDocuments.getTopRated("Other", 10, METHOD)));
+        Assert.assertTrue(topRatedDocuments.getTopRated("Unrated", 10, METHOD).isEmpty());
+    }
+
+    @Test
+    public void testVotesMoveTheDocumentsInTheirRankings() throws Exception
+    {
+        DefaultTopRatedDocuments topRatedDocuments = newTopRatedDocuments();
+        topRatedDocuments.getTopRated(null, 10, METHOD);
+
+        ratingsManager.setRating("Main.B", ALICE, 5);
+        ratingsManager.setRating("Main.B", BOB, 5);
+        ratingsManager.setRating("Main.B", "XWiki.Carol", 5);
+        topRatedDocuments.onEvent(new UpdateRatingEvent("Main.B", null, 3), null);
+        ratingsManager.removeRating(ratingsManager.getRating("Other.C", ALICE));
+        topRatedDocuments.onEvent(new UpdateRatingEvent("Other.C", null, 4), null);
+
+        Assert.assertEquals(Arrays.asList("Main.B", "Main.D", "Main.A"),
+            getNames(topRatedDocuments.getTopRated(null, 10, METHOD)));
+        Assert.assertEquals(Arrays.asList("Main.B", "Main.D", "Main.A"),
+            getNames(topRatedDocuments.getTopRated("Main", 10, METHOD)));
+        Assert.assertTrue(topRatedDocuments.getTopRated("Other", 10, METHOD).isEmpty());
+
+        // the updates are saved to the index file
+        Assert.assertEquals(Arrays.asList("Main.B", "Main.D", "Main.A"),
+            getNames(newTopRatedDocuments().getTopRated(null, 10, METHOD)));
+    }
+
+    @Test
+    public void testCursorsPageThroughTheRankings() throws Exception
+    {
+        DefaultTopRatedDocuments topRatedDocuments = newTopRatedDocuments();
+
+        List<String> names = new ArrayList<String>();
+        String cursor = null;
+        for (Map<String, AverageRating> page = topRatedDocuments.getRatedDocuments(null, null, 1, METHOD);
+            !page.isEmpty(); page = topRatedDocuments.getRatedDocuments(null, cursor, 1, METHOD)) {
+            Map.Entry<String, AverageRating> document = page.entrySet().iterator().next();
+            names.add(document.getKey());
+            cursor = topRatedDocuments.getCursor(document.getKey(), document.getValue());
+        }
+        Assert.assertEquals(Arrays.asList("Main.D", "Main.A", "Other.C", "Main.B"), names);
+
+        Map<String, AverageRating> page = topRatedDocuments.getRatedDocuments("Main", null, 2, METHOD);
+        cursor = topRatedDocuments.getCursor("Main.A", page.get("Main.A"));
+        Assert.assertEquals(Arrays.asList("Main.B"),
+            getNames(topRatedDocuments.getRatedDocuments("Main", cursor, 2, METHOD)));
+    }
+
+    @Test
+    public void testInvalidCursorsAreRejected() throws Exception
+    {
+        DefaultTopRatedDocuments topRatedDocuments = newTopRatedDocuments();
+        for (String cursor : Arrays.asList("Main.A", "2:Main.A", ":5.0:Main.A", "two:5.0:Main.A", "2:five:Main.A")) {
+            try {
+                topRatedDocuments.getRatedDocuments(null, cursor, 10, METHOD);
+                Assert.fail("Cursor " + cursor + " accepted");
+            } catch (RatingsException e) {
+                Assert.assertEquals(RatingsException.ERROR_RATINGS_INVALID_CURSOR, e.getCode());
+            }
+        }
+    }
+
+    @Test
+    public void testIndexIsRebuiltWhenAVoteChangedWithoutItsUpdate() throws Exception
+    {
+        newTopRatedDocuments().getTopRated(null, 10, METHOD);
+
+        // same number of documents and of votes as in the index file, but another average vote
+        ratingsManager.setRating("Main.B", ALICE, 5);
+
+        Assert.assertEquals(Arrays.asList("Main.D", "Main.A", "Main.B", "Other.C"),
+            getNames(newTopRatedDocuments().getTopRated(null, 10, METHOD)));
+    }
+
+    private static List<String> getNames(Map<String, AverageRating> averageRatings)
+    {
+        return (averageRatings == null) ? Collections.<String>emptyList()
+            : new ArrayList<String>(averageRatings.keySet());
+    }
+}